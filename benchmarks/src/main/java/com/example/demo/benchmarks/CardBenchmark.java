@@ -0,0 +1,65 @@
+package com.example.demo.benchmarks;
+
+import com.example.demo.application.responses.CardResponse;
+import com.example.demo.domain.Card;
+import com.example.demo.domain.CardSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.demo.benchmarks.Fixture.AMOUNT;
+import static com.example.demo.benchmarks.Fixture.LIMIT;
+
+/**
+ * Single threaded cost of the domain model itself, without persistence.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CardBenchmark {
+
+    private Card card;
+    private CardSnapshot snapshot;
+
+    @Setup
+    public void setUp() {
+        card = new Card(UUID.randomUUID());
+        card.changeLimit(LIMIT);
+        card.markChangesAsCommitted();
+        snapshot = card.snapshot();
+    }
+
+    /**
+     * One use followed by the matching payment, so the card never runs out of limit.
+     */
+    @Benchmark
+    public Card useAndPayLimit() {
+        card.useLimit(AMOUNT);
+        card.payLimit(AMOUNT);
+        card.markChangesAsCommitted();
+        return card;
+    }
+
+    @Benchmark
+    public Card rebuildFromSnapshot() {
+        return Card.from(snapshot);
+    }
+
+    @Benchmark
+    public CardResponse cardResponse() {
+        return CardResponse.from(card);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.demo.benchmarks;
+
+import com.example.demo.application.ConcurrencyMode;
+import com.example.demo.application.responses.CardResponse;
+import com.example.demo.domain.Card;
+import com.example.demo.persistence.StoreLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.demo.benchmarks.Fixture.AMOUNT;
+
+/**
+ * End to end cost of {@code CardService} commands including the event store and its log.
+ * <p>
+ * {@code hotCard} has every thread hammer the same card, {@code coldCards} spreads them over many cards and
+ * {@code mixed} runs readers next to writers on the same set of cards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CardServiceBenchmark {
+
+    @Param({"MAILBOX", "OPTIMISTIC"})
+    public ConcurrencyMode mode;
+
+    @Param({"HEAP", "FLAT"})
+    public StoreLayout layout;
+
+    @Param({"100000"})
+    public int cards;
+
+    private Fixture fixture;
+    private UUID hotCard;
+    private UUID[] cardIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = new Fixture(mode, layout);
+        cardIds = fixture.createCards(cards);
+        hotCard = cardIds[0];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void singleThreaded() {
+        useAndPay(randomCard());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void hotCard() {
+        useAndPay(hotCard);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void coldCards() {
+        useAndPay(randomCard());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public Card mixedRead() {
+        return fixture.cardService.readCard(randomCard());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void mixedWrite() {
+        useAndPay(randomCard());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Card storeLookup() {
+        return fixture.eventStore.get(randomCard());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public CardResponse readAsResponse() {
+        return CardResponse.from(fixture.cardService.readCard(randomCard()));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] readProjection() {
+        return fixture.cardProjection.json(randomCard());
+    }
+
+    private void useAndPay(UUID cardId) {
+        fixture.cardService.useLimit(cardId, AMOUNT);
+        fixture.cardService.payLimit(cardId, AMOUNT);
+    }
+
+    private UUID randomCard() {
+        return cardIds[ThreadLocalRandom.current().nextInt(cardIds.length)];
+    }
+}
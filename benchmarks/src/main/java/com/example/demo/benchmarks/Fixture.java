@@ -0,0 +1,101 @@
+package com.example.demo.benchmarks;
+
+import com.example.demo.application.CardCommandExecutor;
+import com.example.demo.application.CardMetrics;
+import com.example.demo.application.CardProjection;
+import com.example.demo.application.CardService;
+import com.example.demo.application.ConcurrencyMode;
+import com.example.demo.application.HoldExpiry;
+import com.example.demo.application.VelocityLimits;
+import com.example.demo.domain.Money;
+import com.example.demo.domain.events.LimitChangedEvent;
+import com.example.demo.domain.events.LimitPartPaidEvent;
+import com.example.demo.domain.events.LimitPartUsedEvent;
+import com.example.demo.events.Event;
+import com.example.demo.events.Events;
+import com.example.demo.persistence.EventStore;
+import com.example.demo.persistence.EventStoreProperties;
+import com.example.demo.persistence.StoreLayout;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * A {@link CardService} wired by hand on top of a throw-away event log directory.
+ */
+final class Fixture {
+
+    static final Money LIMIT = Money.of("1000000");
+    static final Money AMOUNT = Money.of("1.25");
+
+    final Path directory;
+    final EventStore eventStore;
+    final CardCommandExecutor executor;
+    final CardService cardService;
+    final CardProjection cardProjection;
+
+    Fixture(ConcurrencyMode mode, StoreLayout layout) {
+        try {
+            directory = Files.createTempDirectory("card-benchmark");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var properties = new EventStoreProperties();
+        properties.getEventLog().setDirectory(directory);
+        properties.getEventLog().setSegmentSize(256L * 1024 * 1024);
+        properties.getStore().setLayout(layout);
+        properties.getSnapshot().setIntervalEvents(1_000_000);
+        eventStore = new EventStore(new NoopEvents(), properties);
+        executor = new CardCommandExecutor(0, 100_000);
+        var metrics = new CardMetrics(new SimpleMeterRegistry(), eventStore);
+        cardService = new CardService(eventStore, executor, metrics, new VelocityLimits(60, 0, BigDecimal.ZERO), mode,
+            16, 604_800, Optional.of(new HoldExpiry(1000)));
+        cardProjection = new CardProjection(eventStore, metrics, null);
+    }
+
+    UUID[] createCards(int count) {
+        UUID[] cardIds = new UUID[count];
+        for (int i = 0; i < count; i++) {
+            cardIds[i] = cardService.createCard().getId();
+            cardService.changeLimit(cardIds[i], LIMIT);
+        }
+        return cardIds;
+    }
+
+    void close() throws Exception {
+        cardService.shutdown();
+        executor.shutdown();
+        eventStore.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static final class NoopEvents implements Events {
+
+        @Override
+        public void emit(LimitChangedEvent event) {
+        }
+
+        @Override
+        public void emit(LimitPartPaidEvent event) {
+        }
+
+        @Override
+        public void emit(LimitPartUsedEvent event) {
+        }
+
+        @Override
+        public void emitAll(List<? extends Event> events) {
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.demo.benchmarks;
+
+import com.example.demo.DemoApplication;
+import com.example.demo.application.CardService;
+import com.example.demo.application.RequestHandling;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.example.demo.benchmarks.Fixture.LIMIT;
+
+/**
+ * The whole HTTP stack under more concurrent clients than the servlet pool has threads, once with request threads
+ * waiting for each command to become durable and once with them released while it does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(256)
+public class HttpApiBenchmark {
+
+    @Param({"BLOCKING", "ASYNC"})
+    public RequestHandling requestHandling;
+
+    @Param({"32"})
+    public int serverThreads;
+
+    @Param({"10000"})
+    public int cards;
+
+    private Path directory;
+    private ConfigurableApplicationContext application;
+    private HttpClient client;
+    private HttpRequest[] useRequests;
+    private HttpRequest[] payRequests;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("card-http-benchmark");
+        application = new SpringApplicationBuilder(DemoApplication.class)
+            .properties(
+                "server.port=0",
+                "server.tomcat.threads.max=" + serverThreads,
+                "card.web.request-handling=" + requestHandling,
+                "card.event-log.directory=" + directory,
+                "logging.level.root=WARN")
+            .run();
+        int port = ((WebServerApplicationContext) application).getWebServer().getPort();
+
+        CardService cardService = application.getBean(CardService.class);
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        useRequests = new HttpRequest[cards];
+        payRequests = new HttpRequest[cards];
+        for (int i = 0; i < cards; i++) {
+            UUID cardId = cardService.createCard().getId();
+            cardService.changeLimit(cardId, LIMIT);
+            useRequests[i] = command(port, cardId, "use", "{\"useLimit\":1.25}");
+            payRequests[i] = command(port, cardId, "pay", "{\"payLimit\":1.25}");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        application.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * One use followed by the matching payment of a random card.
+     */
+    @Benchmark
+    public int useAndPay() throws IOException, InterruptedException {
+        int card = ThreadLocalRandom.current().nextInt(cards);
+        int used = client.send(useRequests[card], HttpResponse.BodyHandlers.discarding()).statusCode();
+        int paid = client.send(payRequests[card], HttpResponse.BodyHandlers.discarding()).statusCode();
+        return used + paid;
+    }
+
+    private static HttpRequest command(int port, UUID cardId, String command, String body) {
+        URI uri = URI.create("http://localhost:" + port + "/v1/cards/" + cardId + "/limits/" + command);
+        return HttpRequest.newBuilder(uri)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+    }
+}
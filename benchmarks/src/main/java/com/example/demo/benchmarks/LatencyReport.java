@@ -0,0 +1,102 @@
+package com.example.demo.benchmarks;
+
+import com.example.demo.benchmarks.LoadGenerator.Call;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latencies of the calls of a load run in microseconds, per kind of call and over all of them. Recorded from
+ * the threads that receive the answers.
+ */
+final class LatencyReport {
+
+    private static final String HEADER = "%-8s %10s %10s %8s %8s %10s %9s %9s %9s %9s%n";
+    private static final String ROW = "%-8s %10d %10d %8d %8d %10.0f %9.2f %9.2f %9.2f %9.2f%n";
+
+    private final Call[] calls;
+    private final Calls[] byCall;
+    private final Calls all = new Calls();
+    private double seconds;
+
+    LatencyReport(Call[] calls) {
+        this.calls = calls;
+        byCall = new Calls[calls.length];
+        for (int i = 0; i < calls.length; i++) {
+            byCall[i] = new Calls();
+        }
+    }
+
+    /**
+     * Records a call due at {@code due} and sent at {@code sent} that was answered with the status, or with
+     * {@code 0} if it failed without one. All times are {@link System#nanoTime()}.
+     */
+    void record(Call call, long due, long sent, long answered, int status) {
+        byCall[call.ordinal()].record(due, sent, answered, status);
+        all.record(due, sent, answered, status);
+    }
+
+    /**
+     * Sets the span the throughput is reported over.
+     */
+    void finish(long from, long to) {
+        seconds = (to - from) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    void print(PrintStream out, boolean distribution) {
+        out.printf("%nResponse time from when each call was due, in ms:%n");
+        printTable(out, true);
+        out.printf("%nService time from when each call was sent, in ms:%n");
+        printTable(out, false);
+
+        if (distribution) {
+            out.printf("%nDistribution of the response time of all calls, in ms:%n");
+            all.responseTimes.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private void printTable(PrintStream out, boolean responseTime) {
+        out.printf(HEADER, "call", "count", "ok", "4xx", "failed", "calls/s", "p50", "p99", "p99.9", "max");
+        for (int i = 0; i < calls.length; i++) {
+            printRow(out, calls[i].name().toLowerCase(Locale.ROOT), byCall[i], responseTime);
+        }
+        printRow(out, "all", all, responseTime);
+    }
+
+    private void printRow(PrintStream out, String name, Calls row, boolean responseTime) {
+        Histogram histogram = responseTime ? row.responseTimes : row.serviceTimes;
+        long count = histogram.getTotalCount();
+        out.printf(ROW, name, count, row.ok.sum(), row.declined.sum(), row.failed.sum(), count / seconds,
+            millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+            millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static final class Calls {
+
+        final Histogram responseTimes = new ConcurrentHistogram(3);
+        final Histogram serviceTimes = new ConcurrentHistogram(3);
+        final LongAdder ok = new LongAdder();
+        final LongAdder declined = new LongAdder();
+        final LongAdder failed = new LongAdder();
+
+        void record(long due, long sent, long answered, int status) {
+            responseTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(answered - due));
+            serviceTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(answered - sent));
+            if (status >= 200 && status < 300) {
+                ok.increment();
+            } else if (status >= 400 && status < 500) {
+                declined.increment();
+            } else {
+                failed.increment();
+            }
+        }
+    }
+}
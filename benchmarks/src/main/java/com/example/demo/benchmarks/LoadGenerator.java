@@ -0,0 +1,213 @@
+package com.example.demo.benchmarks;
+
+import com.example.demo.DemoApplication;
+import com.example.demo.application.CardService;
+import com.example.demo.domain.Money;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import static com.example.demo.benchmarks.Fixture.LIMIT;
+
+/**
+ * Replays a mix of card commands and reads through the HTTP API of an embedded instance of the application at a
+ * fixed rate, then reports throughput and latency percentiles per kind of call.
+ * <p>
+ * Calls are scheduled open loop: the n-th call is due {@code n / rate} seconds after the start whether or not the
+ * calls before it have been answered, and its latency is taken from when it was due rather than from when it was
+ * sent. A stalling server thus shows the wait of every call that should have gone out during the stall, not only
+ * of the one that was stuck, which corrects the percentiles for coordinated omission. The time from sending a call
+ * to its answer is reported next to that as the service time.
+ * <p>
+ * Options are {@code name=value} arguments, see {@link #options}; arguments starting with {@code --} configure the
+ * application:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.example.demo.benchmarks.LoadGenerator \
+ *     cards=10000 rate=5000 duration=60 mix=change:5,use:40,pay:40,read:15 --card.web.request-handling=ASYNC
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    /**
+     * Every card starts with half of its limit used, so payments are not declined for want of anything to pay.
+     */
+    private static final Money INITIALLY_USED = Money.of("500000");
+
+    enum Call {
+        CHANGE, USE, PAY, READ
+    }
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        int cards = Integer.parseInt(options.get("cards"));
+        int rate = Integer.parseInt(options.get("rate"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+        Call[] mix = mix(options.get("mix"));
+        int maxInFlight = Integer.parseInt(options.get("max-in-flight"));
+
+        Path directory = Files.createTempDirectory("card-load");
+        ConfigurableApplicationContext application = new SpringApplicationBuilder(DemoApplication.class)
+            .properties(
+                "server.port=0",
+                "card.event-log.directory=" + directory,
+                "logging.level.root=WARN")
+            .run(args);
+        try {
+            int port = ((WebServerApplicationContext) application).getWebServer().getPort();
+            HttpRequest[][] requests = createCards(application.getBean(CardService.class), port, cards);
+            System.out.printf("Created %d cards, sending %d calls/s for %ds after %ds of warm-up%n", cards, rate,
+                TimeUnit.NANOSECONDS.toSeconds(duration), TimeUnit.NANOSECONDS.toSeconds(warmup));
+
+            LatencyReport report = run(requests, mix, rate, warmup, duration, maxInFlight);
+            report.print(System.out, Boolean.parseBoolean(options.get("distribution")));
+        } finally {
+            application.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Sends the calls and waits for their answers. Only the calls due after the warm-up are reported.
+     */
+    private static LatencyReport run(HttpRequest[][] requests, Call[] mix, int rate, long warmup, long duration,
+                                     int maxInFlight) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        LatencyReport report = new LatencyReport(Call.values());
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long start = System.nanoTime();
+        long measuredFrom = start + warmup;
+        long end = measuredFrom + duration;
+        for (long n = 0; ; n++) {
+            long due = start + n * TimeUnit.SECONDS.toNanos(1) / rate;
+            if (due >= end) {
+                break;
+            }
+            // a call sent late, because the scheduler overslept or too many calls are in flight, still counts
+            // from when it was due
+            for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            inFlight.acquire();
+
+            Call call = mix[random.nextInt(mix.length)];
+            HttpRequest request = requests[call.ordinal()][random.nextInt(requests[call.ordinal()].length)];
+            boolean measured = due >= measuredFrom;
+            long sent = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, failure) -> {
+                long answered = System.nanoTime();
+                inFlight.release();
+                if (measured) {
+                    report.record(call, due, sent, answered, failure == null ? response.statusCode() : 0);
+                }
+            });
+        }
+
+        if (!inFlight.tryAcquire(maxInFlight, 1, TimeUnit.MINUTES)) {
+            System.out.printf("%d calls still unanswered a minute after the last was sent%n",
+                maxInFlight - inFlight.availablePermits());
+        }
+        report.finish(measuredFrom, System.nanoTime());
+        return report;
+    }
+
+    /**
+     * Creates the cards through the service and prepares every kind of call for each of them, indexed by
+     * {@link Call#ordinal()} and card.
+     */
+    private static HttpRequest[][] createCards(CardService cardService, int port, int cards) {
+        String uri = "http://localhost:" + port + "/v1/cards/";
+        HttpRequest[][] requests = new HttpRequest[Call.values().length][cards];
+        for (int i = 0; i < cards; i++) {
+            UUID cardId = cardService.createCard().getId();
+            cardService.changeLimit(cardId, LIMIT);
+            cardService.useLimit(cardId, INITIALLY_USED);
+
+            requests[Call.CHANGE.ordinal()][i] = command(uri + cardId + "/limits/change",
+                "{\"limitChange\":" + LIMIT.toPlainString() + "}");
+            requests[Call.USE.ordinal()][i] = command(uri + cardId + "/limits/use", "{\"useLimit\":1.25}");
+            requests[Call.PAY.ordinal()][i] = command(uri + cardId + "/limits/pay", "{\"payLimit\":1.25}");
+            requests[Call.READ.ordinal()][i] = HttpRequest.newBuilder(URI.create(uri + cardId)).GET().build();
+        }
+        return requests;
+    }
+
+    private static HttpRequest command(String uri, String body) {
+        return HttpRequest.newBuilder(URI.create(uri))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+    }
+
+    /**
+     * Parses {@code change:5,use:40,...} into a table holding every call as often as its weight, to pick from at
+     * random.
+     */
+    static Call[] mix(String weights) {
+        List<Call> mix = new ArrayList<>();
+        for (String weight : weights.split(",")) {
+            String[] parts = weight.trim().split(":");
+            Call call = Call.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            for (int i = Integer.parseInt(parts[1].trim()); i > 0; i--) {
+                mix.add(call);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("The mix " + weights + " has no calls");
+        }
+        return mix.toArray(new Call[0]);
+    }
+
+    /**
+     * The {@code name=value} arguments over their defaults. Arguments starting with {@code --} are left to the
+     * application.
+     */
+    static Map<String, String> options(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("cards", "10000");
+        options.put("rate", "2000");
+        options.put("warmup", "10");
+        options.put("duration", "30");
+        options.put("mix", "change:5,use:40,pay:40,read:15");
+        options.put("max-in-flight", "1024");
+        options.put("distribution", "false");
+
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                continue;
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !options.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException("Unknown option " + arg + ", expected one of " + options.keySet());
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.Card;
+import com.example.demo.domain.Money;
+import lombok.Value;
+
+import java.util.UUID;
+
+/**
+ * One limit operation of a batch, see {@link CardService#executeBatch}. Only {@code CHANGE}, {@code USE} and
+ * {@code PAY} can be batched; the hold types name the hold commands in metrics.
+ */
+@Value
+public class CardCommand {
+    UUID cardId;
+    Type type;
+    Money amount;
+    Long expectedVersion;
+
+    void applyTo(Card card) {
+        switch (type) {
+            case CHANGE:
+                card.changeLimit(amount);
+                break;
+            case USE:
+                card.useLimit(amount);
+                break;
+            case PAY:
+                card.payLimit(amount);
+                break;
+            default:
+                throw new IllegalStateException("Unknown command type: " + type);
+        }
+    }
+
+    public enum Type {
+        CHANGE, USE, PAY, HOLD, CAPTURE, RELEASE, EXPIRE
+    }
+}
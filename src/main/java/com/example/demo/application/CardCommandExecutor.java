@@ -0,0 +1,62 @@
+package com.example.demo.application;
+
+import com.example.demo.utils.Stripes;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs the commands of a single card one after another on the same thread.
+ * <p>
+ * Cards are striped by the hash of their id across a fixed set of single threaded mailboxes, so each card has
+ * exactly one writer and sees its commands in submission order, while different cards progress in parallel
+ * without sharing a lock. A full mailbox rejects new work instead of queueing without bound.
+ */
+@Component
+public class CardCommandExecutor {
+
+    private final ExecutorService[] mailboxes;
+
+    public CardCommandExecutor(@Value("${card.executor.mailboxes:0}") int mailboxes,
+                               @Value("${card.executor.mailbox-capacity:10000}") int mailboxCapacity) {
+        int count = mailboxes > 0 ? mailboxes : Runtime.getRuntime().availableProcessors();
+
+        this.mailboxes = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String name = "card-mailbox-" + i;
+            this.mailboxes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(mailboxCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        }
+    }
+
+    public <T> CompletableFuture<T> submit(UUID cardId, Supplier<T> command) {
+        return CompletableFuture.supplyAsync(command, mailboxes[mailboxOf(cardId)]);
+    }
+
+    int mailboxOf(UUID cardId) {
+        return Stripes.indexOf(cardId, mailboxes.length);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (ExecutorService mailbox : mailboxes) {
+            mailbox.shutdown();
+        }
+        for (ExecutorService mailbox : mailboxes) {
+            mailbox.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+}
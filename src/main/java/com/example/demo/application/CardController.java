@@ -1,48 +1,271 @@
 package com.example.demo.application;
 
+import com.example.demo.application.requests.BatchCommandRequest;
 import com.example.demo.application.requests.ChangeLimitRequest;
+import com.example.demo.application.requests.HoldLimitRequest;
 import com.example.demo.application.requests.PayLimitRequest;
 import com.example.demo.application.requests.UseLimitRequest;
+import com.example.demo.application.responses.BatchItemResponse;
 import com.example.demo.application.responses.CardResponse;
-import lombok.RequiredArgsConstructor;
+import com.example.demo.application.responses.HoldResponse;
+import com.example.demo.application.responses.StatsResponse;
+import com.example.demo.domain.Card;
+import com.example.demo.domain.Money;
+import com.example.demo.domain.exceptions.CardNotFoundException;
+import com.example.demo.domain.exceptions.HoldNotFoundException;
+import com.example.demo.domain.exceptions.InvalidAmountException;
+import com.example.demo.domain.exceptions.InvalidCommandException;
+import com.example.demo.domain.exceptions.InvalidCursorException;
+import com.example.demo.domain.exceptions.LimitExceededException;
+import com.example.demo.domain.exceptions.NegativeLimitException;
+import com.example.demo.domain.exceptions.NegativeLimitPartException;
+import com.example.demo.domain.exceptions.StaleCardVersionException;
+import com.example.demo.domain.exceptions.TooHighLimitPaymentException;
+import com.example.demo.domain.exceptions.TooManySubscribersException;
+import com.example.demo.domain.exceptions.VelocityLimitExceededException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
 
+import static org.springframework.format.annotation.DateTimeFormat.ISO.DATE_TIME;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+import static org.springframework.http.HttpStatus.UNPROCESSABLE_ENTITY;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM_VALUE;
 
 @RestController
-@RequiredArgsConstructor
 public class CardController {
 
+    /**
+     * Header under which a client names a command, so a retried command is applied only once.
+     */
+    static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    /**
+     * Header under which a reconnecting event stream consumer sends the id of the last message it got.
+     */
+    static final String LAST_EVENT_ID = "Last-Event-ID";
+
     private final CardService cardService;
+    private final CardProjection cardProjection;
+    private final CardImporter cardImporter;
+    private final CardEventFeed cardEventFeed;
+    private final RequestHandling requestHandling;
+
+    public CardController(CardService cardService,
+                          CardProjection cardProjection,
+                          CardImporter cardImporter,
+                          CardEventFeed cardEventFeed,
+                          @Value("${card.web.request-handling:ASYNC}") RequestHandling requestHandling) {
+        this.cardService = cardService;
+        this.cardProjection = cardProjection;
+        this.cardImporter = cardImporter;
+        this.cardEventFeed = cardEventFeed;
+        this.requestHandling = requestHandling;
+    }
 
     @PostMapping(path = "/v1/cards", produces = APPLICATION_JSON_VALUE)
-    public CardResponse createCard() {
-        return CardResponse.from(cardService.createCard());
+    public CompletableFuture<CardResponse> createCard() {
+        return respond(cardService.createCardAsync().thenApply(CardResponse::from));
     }
 
     @GetMapping(path = "/v1/cards/{cardId}", produces = APPLICATION_JSON_VALUE)
-    public CardResponse readCard(@PathVariable UUID cardId) {
-        return CardResponse.from(cardService.readCard(cardId));
+    public byte[] readCard(@PathVariable UUID cardId) {
+        byte[] card = cardProjection.json(cardId);
+        if (card == null) {
+            throw new CardNotFoundException();
+        }
+        return card;
+    }
+
+    @GetMapping(path = "/v1/cards/{cardId}", params = "asOf", produces = APPLICATION_JSON_VALUE)
+    public CardResponse readCardAsOf(@PathVariable UUID cardId,
+                                     @RequestParam @DateTimeFormat(iso = DATE_TIME) Instant asOf) {
+        Card card = cardService.readCardAsOf(cardId, asOf);
+        if (card == null) {
+            throw new CardNotFoundException();
+        }
+        return CardResponse.from(card);
     }
 
     @PostMapping(path = "/v1/cards/{cardId}/limits/change", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
-    public void changeLimit(@PathVariable UUID cardId, @RequestBody ChangeLimitRequest request) {
-        cardService.changeLimit(cardId, request.getLimitChange());
+    public CompletableFuture<Void> changeLimit(@PathVariable UUID cardId, @RequestBody ChangeLimitRequest request,
+                                               @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String key) {
+        return respond(cardService.changeLimitAsync(cardId, Money.of(request.getLimitChange()),
+            request.getExpectedVersion(), key));
     }
 
     @PostMapping(path = "/v1/cards/{cardId}/limits/use", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
-    public void useLimit(@PathVariable UUID cardId, @RequestBody UseLimitRequest request) {
-        cardService.useLimit(cardId, request.getUseLimit());
+    public CompletableFuture<Void> useLimit(@PathVariable UUID cardId, @RequestBody UseLimitRequest request,
+                                            @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String key) {
+        return respond(cardService.useLimitAsync(cardId, Money.of(request.getUseLimit()),
+            request.getExpectedVersion(), key));
     }
 
     @PostMapping(path = "/v1/cards/{cardId}/limits/pay", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
-    public void payLimit(@PathVariable UUID cardId, @RequestBody PayLimitRequest request) {
-        cardService.payLimit(cardId, request.getPayLimit());
+    public CompletableFuture<Void> payLimit(@PathVariable UUID cardId, @RequestBody PayLimitRequest request,
+                                            @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String key) {
+        return respond(cardService.payLimitAsync(cardId, Money.of(request.getPayLimit()),
+            request.getExpectedVersion(), key));
+    }
+
+    /**
+     * Places a hold on part of the limit, which lasts until it is captured, released or expires after
+     * {@code ttlSeconds}.
+     */
+    @PostMapping(path = "/v1/cards/{cardId}/holds", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<HoldResponse> holdLimit(@PathVariable UUID cardId, @RequestBody HoldLimitRequest request,
+                                                     @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String key) {
+        return respond(cardService.holdLimitAsync(cardId, Money.of(request.getAmount()), request.getTtlSeconds(), key)
+            .thenApply(HoldResponse::from));
+    }
+
+    @PostMapping(path = "/v1/cards/{cardId}/holds/{holdId}/capture", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<Void> captureHold(@PathVariable UUID cardId, @PathVariable long holdId,
+                                               @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String key) {
+        return respond(cardService.captureHoldAsync(cardId, holdId, key));
+    }
+
+    @PostMapping(path = "/v1/cards/{cardId}/holds/{holdId}/release", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<Void> releaseHold(@PathVariable UUID cardId, @PathVariable long holdId,
+                                               @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String key) {
+        return respond(cardService.releaseHoldAsync(cardId, holdId, key));
+    }
+
+    /**
+     * Applies the commands as a batch, see {@link CardService#executeBatch}. A command without a card, type or amount
+     * turns the whole batch away with {@code 400 Bad Request}.
+     */
+    @PostMapping(path = "/v1/cards/batch", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<List<BatchItemResponse>> batch(@RequestBody List<BatchCommandRequest> requests) {
+        List<CardCommand> commands = requests.stream()
+            .map(CardController::toCommand)
+            .collect(Collectors.toList());
+
+        return respond(cardService.executeBatchAsync(commands).thenApply(results -> results.stream()
+            .map(BatchItemResponse::from)
+            .collect(Collectors.toList())));
+    }
+
+    /**
+     * Creates cards from newline delimited JSON, one {@code {"cardId":...,"limit":...}} per line, and streams a
+     * result per line back while the body is still being read, see {@link CardImporter}. Always answered off the
+     * request thread, whatever the {@link RequestHandling}.
+     */
+    @PostMapping(path = "/v1/cards/import", consumes = APPLICATION_NDJSON_VALUE, produces = APPLICATION_NDJSON_VALUE)
+    public StreamingResponseBody importCards(InputStream body) {
+        return results -> cardImporter.importCards(body, results);
+    }
+
+    /**
+     * Totals of the limits over all cards and how many cards have nearly used theirs up, read from running totals
+     * instead of the cards.
+     */
+    @GetMapping(path = "/v1/stats", produces = APPLICATION_JSON_VALUE)
+    public StatsResponse stats() {
+        return StatsResponse.from(cardService.readStats());
+    }
+
+    /**
+     * Streams the committed events of all cards, or of the {@code cardId}s given, as server-sent events from the
+     * {@code cursor} on, see {@link CardEventFeed}. A {@code Last-Event-ID} sent on reconnect takes precedence.
+     */
+    @GetMapping(path = "/v1/cards/events", produces = TEXT_EVENT_STREAM_VALUE)
+    public ResponseBodyEmitter events(@RequestParam(required = false) String cursor,
+                                      @RequestParam(name = "cardId", required = false) Set<UUID> cardIds,
+                                      @RequestHeader(name = LAST_EVENT_ID, required = false) String lastEventId) {
+        return cardEventFeed.subscribe(lastEventId != null ? lastEventId : cursor, cardIds);
+    }
+
+    private static CardCommand toCommand(BatchCommandRequest request) {
+        if (request == null || request.getCardId() == null || request.getType() == null
+            || request.getAmount() == null) {
+            throw new InvalidCommandException();
+        }
+        return new CardCommand(
+            request.getCardId(),
+            CardCommand.Type.valueOf(request.getType().name()),
+            Money.of(request.getAmount()),
+            request.getExpectedVersion());
+    }
+
+    /**
+     * Hands the pending result to Spring MVC, which finishes the request once it completes. In
+     * {@link RequestHandling#BLOCKING} mode the request thread waits for it here instead.
+     */
+    private <T> CompletableFuture<T> respond(CompletableFuture<T> result) {
+        if (requestHandling == RequestHandling.BLOCKING) {
+            try {
+                return CompletableFuture.completedFuture(result.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        return result;
+    }
+
+    @ExceptionHandler(CardNotFoundException.class)
+    @ResponseStatus(NOT_FOUND)
+    public void cardNotFound() {
+    }
+
+    @ExceptionHandler(HoldNotFoundException.class)
+    @ResponseStatus(NOT_FOUND)
+    public void holdNotFound() {
+    }
+
+    @ExceptionHandler(InvalidCursorException.class)
+    @ResponseStatus(BAD_REQUEST)
+    public void invalidCursor() {
+    }
+
+    @ExceptionHandler(InvalidCommandException.class)
+    @ResponseStatus(BAD_REQUEST)
+    public void invalidCommand() {
+    }
+
+    @ExceptionHandler(StaleCardVersionException.class)
+    @ResponseStatus(CONFLICT)
+    public void staleCardVersion() {
+    }
+
+    @ExceptionHandler(TooManySubscribersException.class)
+    @ResponseStatus(SERVICE_UNAVAILABLE)
+    public void tooManySubscribers() {
+    }
+
+    @ExceptionHandler({LimitExceededException.class, TooHighLimitPaymentException.class, NegativeLimitException.class,
+        NegativeLimitPartException.class, InvalidAmountException.class})
+    @ResponseStatus(UNPROCESSABLE_ENTITY)
+    public void declinedByCard() {
+    }
+
+    @ExceptionHandler(VelocityLimitExceededException.class)
+    @ResponseStatus(TOO_MANY_REQUESTS)
+    public void velocityLimitExceeded() {
     }
 }
@@ -0,0 +1,212 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.Money;
+import com.example.demo.domain.events.HoldCapturedEvent;
+import com.example.demo.domain.events.HoldExpiredEvent;
+import com.example.demo.domain.events.HoldReleasedEvent;
+import com.example.demo.domain.events.LimitChangedEvent;
+import com.example.demo.domain.events.LimitHeldEvent;
+import com.example.demo.domain.events.LimitPartPaidEvent;
+import com.example.demo.domain.events.LimitPartUsedEvent;
+import com.example.demo.domain.exceptions.TooManySubscribersException;
+import com.example.demo.events.Event;
+import com.example.demo.persistence.EventStore;
+import com.example.demo.persistence.LogCursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tails the committed events of all cards, or of a set of them, as server-sent events.
+ * <p>
+ * Every event is a message whose id is the {@link LogCursor} right after it, so a consumer that reconnects with it
+ * as {@code Last-Event-ID}, or passes it as {@code cursor}, resumes exactly after the last event it got. Events of
+ * other cards are skipped, and once there is nothing left to read a message with only an id moves the cursor of the
+ * consumer past them. Events are read back from the durable part of the shard logs, see
+ * {@link EventStore#readCommitted}, so none is sent that a crash could take back, and a consumer far behind catches
+ * up without holding any commit up. The messages of one read go out with a single write and flush.
+ * <p>
+ * Every subscriber has a thread of its own, which waits for the next durable batch of any shard while it has read
+ * everything and sends a comment every {@code heartbeatMillis} of silence, so a consumer that is gone is noticed.
+ * There are at most {@code maxSubscribers} of them; any further one is turned away until one of them leaves.
+ */
+@Component
+public class CardEventFeed {
+
+    /**
+     * Cursor of the first event of every shard.
+     */
+    static final String START = "start";
+
+    /**
+     * Cursor right after the last committed event of every shard, the default.
+     */
+    static final String END = "end";
+
+    private final EventStore eventStore;
+    private final long heartbeatNanos;
+    private final ThreadPoolExecutor subscribers;
+
+    public CardEventFeed(EventStore eventStore, @Value("${card.feed.heartbeat-millis:15000}") long heartbeatMillis,
+                         @Value("${card.feed.max-subscribers:256}") int maxSubscribers) {
+        this.eventStore = eventStore;
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        this.subscribers = new ThreadPoolExecutor(0, maxSubscribers, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "card-event-feed");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Starts streaming the events after the cursor, {@link #START}, {@link #END} or one handed out with an event,
+     * of the given cards or of all of them if there are none.
+     *
+     * @throws com.example.demo.domain.exceptions.InvalidCursorException if the cursor points nowhere in the log
+     * @throws TooManySubscribersException if {@code maxSubscribers} are streaming already
+     */
+    public ResponseBodyEmitter subscribe(String cursor, Set<UUID> cardIds) {
+        LogCursor from;
+        if (cursor == null || END.equals(cursor)) {
+            from = eventStore.endCursor();
+        } else if (START.equals(cursor)) {
+            from = eventStore.startCursor();
+        } else {
+            from = eventStore.parseCursor(cursor);
+        }
+
+        EventStreamEmitter emitter = new EventStreamEmitter();
+        try {
+            subscribers.execute(() -> stream(from, cardIds == null || cardIds.isEmpty() ? null : cardIds, emitter));
+        } catch (RejectedExecutionException e) {
+            throw new TooManySubscribersException();
+        }
+        return emitter;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        subscribers.shutdownNow();
+    }
+
+    private void stream(LogCursor cursor, Set<UUID> cardIds, EventStreamEmitter emitter) {
+        StringBuilder messages = new StringBuilder();
+        boolean[] skipped = new boolean[1];
+        long lastSent = System.nanoTime();
+        try {
+            while (emitter.isOpen()) {
+                boolean read = false;
+                for (int shard = 0; shard < cursor.shards(); shard++) {
+                    read |= eventStore.readCommitted(cursor, shard, (s, offset, nextOffset, event, sequence, time) -> {
+                        cursor.advance(s, nextOffset);
+                        if (cardIds == null || cardIds.contains(event.getCardId())) {
+                            appendEvent(messages, cursor, s, offset, event, sequence, time);
+                            skipped[0] = false;
+                        } else {
+                            skipped[0] = true;
+                        }
+                    });
+                    if (messages.length() > 0) {
+                        emitter.send(messages.toString(), MediaType.TEXT_PLAIN);
+                        messages.setLength(0);
+                        lastSent = System.nanoTime();
+                    }
+                }
+                if (read) {
+                    continue;
+                }
+
+                if (skipped[0]) {
+                    cursor.appendTo(messages.append("id: ")).append("\n\n");
+                    skipped[0] = false;
+                } else if (System.nanoTime() - lastSent >= heartbeatNanos) {
+                    messages.append(":\n\n");
+                }
+                if (messages.length() > 0) {
+                    emitter.send(messages.toString(), MediaType.TEXT_PLAIN);
+                    messages.setLength(0);
+                    lastSent = System.nanoTime();
+                }
+                long untilHeartbeat = heartbeatNanos - (System.nanoTime() - lastSent);
+                eventStore.awaitCommitted(cursor, Math.max(TimeUnit.NANOSECONDS.toMillis(untilHeartbeat), 1));
+            }
+        } catch (IOException e) {
+            // the consumer is gone, which also completes the request
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            emitter.completeWithError(e);
+            return;
+        }
+        emitter.complete();
+    }
+
+    private static void appendEvent(StringBuilder messages, LogCursor cursor, int shard, long offset, Event event,
+                                    long sequence, long timestamp) {
+        cursor.appendTo(messages.append("id: "))
+            .append("\nevent: ").append(event.getClass().getSimpleName())
+            .append("\ndata: {\"shard\":").append(shard)
+            .append(",\"offset\":").append(offset)
+            .append(",\"cardId\":\"").append(event.getCardId())
+            .append("\",\"sequence\":").append(sequence)
+            .append(",\"timestamp\":").append(timestamp)
+            .append(",\"amount\":\"");
+        Money.appendPlain(messages, amountOf(event).getMinorUnits()).append("\"}\n\n");
+    }
+
+    private static Money amountOf(Event event) {
+        if (event instanceof LimitChangedEvent) {
+            return ((LimitChangedEvent) event).getLimit();
+        } else if (event instanceof LimitPartUsedEvent) {
+            return ((LimitPartUsedEvent) event).getLimitPartValue();
+        } else if (event instanceof LimitPartPaidEvent) {
+            return ((LimitPartPaidEvent) event).getLimitPartValue();
+        } else if (event instanceof LimitHeldEvent) {
+            return ((LimitHeldEvent) event).getAmount();
+        } else if (event instanceof HoldCapturedEvent) {
+            return ((HoldCapturedEvent) event).getAmount();
+        } else if (event instanceof HoldReleasedEvent) {
+            return ((HoldReleasedEvent) event).getAmount();
+        } else if (event instanceof HoldExpiredEvent) {
+            return ((HoldExpiredEvent) event).getAmount();
+        }
+        throw new IllegalArgumentException("Unsupported event type: " + event.getClass().getName());
+    }
+
+    /**
+     * Streams raw {@code text/event-stream} messages without a timeout, for as long as the consumer stays.
+     */
+    private static final class EventStreamEmitter extends ResponseBodyEmitter {
+
+        private volatile boolean open = true;
+
+        EventStreamEmitter() {
+            super(0L);
+            onCompletion(() -> open = false);
+            onError(failure -> open = false);
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        protected void extendResponse(ServerHttpResponse outputMessage) {
+            super.extendResponse(outputMessage);
+            outputMessage.getHeaders().setContentType(MediaType.TEXT_EVENT_STREAM);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.demo.application;
+
+import com.example.demo.application.requests.ImportCardRequest;
+import com.example.demo.application.responses.ImportItemResponse;
+import com.example.demo.domain.Money;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Streams a bulk import of cards: reads one {@link ImportCardRequest} per line of newline delimited JSON and writes
+ * one {@link ImportItemResponse} per line back, in the order of the input.
+ * <p>
+ * Lines are gathered into chunks of {@code batchSize} cards, each of which is handed to
+ * {@link CardService#importCardsAsync} as a whole and so written to the event log in one go. Reading goes on while
+ * up to {@code maxPendingChunks} chunks wait to become durable, and the results of every chunk are written and
+ * flushed as soon as it and all chunks before it are. Memory therefore stays bounded by those chunks, however long
+ * the body is.
+ */
+@Component
+public class CardImporter {
+
+    /**
+     * Rejection of a line that is no card with both an id and a limit.
+     */
+    static final String INVALID_LINE = "InvalidLine";
+
+    private final CardService cardService;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final int maxPendingChunks;
+
+    public CardImporter(CardService cardService,
+                        ObjectMapper objectMapper,
+                        @Value("${card.import.batch-size:1000}") int batchSize,
+                        @Value("${card.import.max-pending-chunks:4}") int maxPendingChunks) {
+        this.cardService = cardService;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.maxPendingChunks = maxPendingChunks;
+    }
+
+    public void importCards(InputStream body, OutputStream results) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(results, UTF_8));
+        Queue<Chunk> pending = new ArrayDeque<>();
+
+        Chunk chunk = new Chunk(batchSize);
+        long line = 0;
+        for (String text = reader.readLine(); text != null; text = reader.readLine()) {
+            line++;
+            if (text.isBlank()) {
+                continue;
+            }
+            read(chunk, line, text);
+            if (chunk.size() == batchSize) {
+                pending.add(chunk.submit(cardService));
+                writeCompleted(pending, writer, maxPendingChunks);
+                chunk = new Chunk(batchSize);
+            }
+        }
+        if (chunk.size() > 0) {
+            pending.add(chunk.submit(cardService));
+        }
+        writeCompleted(pending, writer, 0);
+    }
+
+    private void read(Chunk chunk, long line, String text) {
+        ImportCardRequest request;
+        try {
+            request = objectMapper.readValue(text, ImportCardRequest.class);
+        } catch (JsonProcessingException e) {
+            chunk.reject(line, INVALID_LINE);
+            return;
+        }
+        if (request.getCardId() == null || request.getLimit() == null) {
+            chunk.reject(line, INVALID_LINE);
+            return;
+        }
+
+        try {
+            chunk.add(line, new ImportedCard(request.getCardId(), Money.of(request.getLimit())));
+        } catch (RuntimeException e) {
+            chunk.reject(line, e.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Writes the results of the chunks at the head of the queue that are done, waiting for the oldest ones while
+     * more than {@code maxPending} are left.
+     */
+    private void writeCompleted(Queue<Chunk> pending, Writer writer, int maxPending) throws IOException {
+        boolean written = false;
+        while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > maxPending)) {
+            for (ImportItemResponse response : pending.remove().responses()) {
+                writer.write(objectMapper.writeValueAsString(response));
+                writer.write('\n');
+            }
+            written = true;
+        }
+        if (written) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * The lines of one chunk, each either a card to import or already rejected.
+     */
+    private static final class Chunk {
+
+        private final long[] lines;
+        private final String[] rejections;
+        private final List<ImportedCard> cards;
+        private int size;
+        private CompletableFuture<List<CommandResult>> results;
+
+        Chunk(int capacity) {
+            lines = new long[capacity];
+            rejections = new String[capacity];
+            cards = new ArrayList<>(capacity);
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(long line, ImportedCard card) {
+            lines[size++] = line;
+            cards.add(card);
+        }
+
+        void reject(long line, String rejection) {
+            rejections[size] = rejection;
+            lines[size++] = line;
+        }
+
+        Chunk submit(CardService cardService) {
+            results = cardService.importCardsAsync(cards);
+            return this;
+        }
+
+        boolean isDone() {
+            return results.isDone();
+        }
+
+        List<ImportItemResponse> responses() {
+            List<CommandResult> imported = results.join();
+            List<ImportItemResponse> responses = new ArrayList<>(size);
+            int next = 0;
+            for (int i = 0; i < size; i++) {
+                responses.add(rejections[i] != null
+                    ? ImportItemResponse.rejected(lines[i], rejections[i])
+                    : ImportItemResponse.from(lines[i], imported.get(next++)));
+            }
+            return responses;
+        }
+    }
+}
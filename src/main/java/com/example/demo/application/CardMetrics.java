@@ -0,0 +1,180 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.exceptions.CardNotFoundException;
+import com.example.demo.domain.exceptions.HoldNotFoundException;
+import com.example.demo.domain.exceptions.InvalidAmountException;
+import com.example.demo.domain.exceptions.LimitExceededException;
+import com.example.demo.domain.exceptions.NegativeLimitException;
+import com.example.demo.domain.exceptions.NegativeLimitPartException;
+import com.example.demo.domain.exceptions.StaleCardVersionException;
+import com.example.demo.domain.exceptions.TooHighLimitPaymentException;
+import com.example.demo.domain.exceptions.VelocityLimitExceededException;
+import com.example.demo.persistence.EventStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency, outcome and store size metrics of card operations.
+ * <p>
+ * Every meter is registered up front and looked up by enum or exception class only, so recording a command is a
+ * couple of array and map reads plus the meter update itself, with no tags built and nothing allocated per call.
+ * Rejections are counted by the simple name of the exception that declined the command.
+ */
+@Component
+public class CardMetrics {
+
+    private static final String COMMANDS = "card.commands";
+    private static final String ACCEPTED = "card.commands.accepted";
+    private static final String REJECTED = "card.commands.rejected";
+    private static final String DUPLICATES = "card.commands.duplicates";
+    private static final List<Class<? extends RuntimeException>> KNOWN_REJECTIONS = List.of(
+        LimitExceededException.class,
+        TooHighLimitPaymentException.class,
+        NegativeLimitException.class,
+        NegativeLimitPartException.class,
+        InvalidAmountException.class,
+        CardNotFoundException.class,
+        StaleCardVersionException.class,
+        HoldNotFoundException.class,
+        VelocityLimitExceededException.class);
+
+    private final MeterRegistry registry;
+    private final Map<CardCommand.Type, Timer> latencies = new EnumMap<>(CardCommand.Type.class);
+    private final Map<CardCommand.Type, Counter> accepted = new EnumMap<>(CardCommand.Type.class);
+    private final Map<CardCommand.Type, Map<Class<?>, Counter>> rejected = new EnumMap<>(CardCommand.Type.class);
+    private final Map<CardCommand.Type, Counter> duplicates = new EnumMap<>(CardCommand.Type.class);
+    private final Timer createLatency;
+    private final Timer readLatency;
+    private final Timer batchLatency;
+    private final Timer importLatency;
+    private final Counter retries;
+
+    public CardMetrics(MeterRegistry registry, EventStore eventStore) {
+        this.registry = registry;
+
+        for (CardCommand.Type type : CardCommand.Type.values()) {
+            String command = type.name().toLowerCase();
+            latencies.put(type, timer(command));
+            accepted.put(type, registry.counter(ACCEPTED, "command", command));
+            duplicates.put(type, registry.counter(DUPLICATES, "command", command));
+
+            Map<Class<?>, Counter> rejections = new ConcurrentHashMap<>();
+            for (Class<? extends RuntimeException> exception : KNOWN_REJECTIONS) {
+                rejections.put(exception, rejectionCounter(type, exception));
+            }
+            rejected.put(type, rejections);
+        }
+        createLatency = timer("create");
+        readLatency = timer("read");
+        batchLatency = timer("batch");
+        importLatency = timer("import");
+        retries = registry.counter("card.commands.retries");
+
+        Gauge.builder("card.store.cards", eventStore, EventStore::size)
+            .description("Cards held in memory")
+            .register(registry);
+        Gauge.builder("card.store.events", eventStore, EventStore::eventCount)
+            .description("Events committed to all cards")
+            .register(registry);
+        Gauge.builder("card.store.memory", eventStore, EventStore::estimatedMemoryBytes)
+            .description("Estimated heap held by the card map")
+            .baseUnit("bytes")
+            .register(registry);
+        FunctionCounter.builder("card.store.cache.hits", eventStore, store -> store.cacheStats().getHits())
+            .description("Cards found in the cache")
+            .register(registry);
+        FunctionCounter.builder("card.store.cache.misses", eventStore, store -> store.cacheStats().getMisses())
+            .description("Cards read from a snapshot because they were not cached")
+            .register(registry);
+        FunctionCounter.builder("card.store.cache.evictions", eventStore, store -> store.cacheStats().getEvictions())
+            .description("Cards dropped from the cache to make room")
+            .register(registry);
+        Gauge.builder("card.event-log.size", eventStore, EventStore::logSize)
+            .description("Bytes written to the event log")
+            .baseUnit("bytes")
+            .register(registry);
+    }
+
+    void recordAccepted(CardCommand.Type type, long startNanos) {
+        latencies.get(type).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        accepted.get(type).increment();
+    }
+
+    void recordRejected(CardCommand.Type type, RuntimeException failure, long startNanos) {
+        latencies.get(type).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        countRejected(type, failure);
+    }
+
+    /**
+     * Counts the outcome of a command that was timed as part of a batch.
+     */
+    void countOutcome(CardCommand.Type type, RuntimeException failure) {
+        if (failure == null) {
+            accepted.get(type).increment();
+        } else {
+            countRejected(type, failure);
+        }
+    }
+
+    void recordCreate(long startNanos) {
+        createLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordRead(long startNanos) {
+        readLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordBatch(long startNanos) {
+        batchLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records a chunk of cards imported at once.
+     */
+    void recordImport(long startNanos) {
+        importLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void countRetry() {
+        retries.increment();
+    }
+
+    /**
+     * Counts a command answered with the outcome of an earlier one under the same idempotency key.
+     */
+    void countDuplicate(CardCommand.Type type) {
+        duplicates.get(type).increment();
+    }
+
+    private void countRejected(CardCommand.Type type, RuntimeException failure) {
+        Map<Class<?>, Counter> rejections = rejected.get(type);
+        Counter counter = rejections.get(failure.getClass());
+        if (counter == null) {
+            // only reached once for every unexpected exception type
+            counter = rejections.computeIfAbsent(failure.getClass(), exception -> rejectionCounter(type, exception));
+        }
+        counter.increment();
+    }
+
+    private Counter rejectionCounter(CardCommand.Type type, Class<?> exception) {
+        return registry.counter(REJECTED, "command", type.name().toLowerCase(), "exception", exception.getSimpleName());
+    }
+
+    private Timer timer(String command) {
+        return Timer.builder(COMMANDS)
+            .tag("command", command)
+            .publishPercentiles(0.5, 0.99, 0.999)
+            .publishPercentileHistogram()
+            .register(registry);
+    }
+}
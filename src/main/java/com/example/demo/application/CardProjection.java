@@ -0,0 +1,88 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.CardSnapshot;
+import com.example.demo.domain.Money;
+import com.example.demo.persistence.CommitListener;
+import com.example.demo.persistence.EventStore;
+import com.example.demo.persistence.StoreLayout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Read side of the cards: the {@link com.example.demo.application.responses.CardResponse} of every card, already
+ * encoded as JSON.
+ * <p>
+ * The view of a card is rebuilt by the writer on each commit and replaced as a whole, so a reader only looks the
+ * bytes up and copies them out. It never takes a lock and never sees a half applied command.
+ * <p>
+ * The views cost more memory than the cards themselves, so they are only kept by default with the
+ * {@link StoreLayout#HEAP} layout. With the layouts meant for very many cards, or with
+ * {@code card.projection.precomputed=false}, the JSON is encoded from the committed state of the card on every read
+ * instead. The {@link StoreLayout#CACHED} layout keeps only some of the cards in memory, so views of every card
+ * cannot go with it. Either way every read is timed as a read of {@link CardMetrics}.
+ */
+@Component
+public class CardProjection implements CommitListener {
+
+    private final Map<UUID, byte[]> views = new ConcurrentHashMap<>();
+    private final EventStore eventStore;
+    private final CardMetrics metrics;
+    private final boolean precomputed;
+
+    public CardProjection(EventStore eventStore, CardMetrics metrics,
+                          @Value("${card.projection.precomputed:#{null}}") Boolean precomputed) {
+        if (eventStore.layout() == StoreLayout.CACHED && Boolean.TRUE.equals(precomputed)) {
+            throw new IllegalStateException("Views of every card do not fit the CACHED layout, which keeps only some "
+                + "of the cards in memory, so card.projection.precomputed cannot go with it");
+        }
+        this.eventStore = eventStore;
+        this.metrics = metrics;
+        this.precomputed = precomputed != null ? precomputed : eventStore.layout() == StoreLayout.HEAP;
+        if (this.precomputed) {
+            eventStore.addCommitListener(this);
+        }
+    }
+
+    /**
+     * Returns the JSON of the card, or {@code null} for an unknown card.
+     */
+    public byte[] json(UUID cardId) {
+        long start = System.nanoTime();
+        byte[] json;
+        if (precomputed) {
+            json = views.get(cardId);
+        } else {
+            CardSnapshot card = eventStore.snapshotOf(cardId);
+            json = card == null ? null : encode(card);
+        }
+        metrics.recordRead(start);
+        return json;
+    }
+
+    @Override
+    public void onCommit(CardSnapshot card) {
+        views.put(card.getCardId(), encode(card));
+    }
+
+    @Override
+    public void onClear() {
+        views.clear();
+    }
+
+    private static byte[] encode(CardSnapshot card) {
+        long availableLimit = Money.subtract(Money.subtract(card.getLimit(), card.getUsedLimit()), card.getHeldLimit());
+        StringBuilder json = new StringBuilder(96)
+            .append("{\"cardId\":\"").append(card.getCardId())
+            .append("\",\"availableLimit\":\"");
+        Money.appendPlain(json, availableLimit)
+            .append("\",\"version\":").append(card.getVersion())
+            .append('}');
+        return json.toString().getBytes(US_ASCII);
+    }
+}
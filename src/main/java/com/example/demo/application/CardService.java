@@ -1,51 +1,554 @@
 package com.example.demo.application;
 
 import com.example.demo.domain.Card;
+import com.example.demo.domain.Hold;
+import com.example.demo.domain.Money;
+import com.example.demo.domain.events.LimitChangedEvent;
+import com.example.demo.domain.exceptions.CardAlreadyExistsException;
+import com.example.demo.domain.exceptions.CardNotFoundException;
+import com.example.demo.domain.exceptions.HoldNotFoundException;
+import com.example.demo.domain.exceptions.StaleCardVersionException;
+import com.example.demo.domain.exceptions.VelocityLimitExceededException;
+import com.example.demo.persistence.EventStore;
+import com.example.demo.persistence.ExposureStats;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.math.BigDecimal;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-import static com.example.demo.persistence.EventStore.eventStore;
+import static com.example.demo.application.CardCommand.Type.CAPTURE;
+import static com.example.demo.application.CardCommand.Type.CHANGE;
+import static com.example.demo.application.CardCommand.Type.EXPIRE;
+import static com.example.demo.application.CardCommand.Type.HOLD;
+import static com.example.demo.application.CardCommand.Type.PAY;
+import static com.example.demo.application.CardCommand.Type.RELEASE;
+import static com.example.demo.application.CardCommand.Type.USE;
+import static com.example.demo.application.ConcurrencyMode.MAILBOX;
 
 @Service
 public class CardService {
 
+    private final EventStore eventStore;
+    private final CardCommandExecutor executor;
+    private final CardMetrics metrics;
+    private final VelocityLimits velocityLimits;
+    private final ConcurrencyMode concurrencyMode;
+    private final int maxRetries;
+    private final IdempotentCommands idempotentCommands;
+    private final long holdTtlSeconds;
+    private final HoldExpiry holdExpiry;
+
+    public CardService(EventStore eventStore,
+                       CardCommandExecutor executor,
+                       CardMetrics metrics,
+                       VelocityLimits velocityLimits,
+                       @Value("${card.concurrency.mode:MAILBOX}") ConcurrencyMode concurrencyMode,
+                       @Value("${card.concurrency.max-retries:5}") int maxRetries,
+                       @Value("${card.holds.ttl-seconds:604800}") long holdTtlSeconds,
+                       Optional<HoldExpiry> holdExpiry) {
+        this.eventStore = eventStore;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.velocityLimits = velocityLimits;
+        this.concurrencyMode = concurrencyMode;
+        this.maxRetries = maxRetries;
+        this.idempotentCommands = new IdempotentCommands(eventStore);
+        this.holdTtlSeconds = holdTtlSeconds;
+        this.holdExpiry = holdExpiry.orElse(null);
+        if (this.holdExpiry != null) {
+            // holds placed before a restart expire as well
+            eventStore.forEachOpenHold(this.holdExpiry::schedule);
+            this.holdExpiry.start(this::expireOnTime);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (holdExpiry != null) {
+            holdExpiry.shutdown();
+        }
+    }
+
     public Card createCard() {
+        return join(createCardAsync());
+    }
+
+    /**
+     * Same as {@link #createCard()}, but completes once the card is durable instead of waiting for it. The other
+     * {@code *Async} commands likewise leave the calling thread free while the command waits in its mailbox and
+     * for the log to be synced.
+     */
+    public CompletableFuture<Card> createCardAsync() {
+        long start = System.nanoTime();
         UUID id = UUID.randomUUID();
 
         Card card = new Card(id);
+        // an explicit zero limit is what makes a fresh card survive a restart
+        card.changeLimit(Money.ZERO);
 
-        eventStore.put(id, card);
+        // nobody else knows the id yet, so the commit cannot conflict
+        return eventStore.commit(card).thenApply(durable -> {
+            metrics.recordCreate(start);
+            return card;
+        });
+    }
 
+    public Card readCard(UUID cardId) {
+        long start = System.nanoTime();
+        Card card = eventStore.get(cardId);
+        metrics.recordRead(start);
         return card;
     }
 
-    public Card readCard(UUID cardId) {
-        return eventStore.get(cardId);
+    /**
+     * Returns the card as it was at the instant, or {@code null} if it had not been created by then.
+     */
+    public Card readCardAsOf(UUID cardId, Instant asOf) {
+        long start = System.nanoTime();
+        Card card = eventStore.getAsOf(cardId, asOf);
+        metrics.recordRead(start);
+        return card;
     }
 
-    public void changeLimit(UUID cardId, BigDecimal limit) {
-        Card card = eventStore.get(cardId);
+    /**
+     * Totals over all cards, kept up to date by every commit, see {@link EventStore#exposure()}.
+     */
+    public ExposureStats readStats() {
+        return eventStore.exposure();
+    }
 
-        card.changeLimit(limit);
+    public void changeLimit(UUID cardId, Money limit) {
+        changeLimit(cardId, limit, null);
+    }
 
-        eventStore.put(cardId, card);
+    public void changeLimit(UUID cardId, Money limit, Long expectedVersion) {
+        join(changeLimitAsync(cardId, limit, expectedVersion));
     }
 
-    public void useLimit(UUID cardId, BigDecimal limit) {
-        Card card = eventStore.get(cardId);
+    public CompletableFuture<Void> changeLimitAsync(UUID cardId, Money limit, Long expectedVersion) {
+        return changeLimitAsync(cardId, limit, expectedVersion, null);
+    }
+
+    /**
+     * Same as {@link #changeLimitAsync(UUID, Money, Long)}, but runs at most once per idempotency key of the card;
+     * a repeated key gets the outcome of the first command, see {@link IdempotentCommands}. The same goes for the
+     * other commands taking a key.
+     */
+    public CompletableFuture<Void> changeLimitAsync(UUID cardId, Money limit, Long expectedVersion,
+                                                    String idempotencyKey) {
+        return execute(cardId, CHANGE, expectedVersion, idempotencyKey, card -> card.changeLimit(limit));
+    }
+
+    public void useLimit(UUID cardId, Money limit) {
+        useLimit(cardId, limit, null);
+    }
+
+    public void useLimit(UUID cardId, Money limit, Long expectedVersion) {
+        join(useLimitAsync(cardId, limit, expectedVersion));
+    }
+
+    public CompletableFuture<Void> useLimitAsync(UUID cardId, Money limit, Long expectedVersion) {
+        return useLimitAsync(cardId, limit, expectedVersion, null);
+    }
+
+    /**
+     * Same as {@link #useLimitAsync(UUID, Money, Long)} with an idempotency key. A use that would go over the
+     * {@link VelocityLimits} of the card is declined before it reaches the card.
+     *
+     * @throws VelocityLimitExceededException through the future if the card has used too much too fast
+     */
+    public CompletableFuture<Void> useLimitAsync(UUID cardId, Money limit, Long expectedVersion,
+                                                 String idempotencyKey) {
+        return execute(cardId, USE, expectedVersion, idempotencyKey, limit, card -> card.useLimit(limit));
+    }
+
+    public void payLimit(UUID cardId, Money limit) {
+        payLimit(cardId, limit, null);
+    }
+
+    public void payLimit(UUID cardId, Money limit, Long expectedVersion) {
+        join(payLimitAsync(cardId, limit, expectedVersion));
+    }
+
+    public CompletableFuture<Void> payLimitAsync(UUID cardId, Money limit, Long expectedVersion) {
+        return payLimitAsync(cardId, limit, expectedVersion, null);
+    }
 
-        card.useLimit(limit);
+    public CompletableFuture<Void> payLimitAsync(UUID cardId, Money limit, Long expectedVersion,
+                                                 String idempotencyKey) {
+        return execute(cardId, PAY, expectedVersion, idempotencyKey, card -> card.payLimit(limit));
+    }
+
+    public Hold holdLimit(UUID cardId, Money amount) {
+        return join(holdLimitAsync(cardId, amount, null));
+    }
+
+    /**
+     * Earmarks part of the available limit for a payment to be captured later, and completes with the hold once it
+     * is durable. The hold expires after {@code ttlSeconds}, {@code card.holds.ttl-seconds} if {@code null}, unless
+     * it is captured or released first. The amount counts against the {@link VelocityLimits} of the card as a use.
+     *
+     * @throws VelocityLimitExceededException through the future if the card has used too much too fast
+     */
+    public CompletableFuture<Hold> holdLimitAsync(UUID cardId, Money amount, Long ttlSeconds) {
+        return holdLimitAsync(cardId, amount, ttlSeconds, null);
+    }
+
+    /**
+     * Same as {@link #holdLimitAsync(UUID, Money, Long)} with an idempotency key. A repeated key gets the hold
+     * placed by the first command, or a {@link HoldNotFoundException} once that hold is closed.
+     */
+    public CompletableFuture<Hold> holdLimitAsync(UUID cardId, Money amount, Long ttlSeconds,
+                                                  String idempotencyKey) {
+        return idempotentCommands.execute(cardId, idempotencyKey, () -> metrics.countDuplicate(HOLD),
+            () -> placeHold(cardId, amount, ttlSeconds, idempotencyKey),
+            () -> {
+                Hold hold = eventStore.openHoldPlacedUnder(cardId, idempotencyKey);
+                if (hold == null) {
+                    throw new HoldNotFoundException();
+                }
+                return hold;
+            });
+    }
+
+    private CompletableFuture<Hold> placeHold(UUID cardId, Money amount, Long ttlSeconds, String idempotencyKey) {
+        long start = System.nanoTime();
+        long expiresAt = System.currentTimeMillis()
+            + TimeUnit.SECONDS.toMillis(ttlSeconds == null ? holdTtlSeconds : ttlSeconds);
+        long acquiredIn;
+        try {
+            acquiredIn = acquireVelocity(cardId, amount);
+        } catch (VelocityLimitExceededException e) {
+            metrics.recordRejected(HOLD, e, start);
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<Hold> result = releaseVelocityOnFailure(cardId, amount, acquiredIn,
+            submit(cardId, true, idempotencyKey,
+                card -> new Hold(cardId, card.holdLimit(amount, expiresAt), amount, expiresAt)));
+        return result.whenComplete((hold, failure) -> {
+            if (failure == null) {
+                if (holdExpiry != null) {
+                    holdExpiry.schedule(hold);
+                }
+                metrics.recordAccepted(HOLD, start);
+            } else {
+                metrics.recordRejected(HOLD, unwrap(failure), start);
+            }
+        });
+    }
+
+    public void captureHold(UUID cardId, long holdId) {
+        join(captureHoldAsync(cardId, holdId, null));
+    }
 
-        eventStore.put(cardId, card);
+    /**
+     * Turns the whole amount of an open hold into used limit.
+     *
+     * @throws HoldNotFoundException through the future if the card has no such hold or it is closed already
+     */
+    public CompletableFuture<Void> captureHoldAsync(UUID cardId, long holdId, String idempotencyKey) {
+        return execute(cardId, CAPTURE, null, idempotencyKey, card -> card.captureHold(openHold(cardId, holdId)));
     }
 
-    public void payLimit(UUID cardId, BigDecimal limit) {
+    public void releaseHold(UUID cardId, long holdId) {
+        join(releaseHoldAsync(cardId, holdId, null));
+    }
+
+    /**
+     * Gives the amount of an open hold back to the available limit.
+     *
+     * @throws HoldNotFoundException through the future if the card has no such hold or it is closed already
+     */
+    public CompletableFuture<Void> releaseHoldAsync(UUID cardId, long holdId, String idempotencyKey) {
+        return execute(cardId, RELEASE, null, idempotencyKey, card -> card.releaseHold(openHold(cardId, holdId)));
+    }
+
+    /**
+     * Gives the amount of the hold back to the available limit because its time is up, see {@link HoldExpiry}.
+     */
+    CompletableFuture<Void> expireHoldAsync(Hold hold) {
+        return execute(hold.getCardId(), EXPIRE, null, null,
+            card -> card.expireHold(openHold(hold.getCardId(), hold.getHoldId())));
+    }
+
+    /**
+     * Applies many commands at once. Commands are grouped by card; each group runs in order as a single command
+     * of that card and commits all of its events together. A declined command does not stop the rest of its
+     * group. Uses count against the {@link VelocityLimits} of their card, in the order of the commands, and one over
+     * a cap is declined without reaching the card. Results come back in the order of the commands.
+     */
+    public List<CommandResult> executeBatch(List<CardCommand> commands) {
+        return join(executeBatchAsync(commands));
+    }
+
+    public CompletableFuture<List<CommandResult>> executeBatchAsync(List<CardCommand> commands) {
+        long start = System.nanoTime();
+        CommandResult[] results = new CommandResult[commands.size()];
+        long[] acquiredIn = new long[commands.size()];
+        Map<UUID, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            CardCommand command = commands.get(i);
+            try {
+                acquiredIn[i] = command.getType() == USE
+                    ? acquireVelocity(command.getCardId(), command.getAmount()) : -1;
+            } catch (VelocityLimitExceededException e) {
+                results[i] = new CommandResult(command.getCardId(), e);
+                continue;
+            }
+            groups.computeIfAbsent(command.getCardId(), cardId -> new ArrayList<>()).add(i);
+        }
+
+        List<CompletableFuture<?>> pending = new ArrayList<>(groups.size());
+        groups.forEach((cardId, indices) -> pending.add(
+            submit(cardId, true, null, card -> applyGroup(card, commands, indices, results))
+                .exceptionally(failure -> {
+                    RuntimeException cause = unwrap(failure);
+                    indices.forEach(i -> results[i] = new CommandResult(cardId, cause));
+                    return null;
+                })));
+
+        return CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).thenApply(done -> {
+            for (int i = 0; i < results.length; i++) {
+                if (acquiredIn[i] >= 0 && results[i].getFailure() != null) {
+                    CardCommand command = commands.get(i);
+                    velocityLimits.release(command.getCardId(), command.getAmount(), acquiredIn[i]);
+                }
+                metrics.countOutcome(commands.get(i).getType(), results[i].getFailure());
+            }
+            metrics.recordBatch(start);
+
+            return Arrays.asList(results);
+        });
+    }
+
+    private static Void applyGroup(Card card, List<CardCommand> commands, List<Integer> indices,
+                                   CommandResult[] results) {
+        for (int i : indices) {
+            CardCommand command = commands.get(i);
+            RuntimeException failure = null;
+            try {
+                declineUnexpectedVersion(card, command.getExpectedVersion());
+                command.applyTo(card);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            results[i] = new CommandResult(card.getId(), failure);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the cards under the ids the client chose, each with a single {@link LimitChangedEvent} setting its
+     * initial limit, and completes with a result per card in their order once all of them are durable. The cards are
+     * committed together, see {@link EventStore#commitAll}, and an id that is already taken, also by an earlier card
+     * of the same call, is declined with a {@link CardAlreadyExistsException}.
+     */
+    public CompletableFuture<List<CommandResult>> importCardsAsync(List<ImportedCard> cards) {
+        long start = System.nanoTime();
+        CommandResult[] results = new CommandResult[cards.size()];
+        List<Card> created = new ArrayList<>(cards.size());
+        List<Integer> positions = new ArrayList<>(cards.size());
+        for (int i = 0; i < cards.size(); i++) {
+            Card card = new Card(cards.get(i).getCardId());
+            try {
+                card.changeLimit(cards.get(i).getLimit());
+            } catch (RuntimeException e) {
+                results[i] = new CommandResult(card.getId(), e);
+                continue;
+            }
+            created.add(card);
+            positions.add(i);
+        }
+
+        // a fresh card is committed from version 0, so the store declines it as stale if the id is taken
+        List<CompletableFuture<Void>> durable = eventStore.commitAll(created);
+        CompletableFuture<?>[] pending = new CompletableFuture[durable.size()];
+        for (int i = 0; i < durable.size(); i++) {
+            UUID cardId = created.get(i).getId();
+            int position = positions.get(i);
+            pending[i] = durable.get(i).handle((done, failure) -> {
+                RuntimeException cause = failure == null ? null : unwrap(failure);
+                results[position] = new CommandResult(cardId,
+                    cause instanceof StaleCardVersionException ? new CardAlreadyExistsException() : cause);
+                return null;
+            });
+        }
+
+        return CompletableFuture.allOf(pending).thenApply(done -> {
+            metrics.recordImport(start);
+            return Arrays.asList(results);
+        });
+    }
+
+    private CompletableFuture<Void> execute(UUID cardId, CardCommand.Type type, Long expectedVersion,
+                                            String idempotencyKey, Consumer<Card> command) {
+        return execute(cardId, type, expectedVersion, idempotencyKey, null, command);
+    }
+
+    /**
+     * Runs the command as a command of the type. A command that uses {@code spent} of the limit counts it against
+     * the {@link VelocityLimits} of the card first, and gives it back there if it fails.
+     */
+    private CompletableFuture<Void> execute(UUID cardId, CardCommand.Type type, Long expectedVersion,
+                                            String idempotencyKey, Money spent, Consumer<Card> command) {
+        return idempotentCommands.execute(cardId, idempotencyKey, () -> metrics.countDuplicate(type), () -> {
+            long start = System.nanoTime();
+            long acquiredIn;
+            try {
+                acquiredIn = spent != null ? acquireVelocity(cardId, spent) : -1;
+            } catch (VelocityLimitExceededException e) {
+                metrics.recordRejected(type, e, start);
+                return CompletableFuture.failedFuture(e);
+            }
+
+            // a caller that pinned the version must see the conflict, a retry would apply to a state it never saw
+            CompletableFuture<Void> result = releaseVelocityOnFailure(cardId, spent, acquiredIn,
+                submit(cardId, expectedVersion == null, idempotencyKey, card -> {
+                    declineUnexpectedVersion(card, expectedVersion);
+                    command.accept(card);
+                    return null;
+                }));
+            return result.whenComplete((done, failure) -> {
+                if (failure == null) {
+                    metrics.recordAccepted(type, start);
+                } else {
+                    metrics.recordRejected(type, unwrap(failure), start);
+                }
+            });
+        });
+    }
+
+    /**
+     * Counts a use of the amount against the {@link VelocityLimits} of the card and returns the bucket it went to,
+     * or {@code -1} if they are off.
+     *
+     * @throws VelocityLimitExceededException if the card has used too much too fast
+     */
+    private long acquireVelocity(UUID cardId, Money amount) {
+        return velocityLimits.isEnabled() ? velocityLimits.acquire(cardId, amount, System.currentTimeMillis()) : -1;
+    }
+
+    /**
+     * Gives a use acquired in {@code acquiredIn} back to the {@link VelocityLimits} if the command fails.
+     */
+    private <T> CompletableFuture<T> releaseVelocityOnFailure(UUID cardId, Money amount, long acquiredIn,
+                                                              CompletableFuture<T> result) {
+        if (acquiredIn < 0) {
+            return result;
+        }
+        return result.whenComplete((done, failure) -> {
+            if (failure != null) {
+                velocityLimits.release(cardId, amount, acquiredIn);
+            }
+        });
+    }
+
+    /**
+     * Runs the command and completes once its changes are durable. A mailbox moves on to the next command of its
+     * cards as soon as the changes are committed, so it never sits idle while the log is synced. A mailbox that
+     * turns the command away, because it is full or shut down, fails the future rather than throwing.
+     */
+    private <T> CompletableFuture<T> submit(UUID cardId, boolean retryOnConflict, String idempotencyKey,
+                                            Function<Card, T> command) {
+        if (concurrencyMode == MAILBOX) {
+            try {
+                return executor.submit(cardId, () -> apply(cardId, idempotencyKey, command))
+                    .thenCompose(Function.identity());
+            } catch (RejectedExecutionException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        try {
+            return applyOptimistically(cardId, retryOnConflict, idempotencyKey, command);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Retries a command that lost the race for the card against another writer, up to {@code maxRetries} times.
+     */
+    private <T> CompletableFuture<T> applyOptimistically(UUID cardId, boolean retryOnConflict, String idempotencyKey,
+                                                         Function<Card, T> command) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return apply(cardId, idempotencyKey, command);
+            } catch (StaleCardVersionException e) {
+                if (!retryOnConflict || attempt >= maxRetries) {
+                    throw e;
+                }
+                metrics.countRetry();
+            }
+        }
+    }
+
+    /**
+     * Expires a hold that is due. A hold that is closed already is left alone, and one that could not be expired
+     * for another reason comes back with the next tick.
+     */
+    private void expireOnTime(Hold hold) {
+        expireHoldAsync(hold).whenComplete((done, failure) -> {
+            RuntimeException cause = failure == null ? null : unwrap(failure);
+            boolean closed = cause instanceof HoldNotFoundException || cause instanceof CardNotFoundException;
+            if (cause != null && !closed) {
+                holdExpiry.schedule(hold);
+            }
+        });
+    }
+
+    private Hold openHold(UUID cardId, long holdId) {
+        Hold hold = eventStore.openHold(cardId, holdId);
+        if (hold == null) {
+            throw new HoldNotFoundException();
+        }
+        return hold;
+    }
+
+    private <T> CompletableFuture<T> apply(UUID cardId, String idempotencyKey, Function<Card, T> command) {
         Card card = eventStore.get(cardId);
+        if (card == null) {
+            throw new CardNotFoundException();
+        }
+
+        T result = command.apply(card);
 
-        card.payLimit(limit);
+        return eventStore.commit(card, idempotencyKey).thenApply(durable -> result);
+    }
+
+    private static void declineUnexpectedVersion(Card card, Long expectedVersion) {
+        if (expectedVersion != null && expectedVersion != card.getVersion()) {
+            throw new StaleCardVersionException();
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw unwrap(e);
+        }
+    }
 
-        eventStore.put(cardId, card);
+    private static RuntimeException unwrap(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new CompletionException(cause);
     }
 }
@@ -0,0 +1,18 @@
+package com.example.demo.application;
+
+import lombok.Value;
+
+import java.util.UUID;
+
+@Value
+public class CommandResult {
+    UUID cardId;
+    /**
+     * Why the command was declined, {@code null} if it was committed.
+     */
+    RuntimeException failure;
+
+    public boolean isAccepted() {
+        return failure == null;
+    }
+}
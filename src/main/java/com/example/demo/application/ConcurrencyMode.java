@@ -0,0 +1,13 @@
+package com.example.demo.application;
+
+public enum ConcurrencyMode {
+    /**
+     * Every command of a card runs on that card's single threaded mailbox.
+     */
+    MAILBOX,
+    /**
+     * Commands run on the calling thread and commit only if nobody committed the card in the meantime,
+     * retrying a bounded number of times otherwise.
+     */
+    OPTIMISTIC
+}
@@ -0,0 +1,76 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.Hold;
+import com.example.demo.utils.TimingWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Expires holds once their time is up. Every hold is put on a {@link TimingWheel} when it is placed, and a single
+ * thread advances the wheel every tick and hands the holds that are due to {@code expire}. A hold that was captured
+ * or released in the meantime is simply left to {@code expire} to skip, so closing a hold never has to find it on
+ * the wheel. A hold that {@code expire} throws on, such as when the mailbox of its card is full, goes back on the
+ * wheel for the next tick.
+ * <p>
+ * A follower, one with {@code card.replication.leader-url} set, has none: it leaves expiring holds to its leader and
+ * replicates the expiries instead.
+ */
+@Slf4j
+@Component
+@ConditionalOnExpression("'${card.replication.leader-url:}'.isEmpty()")
+public class HoldExpiry {
+
+    private final TimingWheel<Hold> wheel;
+    private final long tickMillis;
+    private final Thread ticker;
+    private volatile Consumer<Hold> expire;
+
+    public HoldExpiry(@Value("${card.holds.expiry-tick-millis:1000}") long tickMillis) {
+        this.wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+        this.tickMillis = tickMillis;
+        this.ticker = new Thread(this::run, "card-hold-expiry");
+        this.ticker.setDaemon(true);
+    }
+
+    /**
+     * Starts handing the holds that are due to {@code expire}.
+     */
+    void start(Consumer<Hold> expire) {
+        this.expire = expire;
+        ticker.start();
+    }
+
+    void schedule(Hold hold) {
+        wheel.schedule(hold.getExpiresAt(), hold);
+    }
+
+    void shutdown() {
+        ticker.interrupt();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.currentTimeMillis();
+            List<Hold> due = wheel.advance(now);
+            for (Hold hold : due) {
+                try {
+                    expire.accept(hold);
+                } catch (RuntimeException e) {
+                    log.warn("Expiring hold {} of card {} failed, retrying next tick", hold.getHoldId(),
+                        hold.getCardId(), e);
+                    wheel.schedule(now + tickMillis, hold);
+                }
+            }
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
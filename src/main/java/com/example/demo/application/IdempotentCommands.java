@@ -0,0 +1,129 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.exceptions.CardNotFoundException;
+import com.example.demo.domain.exceptions.HoldNotFoundException;
+import com.example.demo.domain.exceptions.InvalidAmountException;
+import com.example.demo.domain.exceptions.LimitExceededException;
+import com.example.demo.domain.exceptions.NegativeLimitException;
+import com.example.demo.domain.exceptions.NegativeLimitPartException;
+import com.example.demo.domain.exceptions.TooHighLimitPaymentException;
+import com.example.demo.persistence.EventStore;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Runs a command at most once per idempotency key of its card and answers every duplicate with the outcome of the
+ * first one.
+ * <p>
+ * The outcomes are remembered by the {@link EventStore}: an accepted command as soon as it is committed, together
+ * with its events, and a declined one as the code of the exception that declined it. A duplicate that arrives while
+ * the first command is still running waits for it instead of running again. Only rejections by the rules of the card
+ * are remembered. Anything else, such as a failing disk, a conflict with a concurrent writer or a velocity cap that
+ * may have moved on by the time of the retry, is not, so a retry after it runs the command again.
+ */
+class IdempotentCommands {
+
+    private static final List<Supplier<RuntimeException>> REJECTIONS = List.of(
+        LimitExceededException::new,
+        TooHighLimitPaymentException::new,
+        NegativeLimitException::new,
+        NegativeLimitPartException::new,
+        InvalidAmountException::new,
+        CardNotFoundException::new,
+        HoldNotFoundException::new);
+    private static final Map<Class<?>, Integer> REJECTION_CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < REJECTIONS.size(); i++) {
+            REJECTION_CODES.put(REJECTIONS.get(i).get().getClass(), EventStore.ACCEPTED + 1 + i);
+        }
+    }
+
+    private final EventStore eventStore;
+    private final Map<String, CompletableFuture<?>> running = new ConcurrentHashMap<>();
+
+    IdempotentCommands(EventStore eventStore) {
+        this.eventStore = eventStore;
+    }
+
+    /**
+     * Runs the command unless the key is already known, in which case {@code onDuplicate} runs instead and the
+     * outcome of the first command is returned. Without a key the command simply runs.
+     */
+    CompletableFuture<Void> execute(UUID cardId, String idempotencyKey, Runnable onDuplicate,
+                                    Supplier<CompletableFuture<Void>> command) {
+        return execute(cardId, idempotencyKey, onDuplicate, command, () -> null);
+    }
+
+    /**
+     * Like {@link #execute(UUID, String, Runnable, Supplier)} for a command that completes with a result. A
+     * duplicate of an accepted command completes with what {@code accepted} returns once the first one is done.
+     */
+    <T> CompletableFuture<T> execute(UUID cardId, String idempotencyKey, Runnable onDuplicate,
+                                     Supplier<CompletableFuture<T>> command, Supplier<T> accepted) {
+        if (idempotencyKey == null) {
+            return command.get();
+        }
+
+        String runningKey = cardId + "/" + idempotencyKey;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<?> first = running.putIfAbsent(runningKey, result);
+        if (first != null) {
+            onDuplicate.run();
+            return first.thenApply(done -> accepted.get());
+        }
+
+        // looked up only once this call is the running one, so a first command cannot finish unnoticed in between
+        OptionalInt outcome = eventStore.outcomeOf(cardId, idempotencyKey);
+        if (outcome.isPresent()) {
+            onDuplicate.run();
+            running.remove(runningKey, result);
+            complete(result, outcome.getAsInt(), accepted);
+            return result;
+        }
+
+        CompletableFuture<T> pending;
+        try {
+            pending = command.get();
+        } catch (RuntimeException e) {
+            pending = CompletableFuture.failedFuture(e);
+        }
+        // the key is given up before anyone sees the outcome, so a retry that saw it cannot find the key still
+        // running and get a copy of an outcome that is not remembered
+        pending.whenComplete((done, failure) -> {
+            if (failure == null) {
+                running.remove(runningKey, result);
+                result.complete(done);
+            } else {
+                Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                Integer code = REJECTION_CODES.get(cause.getClass());
+                if (code != null) {
+                    eventStore.recordOutcome(cardId, idempotencyKey, code);
+                }
+                running.remove(runningKey, result);
+                result.completeExceptionally(cause);
+            }
+        });
+        return result;
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, int outcome, Supplier<T> accepted) {
+        if (outcome == EventStore.ACCEPTED) {
+            try {
+                result.complete(accepted.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        } else {
+            result.completeExceptionally(REJECTIONS.get(outcome - EventStore.ACCEPTED - 1).get());
+        }
+    }
+}
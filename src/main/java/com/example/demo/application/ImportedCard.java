@@ -0,0 +1,15 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.Money;
+import lombok.Value;
+
+import java.util.UUID;
+
+/**
+ * A card to create under an id chosen by the client, with its initial limit.
+ */
+@Value
+public class ImportedCard {
+    UUID cardId;
+    Money limit;
+}
@@ -0,0 +1,33 @@
+package com.example.demo.application;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Turns away every request of a follower that could change a card, see {@link ReplicationFollower}, with
+ * {@code 503 Service Unavailable}: a card changed here would no longer follow the leader.
+ */
+@Component
+@ConditionalOnProperty("card.replication.leader-url")
+public class ReadOnlyReplicaFilter extends OncePerRequestFilter {
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return HttpMethod.GET.matches(request.getMethod()) || HttpMethod.HEAD.matches(request.getMethod())
+            || !request.getRequestURI().startsWith("/v1/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+        throws ServletException, IOException {
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Read-only replica");
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.demo.application;
+
+import com.example.demo.application.responses.FollowerResponse;
+import com.example.demo.domain.exceptions.InvalidCursorException;
+import com.example.demo.domain.exceptions.UnknownFollowerException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.FORBIDDEN;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
+
+/**
+ * Serves the followers of this node, see {@link ReplicationSource}. Only there with {@code card.replication.followers}
+ * set, and every request has to carry {@code card.replication.token}, see {@link ReplicationTokenFilter}.
+ */
+@RestController
+@ConditionalOnProperty("card.replication.followers")
+public class ReplicationController {
+
+    /**
+     * Header under which a follower gets the cursor right after the batch of events it was sent.
+     */
+    static final String REPLICATION_CURSOR = "Replication-Cursor";
+
+    private final ReplicationSource replicationSource;
+
+    public ReplicationController(ReplicationSource replicationSource) {
+        this.replicationSource = replicationSource;
+    }
+
+    /**
+     * Sends a follower the committed events after the {@code cursor}, which acknowledges every event before it, in the
+     * format of {@link com.example.demo.persistence.EventStore#readReplicationBatch}, with the cursor after them under
+     * {@code Replication-Cursor}. Waits up to {@code waitMillis} for the next commit if there is none yet.
+     */
+    @GetMapping(path = "/v1/replication/events", produces = APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<byte[]> events(@RequestParam String follower, @RequestParam String cursor,
+                                         @RequestParam(defaultValue = "1000") int maxEvents,
+                                         @RequestParam(defaultValue = "0") long waitMillis)
+        throws InterruptedException {
+        ReplicationSource.Batch batch = replicationSource.read(follower, cursor, maxEvents, waitMillis);
+        return ResponseEntity.ok()
+            .header(REPLICATION_CURSOR, batch.getNextCursor())
+            .body(batch.getEvents());
+    }
+
+    /**
+     * Every follower that pulled events, with the cursor it acknowledged last and how far behind it is.
+     */
+    @GetMapping(path = "/v1/replication/followers", produces = APPLICATION_JSON_VALUE)
+    public Map<String, FollowerResponse> followers() {
+        return replicationSource.followers();
+    }
+
+    @ExceptionHandler(InvalidCursorException.class)
+    @ResponseStatus(BAD_REQUEST)
+    public void invalidCursor() {
+    }
+
+    @ExceptionHandler(UnknownFollowerException.class)
+    @ResponseStatus(FORBIDDEN)
+    public void unknownFollower() {
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.demo.application;
+
+import com.example.demo.persistence.EventStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Keeps this node a warm standby of the leader at {@code card.replication.leader-url}, which has to list
+ * {@code card.replication.follower-name} among its followers and share {@code card.replication.token} with it. A
+ * single thread pulls the committed events of the leader in batches of up to {@code maxEvents}, see
+ * {@link ReplicationSource}, commits them to the local store and asks for the next batch only once they are
+ * durable, which acknowledges them. Cards are read from the local store as on any node, at most a batch behind the
+ * leader, while writes are turned away by {@link ReadOnlyReplicaFilter} and holds are left to the leader to expire,
+ * see {@link HoldExpiry}.
+ * <p>
+ * The cursor of the leader after the last applied batch is kept in the {@value #CURSOR_FILE} file of the log
+ * directory and only written once the batch is durable, so after a disconnect or a restart the follower resumes
+ * right there. A batch that was applied but not acknowledged is simply applied again, skipping the events the cards
+ * have already. A failed pull is retried after {@code retryMillis}. A follower is promoted by restarting it without
+ * the leader url, which starts it from its own log as any node.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty("card.replication.leader-url")
+public class ReplicationFollower {
+
+    static final String CURSOR_FILE = "replication-cursor";
+
+    private final EventStore eventStore;
+    private final HttpClient client;
+    private final String leaderUrl;
+    private final String name;
+    private final String token;
+    private final int maxEvents;
+    private final long waitMillis;
+    private final long retryMillis;
+    private final Path cursorFile;
+    private final Thread puller;
+    private volatile String cursor;
+
+    public ReplicationFollower(EventStore eventStore,
+                               @Value("${card.replication.leader-url}") String leaderUrl,
+                               @Value("${card.replication.follower-name:follower}") String name,
+                               @Value("${card.replication.token:}") String token,
+                               @Value("${card.replication.max-events:1000}") int maxEvents,
+                               @Value("${card.replication.wait-millis:1000}") long waitMillis,
+                               @Value("${card.replication.retry-millis:1000}") long retryMillis,
+                               @Value("${card.event-log.directory:data/events}") Path directory) {
+        this.eventStore = eventStore;
+        this.client = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(Math.max(retryMillis, 1))).build();
+        this.leaderUrl = leaderUrl.endsWith("/") ? leaderUrl.substring(0, leaderUrl.length() - 1) : leaderUrl;
+        this.name = name;
+        this.token = token;
+        this.maxEvents = maxEvents;
+        this.waitMillis = waitMillis;
+        this.retryMillis = retryMillis;
+        this.cursorFile = directory.resolve(CURSOR_FILE);
+        this.cursor = readCursor(cursorFile);
+        this.puller = new Thread(this::run, "card-replication-follower");
+        this.puller.setDaemon(true);
+    }
+
+    /**
+     * Starts pulling once the application is up, so commit listeners such as {@link CardProjection} see every
+     * replicated commit.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        puller.start();
+    }
+
+    /**
+     * Cursor of the leader after the last batch that is durable here.
+     */
+    public String cursor() {
+        return cursor;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        puller.interrupt();
+        puller.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                pull();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Replicating from {} after cursor {} failed, retrying in {} ms", leaderUrl, cursor,
+                    retryMillis, e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the next batch of the leader, waiting for one if the follower is up to date.
+     */
+    private void pull() throws IOException, InterruptedException {
+        URI uri = URI.create(leaderUrl + "/v1/replication/events"
+            + "?follower=" + URLEncoder.encode(name, UTF_8)
+            + "&cursor=" + URLEncoder.encode(cursor, UTF_8)
+            + "&maxEvents=" + maxEvents
+            + "&waitMillis=" + waitMillis);
+        HttpRequest request = HttpRequest.newBuilder(uri)
+            .timeout(Duration.ofMillis(waitMillis + Math.max(retryMillis, 1000)))
+            .header(ReplicationTokenFilter.REPLICATION_TOKEN, token)
+            .GET()
+            .build();
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream batch = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new IOException("Leader answered " + response.statusCode());
+            }
+            String nextCursor = response.headers().firstValue(ReplicationController.REPLICATION_CURSOR)
+                .orElseThrow(() -> new IOException("Leader sent no " + ReplicationController.REPLICATION_CURSOR));
+            eventStore.applyReplicationBatch(batch).join();
+            if (!nextCursor.equals(cursor)) {
+                writeCursor(nextCursor);
+                cursor = nextCursor;
+            }
+        }
+    }
+
+    private void writeCursor(String nextCursor) throws IOException {
+        Path temporary = cursorFile.resolveSibling(CURSOR_FILE + ".tmp");
+        Files.writeString(temporary, nextCursor);
+        Files.move(temporary, cursorFile, ATOMIC_MOVE);
+    }
+
+    private static String readCursor(Path cursorFile) {
+        try {
+            if (Files.exists(cursorFile)) {
+                return Files.readString(cursorFile).trim();
+            }
+            Files.createDirectories(cursorFile.getParent());
+            return CardEventFeed.START;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.demo.application;
+
+import com.example.demo.application.responses.FollowerResponse;
+import com.example.demo.domain.exceptions.UnknownFollowerException;
+import com.example.demo.persistence.EventStore;
+import com.example.demo.persistence.LogCursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ships the committed events of the leader to its followers, see {@link ReplicationFollower}, in batches they pull.
+ * <p>
+ * A follower asks for the events after a {@link LogCursor} and gets at most {@code maxEvents} of them together with
+ * the cursor right after them, which it sends along with its next request once it has made them durable itself. So
+ * the cursor of every request acknowledges all events before it, and it is all a follower needs to catch up after a
+ * disconnect or a restart. Events are read back from the durable part of the shard logs, so a follower never gets
+ * one that a crash of the leader could take back, and a request that finds nothing to read waits up to
+ * {@code waitMillis} for the next durable batch of any shard.
+ * <p>
+ * Only the followers named in {@code card.replication.followers} are served, see {@link ReplicationController}, and
+ * the last cursor each of them acknowledged is kept in memory, to tell how far behind it is.
+ */
+@Component
+@ConditionalOnProperty("card.replication.followers")
+public class ReplicationSource {
+
+    private final EventStore eventStore;
+    private final Set<String> followers;
+    private final Map<String, Acknowledgement> acknowledgements = new ConcurrentHashMap<>();
+
+    public ReplicationSource(EventStore eventStore,
+                             @Value("${card.replication.followers}") Set<String> followers) {
+        this.eventStore = eventStore;
+        this.followers = Set.copyOf(followers);
+    }
+
+    /**
+     * Records the cursor, {@link CardEventFeed#START} or one handed out with an earlier batch, as acknowledged by
+     * the follower and returns the events after it.
+     *
+     * @throws com.example.demo.domain.exceptions.InvalidCursorException if the cursor points nowhere in the log
+     * @throws UnknownFollowerException if the follower is not one of {@code card.replication.followers}
+     */
+    public Batch read(String follower, String cursor, int maxEvents, long waitMillis) throws InterruptedException {
+        if (!followers.contains(follower)) {
+            throw new UnknownFollowerException();
+        }
+        LogCursor from = CardEventFeed.START.equals(cursor) ? eventStore.startCursor() : eventStore.parseCursor(cursor);
+        acknowledgements.put(follower, new Acknowledgement(from.toString(), Instant.now()));
+
+        eventStore.awaitCommitted(from, waitMillis);
+        byte[] events = eventStore.readReplicationBatch(from, maxEvents);
+        return new Batch(events, from.toString());
+    }
+
+    /**
+     * Every follower by its name, with the cursor it acknowledged last and how many bytes of log it is behind.
+     */
+    public Map<String, FollowerResponse> followers() {
+        LogCursor end = eventStore.endCursor();
+        Map<String, FollowerResponse> followers = new TreeMap<>();
+        acknowledgements.forEach((follower, acknowledgement) -> {
+            LogCursor acknowledged = LogCursor.parse(acknowledgement.getCursor(), end.shards());
+            long lagBytes = 0;
+            for (int i = 0; i < end.shards(); i++) {
+                lagBytes += Math.max(end.offset(i) - acknowledged.offset(i), 0);
+            }
+            followers.put(follower,
+                new FollowerResponse(acknowledgement.getCursor(), lagBytes, acknowledgement.getAcknowledgedAt()));
+        });
+        return followers;
+    }
+
+    /**
+     * Events in the format of {@link EventStore#readReplicationBatch} and the cursor right after them.
+     */
+    @lombok.Value
+    public static class Batch {
+        byte[] events;
+        String nextCursor;
+    }
+
+    @lombok.Value
+    private static class Acknowledgement {
+        String cursor;
+        Instant acknowledgedAt;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.demo.application;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Turns away every request for {@link ReplicationController} that does not carry {@code card.replication.token}
+ * under {@value #REPLICATION_TOKEN} with {@code 401 Unauthorized}: a follower gets every event of every card. The
+ * token is compared in constant time, and a leader with followers but no token does not start.
+ */
+@Component
+@ConditionalOnProperty("card.replication.followers")
+public class ReplicationTokenFilter extends OncePerRequestFilter {
+
+    /**
+     * Header under which a follower sends the shared replication token.
+     */
+    static final String REPLICATION_TOKEN = "Replication-Token";
+
+    private final byte[] token;
+
+    public ReplicationTokenFilter(@Value("${card.replication.token:}") String token) {
+        if (token.isBlank()) {
+            throw new IllegalStateException("card.replication.token must be set to serve card.replication.followers");
+        }
+        this.token = token.getBytes(UTF_8);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith("/v1/replication/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+        throws ServletException, IOException {
+        String sent = request.getHeader(REPLICATION_TOKEN);
+        if (sent == null || !MessageDigest.isEqual(sent.getBytes(UTF_8), token)) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Replication token required");
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.demo.application;
+
+public enum RequestHandling {
+    /**
+     * The request thread waits until the command is durable, so the servlet pool size caps the commands in flight.
+     */
+    BLOCKING,
+    /**
+     * The request thread is released right after the command is submitted and the response is written from the
+     * thread that makes it durable.
+     */
+    ASYNC
+}
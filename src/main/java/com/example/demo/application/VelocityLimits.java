@@ -0,0 +1,145 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.Money;
+import com.example.demo.domain.exceptions.VelocityLimitExceededException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caps how often and how much of its limit a card uses within a sliding window: at most {@code maxUses} uses and
+ * {@code maxAmount} in total per {@code windowSeconds}, either cap off when zero.
+ * <p>
+ * Every card has a ring of {@value #BUCKETS} buckets, each counting the uses and the amount of one tenth of the
+ * window, and the window is the current bucket together with the ones before it that are still young enough. A
+ * bucket is immutable and replaced by compare and set, so taking a use is a lock-free read of the ring and a single
+ * swap, retried only if another use of the same card got in between. A stale bucket is recycled by the first use
+ * that lands on it. Uses of one card that cross into a new bucket at the same instant may each see the window
+ * without the other, so a cap can be overshot by as many of them. Cards idle for a whole window are dropped once
+ * per window, and a use that races with the drop of its card goes uncounted.
+ */
+@Component
+public class VelocityLimits {
+
+    private static final int BUCKETS = 10;
+
+    private final long bucketMillis;
+    private final int maxUses;
+    private final long maxAmount;
+    private final Map<UUID, AtomicReferenceArray<Bucket>> windows = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    public VelocityLimits(@Value("${card.velocity.window-seconds:60}") long windowSeconds,
+                          @Value("${card.velocity.max-uses:0}") int maxUses,
+                          @Value("${card.velocity.max-amount:0}") BigDecimal maxAmount) {
+        this.bucketMillis = Math.max(TimeUnit.SECONDS.toMillis(windowSeconds) / BUCKETS, 1);
+        this.maxUses = maxUses;
+        this.maxAmount = Money.of(maxAmount).getMinorUnits();
+    }
+
+    boolean isEnabled() {
+        return maxUses > 0 || maxAmount > 0;
+    }
+
+    /**
+     * Counts a use of the amount at the epoch millis and returns the bucket it went to, for {@link #release}.
+     *
+     * @throws VelocityLimitExceededException if the use would take the card over a cap
+     */
+    long acquire(UUID cardId, Money amount, long nowMillis) {
+        sweep(nowMillis);
+        AtomicReferenceArray<Bucket> ring = windows.computeIfAbsent(cardId, id -> new AtomicReferenceArray<>(BUCKETS));
+        long epoch = nowMillis / bucketMillis;
+        int index = (int) (epoch % BUCKETS);
+        while (true) {
+            long uses = 1;
+            long total = amount.getMinorUnits();
+            for (int i = 0; i < BUCKETS; i++) {
+                Bucket bucket = ring.get(i);
+                if (bucket != null && bucket.epoch > epoch - BUCKETS && bucket.epoch <= epoch) {
+                    uses += bucket.uses;
+                    total = Money.add(total, bucket.amount);
+                }
+            }
+            if ((maxUses > 0 && uses > maxUses) || (maxAmount > 0 && total > maxAmount)) {
+                throw new VelocityLimitExceededException();
+            }
+
+            Bucket current = ring.get(index);
+            Bucket next = current != null && current.epoch == epoch
+                ? new Bucket(epoch, current.uses + 1, current.amount + amount.getMinorUnits())
+                : new Bucket(epoch, 1, amount.getMinorUnits());
+            if (ring.compareAndSet(index, current, next)) {
+                return epoch;
+            }
+        }
+    }
+
+    /**
+     * Takes back a use that did not happen after all, unless its bucket has left the window by now.
+     */
+    void release(UUID cardId, Money amount, long acquiredIn) {
+        AtomicReferenceArray<Bucket> ring = windows.get(cardId);
+        if (ring == null) {
+            return;
+        }
+        int index = (int) (acquiredIn % BUCKETS);
+        while (true) {
+            Bucket current = ring.get(index);
+            if (current == null || current.epoch != acquiredIn) {
+                return;
+            }
+            Bucket next = new Bucket(acquiredIn, current.uses - 1, current.amount - amount.getMinorUnits());
+            if (ring.compareAndSet(index, current, next)) {
+                return;
+            }
+        }
+    }
+
+    int trackedCards() {
+        return windows.size();
+    }
+
+    /**
+     * Drops the rings whose every bucket has left the window, at most once per window and by one thread only.
+     */
+    private void sweep(long nowMillis) {
+        long due = nextSweep.get();
+        if (nowMillis < due || !nextSweep.compareAndSet(due, nowMillis + BUCKETS * bucketMillis)) {
+            return;
+        }
+        long oldestEpoch = nowMillis / bucketMillis - BUCKETS;
+        windows.values().removeIf(ring -> {
+            for (int i = 0; i < BUCKETS; i++) {
+                Bucket bucket = ring.get(i);
+                if (bucket != null && bucket.epoch > oldestEpoch) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Uses and amount in minor units of one card within one bucket of time.
+     */
+    private static final class Bucket {
+
+        final long epoch;
+        final long uses;
+        final long amount;
+
+        Bucket(long epoch, long uses, long amount) {
+            this.epoch = epoch;
+            this.uses = uses;
+            this.amount = amount;
+        }
+    }
+}
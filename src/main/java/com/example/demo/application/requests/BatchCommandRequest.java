@@ -0,0 +1,26 @@
+package com.example.demo.application.requests;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchCommandRequest {
+    private UUID cardId;
+    private Type type;
+    private BigDecimal amount;
+    private Long expectedVersion;
+
+    /**
+     * Commands a batch may carry, the same names as in {@link com.example.demo.application.CardCommand.Type} but
+     * without the hold ones, which only run through their own endpoints.
+     */
+    public enum Type {
+        CHANGE, USE, PAY
+    }
+}
@@ -11,4 +11,9 @@ import java.math.BigDecimal;
 @NoArgsConstructor
 public class ChangeLimitRequest {
     private BigDecimal limitChange;
+    private Long expectedVersion;
+
+    public ChangeLimitRequest(BigDecimal limitChange) {
+        this(limitChange, null);
+    }
 }
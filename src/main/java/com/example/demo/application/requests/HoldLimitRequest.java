@@ -0,0 +1,20 @@
+package com.example.demo.application.requests;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HoldLimitRequest {
+    private BigDecimal amount;
+    // how long the hold lasts unless captured or released, the configured default if null
+    private Long ttlSeconds;
+
+    public HoldLimitRequest(BigDecimal amount) {
+        this(amount, null);
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.demo.application.requests;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImportCardRequest {
+    private UUID cardId;
+    private BigDecimal limit;
+}
@@ -11,4 +11,9 @@ import java.math.BigDecimal;
 @AllArgsConstructor
 public class PayLimitRequest {
     private BigDecimal payLimit;
+    private Long expectedVersion;
+
+    public PayLimitRequest(BigDecimal payLimit) {
+        this(payLimit, null);
+    }
 }
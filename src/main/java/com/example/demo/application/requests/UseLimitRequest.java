@@ -11,4 +11,9 @@ import java.math.BigDecimal;
 @AllArgsConstructor
 public class UseLimitRequest {
     private BigDecimal useLimit;
+    private Long expectedVersion;
+
+    public UseLimitRequest(BigDecimal useLimit) {
+        this(useLimit, null);
+    }
 }
@@ -0,0 +1,20 @@
+package com.example.demo.application.responses;
+
+import com.example.demo.application.CommandResult;
+import lombok.Value;
+
+import java.util.UUID;
+
+@Value
+public class BatchItemResponse {
+    UUID cardId;
+    boolean accepted;
+    String rejection;
+
+    public static BatchItemResponse from(CommandResult result) {
+        return new BatchItemResponse(
+            result.getCardId(),
+            result.isAccepted(),
+            result.isAccepted() ? null : result.getFailure().getClass().getSimpleName());
+    }
+}
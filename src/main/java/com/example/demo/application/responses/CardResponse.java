@@ -9,8 +9,9 @@ import java.util.UUID;
 public class CardResponse {
     UUID cardId;
     String availableLimit;
+    long version;
 
     public static CardResponse from(Card card) {
-        return new CardResponse(card.getId(), card.availableLimit().toPlainString());
+        return new CardResponse(card.getId(), card.availableLimit().toPlainString(), card.getVersion());
     }
 }
@@ -0,0 +1,12 @@
+package com.example.demo.application.responses;
+
+import lombok.Value;
+
+import java.time.Instant;
+
+@Value
+public class FollowerResponse {
+    String cursor;
+    long lagBytes;
+    Instant acknowledgedAt;
+}
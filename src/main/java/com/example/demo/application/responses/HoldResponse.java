@@ -0,0 +1,20 @@
+package com.example.demo.application.responses;
+
+import com.example.demo.domain.Hold;
+import lombok.Value;
+
+import java.time.Instant;
+import java.util.UUID;
+
+@Value
+public class HoldResponse {
+    UUID cardId;
+    long holdId;
+    String amount;
+    Instant expiresAt;
+
+    public static HoldResponse from(Hold hold) {
+        return new HoldResponse(hold.getCardId(), hold.getHoldId(), hold.getAmount().toPlainString(),
+            Instant.ofEpochMilli(hold.getExpiresAt()));
+    }
+}
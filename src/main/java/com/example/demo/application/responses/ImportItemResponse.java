@@ -0,0 +1,29 @@
+package com.example.demo.application.responses;
+
+import com.example.demo.application.CommandResult;
+import lombok.Value;
+
+import java.util.UUID;
+
+@Value
+public class ImportItemResponse {
+    /**
+     * Line of the request body the card was read from, counting from 1.
+     */
+    long line;
+    UUID cardId;
+    boolean created;
+    String rejection;
+
+    public static ImportItemResponse from(long line, CommandResult result) {
+        return new ImportItemResponse(
+            line,
+            result.getCardId(),
+            result.isAccepted(),
+            result.isAccepted() ? null : result.getFailure().getClass().getSimpleName());
+    }
+
+    public static ImportItemResponse rejected(long line, String rejection) {
+        return new ImportItemResponse(line, null, false, rejection);
+    }
+}
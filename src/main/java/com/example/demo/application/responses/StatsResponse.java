@@ -0,0 +1,22 @@
+package com.example.demo.application.responses;
+
+import com.example.demo.domain.Money;
+import com.example.demo.persistence.ExposureStats;
+import lombok.Value;
+
+@Value
+public class StatsResponse {
+    long cards;
+    String grantedLimit;
+    String usedLimit;
+    String heldLimit;
+    long cardsNearExhaustion;
+
+    public static StatsResponse from(ExposureStats stats) {
+        return new StatsResponse(stats.getCards(),
+            Money.ofMinorUnits(stats.getGrantedLimit()).toPlainString(),
+            Money.ofMinorUnits(stats.getUsedLimit()).toPlainString(),
+            Money.ofMinorUnits(stats.getHeldLimit()).toPlainString(),
+            stats.getCardsNearExhaustion());
+    }
+}
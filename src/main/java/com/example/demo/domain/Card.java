@@ -1,6 +1,10 @@
 package com.example.demo.domain;
 
+import com.example.demo.domain.events.HoldCapturedEvent;
+import com.example.demo.domain.events.HoldExpiredEvent;
+import com.example.demo.domain.events.HoldReleasedEvent;
 import com.example.demo.domain.events.LimitChangedEvent;
+import com.example.demo.domain.events.LimitHeldEvent;
 import com.example.demo.domain.events.LimitPartPaidEvent;
 import com.example.demo.domain.events.LimitPartUsedEvent;
 import com.example.demo.domain.exceptions.LimitExceededException;
@@ -11,27 +15,42 @@ import com.example.demo.events.Event;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
-import java.math.BigDecimal;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
-import static com.example.demo.utils.MathContext.add;
-import static com.example.demo.utils.MathContext.subtract;
-import static java.math.BigDecimal.ZERO;
+import static com.example.demo.domain.Money.add;
+import static com.example.demo.domain.Money.subtract;
 
 @RequiredArgsConstructor
 public class Card {
 
     @Getter
     private final UUID id;
-    private BigDecimal limit = ZERO;
-    private BigDecimal usedLimit = ZERO;
+    // all in minor units, see Money
+    private long limit;
+    private long usedLimit;
+    private long heldLimit;
     @Getter
-    private List<Event> stateChanges = new LinkedList<>();
+    private long version;
+    @Getter
+    private final List<Event> stateChanges = new ArrayList<>(1);
+
+    public static Card from(CardSnapshot snapshot) {
+        Card card = new Card(snapshot.getCardId());
+        card.limit = snapshot.getLimit();
+        card.usedLimit = snapshot.getUsedLimit();
+        card.heldLimit = snapshot.getHeldLimit();
+        card.version = snapshot.getVersion();
+        return card;
+    }
 
-    public void changeLimit(BigDecimal limit) {
-        if (limit.compareTo(ZERO) < 0) {
+    public CardSnapshot snapshot() {
+        return new CardSnapshot(id, limit, usedLimit, heldLimit, version);
+    }
+
+    public void changeLimit(Money limit) {
+        if (limit.isNegative()) {
             throw new NegativeLimitException();
         }
 
@@ -41,43 +60,45 @@ public class Card {
     }
 
     public void handle(LimitChangedEvent event) {
-        limit = event.getLimit();
+        limit = event.getLimit().getMinorUnits();
+        version++;
     }
 
-    public BigDecimal availableLimit() {
-        return subtract(limit, usedLimit);
+    public Money availableLimit() {
+        return Money.ofMinorUnits(subtract(subtract(limit, usedLimit), heldLimit));
     }
 
-    public void useLimit(BigDecimal limitPart) {
+    public void useLimit(Money limitPart) {
         declineNegativeLimitParts(limitPart);
 
-        var usedLimitCandidate = add(usedLimit, limitPart);
+        var usedLimitCandidate = add(usedLimit, limitPart.getMinorUnits());
 
-        declineLimitOverflow(usedLimitCandidate);
+        declineLimitOverflow(add(usedLimitCandidate, heldLimit));
 
         LimitPartUsedEvent event = new LimitPartUsedEvent(id, limitPart);
         stateChanges.add(event);
         handle(event);
     }
 
-    private void declineNegativeLimitParts(BigDecimal limitPart) {
-        if (limitPart.compareTo(ZERO) < 0) {
+    private void declineNegativeLimitParts(Money limitPart) {
+        if (limitPart.isNegative()) {
             throw new NegativeLimitPartException();
         }
     }
 
-    private void declineLimitOverflow(BigDecimal usedLimitCandidate) {
-        if (usedLimitCandidate.compareTo(limit) > 0) {
+    private void declineLimitOverflow(long usedLimitCandidate) {
+        if (usedLimitCandidate > limit) {
             throw new LimitExceededException();
         }
     }
 
     public void handle(LimitPartUsedEvent event) {
-        usedLimit = add(usedLimit, event.getLimitPartValue());
+        usedLimit = add(usedLimit, event.getLimitPartValue().getMinorUnits());
+        version++;
     }
 
-    public void payLimit(BigDecimal payment) {
-        if (subtract(usedLimit, payment).compareTo(ZERO) < 0) {
+    public void payLimit(Money payment) {
+        if (subtract(usedLimit, payment.getMinorUnits()) < 0) {
             throw new TooHighLimitPaymentException();
         }
 
@@ -87,6 +108,93 @@ public class Card {
     }
 
     public void handle(LimitPartPaidEvent event) {
-        usedLimit = subtract(usedLimit, event.getLimitPartValue());
+        usedLimit = subtract(usedLimit, event.getLimitPartValue().getMinorUnits());
+        version++;
+    }
+
+    /**
+     * Earmarks part of the limit until it is captured, released or expires at the epoch millis, and returns the id
+     * of the hold, which is the version the card reaches with it.
+     */
+    public long holdLimit(Money amount, long expiresAt) {
+        declineNegativeLimitParts(amount);
+        declineLimitOverflow(add(add(usedLimit, heldLimit), amount.getMinorUnits()));
+
+        LimitHeldEvent event = new LimitHeldEvent(id, version + 1, amount, expiresAt);
+        stateChanges.add(event);
+        handle(event);
+        return event.getHoldId();
+    }
+
+    public void handle(LimitHeldEvent event) {
+        heldLimit = add(heldLimit, event.getAmount().getMinorUnits());
+        version++;
+    }
+
+    public void captureHold(Hold hold) {
+        HoldCapturedEvent event = new HoldCapturedEvent(id, hold.getHoldId(), hold.getAmount());
+        stateChanges.add(event);
+        handle(event);
+    }
+
+    public void handle(HoldCapturedEvent event) {
+        heldLimit = subtract(heldLimit, event.getAmount().getMinorUnits());
+        usedLimit = add(usedLimit, event.getAmount().getMinorUnits());
+        version++;
+    }
+
+    public void releaseHold(Hold hold) {
+        HoldReleasedEvent event = new HoldReleasedEvent(id, hold.getHoldId(), hold.getAmount());
+        stateChanges.add(event);
+        handle(event);
+    }
+
+    public void handle(HoldReleasedEvent event) {
+        heldLimit = subtract(heldLimit, event.getAmount().getMinorUnits());
+        version++;
+    }
+
+    public void expireHold(Hold hold) {
+        HoldExpiredEvent event = new HoldExpiredEvent(id, hold.getHoldId(), hold.getAmount());
+        stateChanges.add(event);
+        handle(event);
+    }
+
+    public void handle(HoldExpiredEvent event) {
+        heldLimit = subtract(heldLimit, event.getAmount().getMinorUnits());
+        version++;
+    }
+
+    public void apply(Event event) {
+        if (event instanceof LimitChangedEvent) {
+            handle((LimitChangedEvent) event);
+        } else if (event instanceof LimitPartUsedEvent) {
+            handle((LimitPartUsedEvent) event);
+        } else if (event instanceof LimitPartPaidEvent) {
+            handle((LimitPartPaidEvent) event);
+        } else if (event instanceof LimitHeldEvent) {
+            handle((LimitHeldEvent) event);
+        } else if (event instanceof HoldCapturedEvent) {
+            handle((HoldCapturedEvent) event);
+        } else if (event instanceof HoldReleasedEvent) {
+            handle((HoldReleasedEvent) event);
+        } else if (event instanceof HoldExpiredEvent) {
+            handle((HoldExpiredEvent) event);
+        } else {
+            throw new IllegalArgumentException("Unsupported event type: " + event.getClass().getName());
+        }
+    }
+
+    /**
+     * Takes over a change that was decided elsewhere, such as by the leader of a replica, as a pending change of
+     * this card.
+     */
+    public void record(Event event) {
+        stateChanges.add(event);
+        apply(event);
+    }
+
+    public void markChangesAsCommitted() {
+        stateChanges.clear();
     }
 }
@@ -0,0 +1,15 @@
+package com.example.demo.domain;
+
+import lombok.Value;
+
+import java.util.UUID;
+
+@Value
+public class CardSnapshot {
+    UUID cardId;
+    // all in minor units, see Money
+    long limit;
+    long usedLimit;
+    long heldLimit;
+    long version;
+}
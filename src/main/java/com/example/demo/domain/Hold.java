@@ -0,0 +1,17 @@
+package com.example.demo.domain;
+
+import lombok.Value;
+
+import java.util.UUID;
+
+/**
+ * A hold on the limit of a card that is neither captured, released nor expired yet, see {@link Card#holdLimit}.
+ */
+@Value
+public class Hold {
+    UUID cardId;
+    long holdId;
+    Money amount;
+    // epoch millis
+    long expiresAt;
+}
@@ -0,0 +1,123 @@
+package com.example.demo.domain;
+
+import com.example.demo.domain.exceptions.InvalidAmountException;
+import lombok.EqualsAndHashCode;
+
+import java.math.BigDecimal;
+
+import static java.math.RoundingMode.UNNECESSARY;
+
+/**
+ * Amount of money held as a whole number of minor units (cents) in a single {@code long}.
+ * <p>
+ * Arithmetic is exact: a result that does not fit into a {@code long}, or an amount with more than
+ * {@link #SCALE} fraction digits, fails with {@link InvalidAmountException} instead of being rounded.
+ * {@link BigDecimal} is only used to convert at the edges of the application.
+ */
+@EqualsAndHashCode
+public final class Money implements Comparable<Money> {
+
+    public static final int SCALE = 2;
+    public static final Money ZERO = new Money(0);
+
+    private static final int MINOR_UNITS_PER_UNIT = 100;
+
+    private final long minorUnits;
+
+    private Money(long minorUnits) {
+        this.minorUnits = minorUnits;
+    }
+
+    public static Money ofMinorUnits(long minorUnits) {
+        return minorUnits == 0 ? ZERO : new Money(minorUnits);
+    }
+
+    public static Money of(BigDecimal amount) {
+        try {
+            return ofMinorUnits(amount.setScale(SCALE, UNNECESSARY).unscaledValue().longValueExact());
+        } catch (ArithmeticException e) {
+            throw new InvalidAmountException();
+        }
+    }
+
+    public static Money of(String amount) {
+        return of(new BigDecimal(amount));
+    }
+
+    public static long add(long first, long second) {
+        try {
+            return Math.addExact(first, second);
+        } catch (ArithmeticException e) {
+            throw new InvalidAmountException();
+        }
+    }
+
+    public static long subtract(long first, long second) {
+        try {
+            return Math.subtractExact(first, second);
+        } catch (ArithmeticException e) {
+            throw new InvalidAmountException();
+        }
+    }
+
+    public long getMinorUnits() {
+        return minorUnits;
+    }
+
+    public Money plus(Money other) {
+        return ofMinorUnits(add(minorUnits, other.minorUnits));
+    }
+
+    public Money minus(Money other) {
+        return ofMinorUnits(subtract(minorUnits, other.minorUnits));
+    }
+
+    public Money negate() {
+        return ofMinorUnits(subtract(0, minorUnits));
+    }
+
+    public boolean isNegative() {
+        return minorUnits < 0;
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(minorUnits, SCALE);
+    }
+
+    /**
+     * Plain representation without trailing zeros, e.g. {@code 10} or {@code 123.4}.
+     */
+    public String toPlainString() {
+        return appendPlain(new StringBuilder(24), minorUnits).toString();
+    }
+
+    /**
+     * Appends the plain representation of the given minor units, as {@link #toPlainString()} would print it.
+     */
+    public static StringBuilder appendPlain(StringBuilder target, long minorUnits) {
+        long units = minorUnits / MINOR_UNITS_PER_UNIT;
+        int fraction = (int) Math.abs(minorUnits % MINOR_UNITS_PER_UNIT);
+
+        if (minorUnits < 0 && units == 0) {
+            target.append('-');
+        }
+        target.append(units);
+        if (fraction != 0) {
+            target.append('.').append(fraction / 10);
+            if (fraction % 10 != 0) {
+                target.append(fraction % 10);
+            }
+        }
+        return target;
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(minorUnits, other.minorUnits);
+    }
+
+    @Override
+    public String toString() {
+        return toPlainString();
+    }
+}
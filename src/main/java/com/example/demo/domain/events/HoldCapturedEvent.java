@@ -0,0 +1,17 @@
+package com.example.demo.domain.events;
+
+import com.example.demo.domain.Money;
+import com.example.demo.events.Event;
+import lombok.Value;
+
+import java.util.UUID;
+
+/**
+ * A hold turned into used limit.
+ */
+@Value
+public class HoldCapturedEvent implements Event {
+    UUID cardId;
+    long holdId;
+    Money amount;
+}
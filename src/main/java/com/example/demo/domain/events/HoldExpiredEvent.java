@@ -0,0 +1,17 @@
+package com.example.demo.domain.events;
+
+import com.example.demo.domain.Money;
+import com.example.demo.events.Event;
+import lombok.Value;
+
+import java.util.UUID;
+
+/**
+ * A hold given back to the available limit because it was neither captured nor released in time.
+ */
+@Value
+public class HoldExpiredEvent implements Event {
+    UUID cardId;
+    long holdId;
+    Money amount;
+}
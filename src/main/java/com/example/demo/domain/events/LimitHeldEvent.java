@@ -0,0 +1,19 @@
+package com.example.demo.domain.events;
+
+import com.example.demo.domain.Money;
+import com.example.demo.events.Event;
+import lombok.Value;
+
+import java.util.UUID;
+
+/**
+ * Part of the limit earmarked for a payment that is authorized but not captured yet. The hold is known by the
+ * version the card reached with this event and lapses at {@code expiresAt}, in epoch millis.
+ */
+@Value
+public class LimitHeldEvent implements Event {
+    UUID cardId;
+    long holdId;
+    Money amount;
+    long expiresAt;
+}
@@ -0,0 +1,4 @@
+package com.example.demo.domain.exceptions;
+
+public class InvalidAmountException extends RuntimeException {
+}
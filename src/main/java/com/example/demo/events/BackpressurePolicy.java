@@ -0,0 +1,13 @@
+package com.example.demo.events;
+
+public enum BackpressurePolicy {
+    /**
+     * The committing thread waits until the dispatcher frees a slot, but only up to a timeout, after which the event
+     * is dropped as with {@link #DROP}.
+     */
+    BLOCK,
+    /**
+     * The event is not published and only counted, the commit itself goes on.
+     */
+    DROP
+}
@@ -1,4 +1,8 @@
 package com.example.demo.events;
 
+import java.util.UUID;
+
 public interface Event {
+
+    UUID getCardId();
 }
@@ -0,0 +1,71 @@
+package com.example.demo.events;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, preallocated ring of events with many producers and a single consumer.
+ * <p>
+ * Producers claim a sequence with a CAS on the tail and then fill the slot; the consumer takes filled slots in
+ * sequence order, clears them and only then moves the head. A slot is therefore reused only after it has been
+ * consumed, and events claimed one after another by the same thread are consumed in that order.
+ */
+final class EventRingBuffer {
+
+    private final AtomicReferenceArray<Event> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    EventRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    boolean offer(Event event) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head > mask) {
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        slots.lazySet((int) sequence & mask, event);
+        return true;
+    }
+
+    /**
+     * Moves up to {@code max} events into the list and returns how many were moved. Only the consumer thread may
+     * call this.
+     */
+    int drainTo(List<Event> events, int max) {
+        long sequence = head;
+        int drained = 0;
+
+        while (drained < max) {
+            int index = (int) sequence & mask;
+            Event event = slots.get(index);
+            if (event == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            events.add(event);
+            sequence++;
+            drained++;
+        }
+
+        head = sequence;
+        return drained;
+    }
+
+    boolean isEmpty() {
+        return head == tail.get();
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
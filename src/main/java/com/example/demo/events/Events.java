@@ -4,6 +4,8 @@ import com.example.demo.domain.events.LimitChangedEvent;
 import com.example.demo.domain.events.LimitPartPaidEvent;
 import com.example.demo.domain.events.LimitPartUsedEvent;
 
+import java.util.List;
+
 public interface Events {
 
     void emit(LimitChangedEvent event);
@@ -12,4 +14,6 @@ public interface Events {
 
     void emit(LimitPartUsedEvent event);
 
+    void emitAll(List<? extends Event> events);
+
 }
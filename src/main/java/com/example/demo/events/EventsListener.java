@@ -0,0 +1,12 @@
+package com.example.demo.events;
+
+import java.util.List;
+
+/**
+ * Receives committed events in batches on the dispatcher thread of {@link EventsPublisher}. Events of one card
+ * always arrive in the order they were committed. The list is reused after the call returns.
+ */
+public interface EventsListener {
+
+    void onEvents(List<Event> events);
+}
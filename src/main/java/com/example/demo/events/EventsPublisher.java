@@ -3,29 +3,196 @@ package com.example.demo.events;
 import com.example.demo.domain.events.LimitChangedEvent;
 import com.example.demo.domain.events.LimitPartPaidEvent;
 import com.example.demo.domain.events.LimitPartUsedEvent;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import static com.example.demo.events.BackpressurePolicy.BLOCK;
+
+/**
+ * Publishes committed events asynchronously.
+ * <p>
+ * Emitting only puts the event into a preallocated {@link EventRingBuffer}; a dedicated dispatcher thread drains it
+ * in batches and hands each batch to every {@link EventsListener} and, event by event, to Spring's
+ * {@link ApplicationEventPublisher}. A listener that fails is logged and skipped, so it never stops the dispatcher.
+ * Committing threads never wait for listeners, only for a free slot when the ring is full and the
+ * {@link BackpressurePolicy} says so, and then at most {@code blockTimeoutMillis} per event: a commit must not
+ * hang on a dispatcher that fell behind, so the event is dropped after that. Dropped events are counted as
+ * {@code card.events.dropped}.
+ * <p>
+ * An idle dispatcher parks until a committing thread puts an event into the ring and wakes it up, which only the
+ * first event after it went to sleep has to do.
+ */
+@Slf4j
 @Component
-@RequiredArgsConstructor
-public class EventsPublisher implements Events {
+public class EventsPublisher implements Events, SmartLifecycle, MeterBinder {
+
+    private static final long FULL_RING_PARK_NANOS = 100_000;
 
     private final ApplicationEventPublisher publisher;
+    private final ObjectProvider<EventsListener> listenerProvider;
+    private final EventRingBuffer ring;
+    private final int batchSize;
+    private final BackpressurePolicy backpressure;
+    private final long blockTimeoutNanos;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicBoolean dispatcherParked = new AtomicBoolean();
+
+    private volatile List<EventsListener> listeners = List.of();
+    private volatile boolean running;
+    private volatile Thread dispatcher;
+
+    public EventsPublisher(ApplicationEventPublisher publisher,
+                           ObjectProvider<EventsListener> listenerProvider,
+                           @Value("${card.events.ring-size:65536}") int ringSize,
+                           @Value("${card.events.batch-size:256}") int batchSize,
+                           @Value("${card.events.backpressure:BLOCK}") BackpressurePolicy backpressure,
+                           @Value("${card.events.block-timeout-millis:1000}") long blockTimeoutMillis) {
+        this.publisher = publisher;
+        this.listenerProvider = listenerProvider;
+        this.ring = new EventRingBuffer(ringSize);
+        this.batchSize = batchSize;
+        this.backpressure = backpressure;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
 
     @Override
     public void emit(LimitChangedEvent event) {
-        publisher.publishEvent(event);
+        publish(event);
     }
 
     @Override
     public void emit(LimitPartPaidEvent event) {
-        publisher.publishEvent(event);
+        publish(event);
     }
 
     @Override
     public void emit(LimitPartUsedEvent event) {
-        publisher.publishEvent(event);
+        publish(event);
+    }
+
+    @Override
+    public void emitAll(List<? extends Event> events) {
+        for (Event event : events) {
+            publish(event);
+        }
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("card.events.dropped", droppedEvents, AtomicLong::get)
+            .description("Committed events that were not published because the ring was full")
+            .register(registry);
+    }
+
+    private void publish(Event event) {
+        long deadline = 0;
+        while (!ring.offer(event)) {
+            if (backpressure != BLOCK) {
+                droppedEvents.incrementAndGet();
+                return;
+            }
+            if (deadline == 0) {
+                deadline = System.nanoTime() + blockTimeoutNanos;
+            } else if (System.nanoTime() - deadline >= 0) {
+                droppedEvents.incrementAndGet();
+                return;
+            }
+            LockSupport.parkNanos(FULL_RING_PARK_NANOS);
+        }
+        if (dispatcherParked.get() && dispatcherParked.compareAndSet(true, false)) {
+            LockSupport.unpark(dispatcher);
+        }
     }
 
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        listeners = listenerProvider.orderedStream().collect(Collectors.toUnmodifiableList());
+        running = true;
+
+        dispatcher = new Thread(this::dispatch, "card-events-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(dispatcher);
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void dispatch() {
+        List<Event> batch = new ArrayList<>(batchSize);
+
+        // keep going after stop until everything emitted so far has been handed out
+        while (running || !ring.isEmpty()) {
+            if (ring.drainTo(batch, batchSize) == 0) {
+                awaitEvents();
+                continue;
+            }
+
+            for (EventsListener listener : listeners) {
+                try {
+                    listener.onEvents(batch);
+                } catch (RuntimeException e) {
+                    log.error("Events listener {} failed on a batch of {} events", listener, batch.size(), e);
+                }
+            }
+            for (Event event : batch) {
+                try {
+                    publisher.publishEvent(event);
+                } catch (RuntimeException e) {
+                    log.error("Publishing event {} failed", event, e);
+                }
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Parks the dispatcher until the next event is offered or the publisher stops. The flag goes up before the ring
+     * is looked at again, so an event offered in between is either seen here or wakes the dispatcher up.
+     */
+    private void awaitEvents() {
+        dispatcherParked.set(true);
+        if (running && ring.isEmpty()) {
+            LockSupport.park(this);
+        }
+        dispatcherParked.set(false);
+    }
 }
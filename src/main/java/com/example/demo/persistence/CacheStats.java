@@ -0,0 +1,21 @@
+package com.example.demo.persistence;
+
+import lombok.Value;
+
+/**
+ * How often cards were found in the cache of {@link StoreLayout#CACHED} shards, read from a snapshot instead, and
+ * dropped from the cache to make room. All zero in the other layouts, which hold every card.
+ */
+@Value
+public class CacheStats {
+
+    static final CacheStats NONE = new CacheStats(0, 0, 0);
+
+    long hits;
+    long misses;
+    long evictions;
+
+    CacheStats plus(CacheStats other) {
+        return new CacheStats(hits + other.hits, misses + other.misses, evictions + other.evictions);
+    }
+}
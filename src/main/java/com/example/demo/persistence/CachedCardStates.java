@@ -0,0 +1,386 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+import com.example.demo.persistence.SnapshotStore.SnapshotFile;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds only the recently used cards of a shard, at most {@code capacity} of those that are unchanged since the
+ * latest snapshot, and reads any other card from that snapshot when it is asked for. A {@link CardIndex} knows where
+ * in the snapshot each card lies and its committed version, so an unknown card is answered without any read.
+ * <p>
+ * A card changed since the latest snapshot is only in memory until the next snapshot has it, so it stays cached
+ * until then however cold it is; every other card can be dropped at any time, as the snapshot holds its state.
+ * Snapshots keep the positions of the cards in the one before and append the cards created since, so a card is
+ * read from whichever snapshot is current. A card read from the snapshot only enters the cache if its version is
+ * still the committed one, checked under the lock of its map entry, which a commit takes too; a reader that lost
+ * such a race reads again.
+ * <p>
+ * Cards are dropped in the order of a clock: every read marks its card, and the sweep passes over marked cards once
+ * and drops the first unmarked one, which approximates least recently used without any ordering work on reads.
+ */
+class CachedCardStates implements CardStates {
+
+    /**
+     * Rough heap footprint of one cached card: the map node and its {@link UUID} key, the entry, its
+     * {@link CardSnapshot} and the node in the clock.
+     */
+    private static final long CACHE_ENTRY_BYTES = 192;
+    private static final int READ_BATCH = 1024;
+
+    private final int capacity;
+    private final CardIndex index = new CardIndex();
+    private final Map<UUID, Entry> cache = new ConcurrentHashMap<>();
+    private final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile SnapshotFile snapshot;
+
+    // only touched by the writer
+    private long epoch;
+    private List<Entry> changed = new ArrayList<>();
+    private List<Entry> changedBeforeSnapshot = List.of();
+    private List<UUID> created = new ArrayList<>();
+    private List<UUID> createdBeforeSnapshot = List.of();
+
+    CachedCardStates(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public CardSnapshot get(UUID cardId) {
+        Entry entry = cache.get(cardId);
+        if (entry != null) {
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            hits.increment();
+            return entry.card;
+        }
+        misses.increment();
+        return load(cardId);
+    }
+
+    @Override
+    public void put(CardSnapshot card) {
+        if (index.put(card.getCardId(), card.getVersion())) {
+            created.add(card.getCardId());
+        }
+        cache.compute(card.getCardId(), (cardId, current) -> {
+            Entry entry = current == null ? new Entry(cardId, card, false) : current;
+            entry.card = card;
+            entry.dirty = true;
+            if (entry.changedIn != epoch) {
+                entry.changedIn = epoch;
+                changed.add(entry);
+            }
+            return entry;
+        });
+        evict();
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void clear() {
+        index.clear();
+        cache.clear();
+        clock.clear();
+        changed = new ArrayList<>();
+        created = new ArrayList<>();
+        SnapshotFile previous = snapshot;
+        snapshot = null;
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    @Override
+    public long estimatedMemoryBytes() {
+        return index.estimatedMemoryBytes() + cache.size() * CACHE_ENTRY_BYTES;
+    }
+
+    /**
+     * Only indexes the cards of the snapshot, none of them is read into the cache.
+     */
+    @Override
+    public SnapshotStore.Offsets restore(SnapshotStore snapshots) {
+        Optional<SnapshotFile> latest = snapshots.openLatest();
+        if (latest.isEmpty()) {
+            return SnapshotStore.Offsets.NONE;
+        }
+        SnapshotFile file = latest.get();
+        CardSnapshot[] batch = new CardSnapshot[READ_BATCH];
+        for (int position = 0, read; (read = file.read(position, batch)) > 0; position += read) {
+            for (int i = 0; i < read; i++) {
+                index.put(batch[i].getCardId(), position + i, batch[i].getVersion());
+            }
+        }
+        snapshot = file;
+        return file.getOffsets();
+    }
+
+    /**
+     * The cards of the current snapshot in its order, each in its cached state if it has one, followed by the
+     * cards created since.
+     */
+    @Override
+    public Iterable<CardSnapshot> beginSnapshot() {
+        epoch++;
+        changedBeforeSnapshot = changed;
+        changed = new ArrayList<>();
+        createdBeforeSnapshot = created;
+        created = new ArrayList<>();
+
+        SnapshotFile file = snapshot;
+        int count = file == null ? 0 : file.getCount();
+        List<UUID> unwritten = createdBeforeSnapshot;
+        return () -> new CardIterator(count, unwritten);
+    }
+
+    /**
+     * Reads from the new snapshot from now on and lets the cards it holds in their latest state be dropped.
+     */
+    @Override
+    public void endSnapshot(Path path) {
+        SnapshotFile previous = snapshot;
+        int count = previous == null ? 0 : previous.getCount();
+        for (int i = 0; i < createdBeforeSnapshot.size(); i++) {
+            index.setPosition(createdBeforeSnapshot.get(i), count + i);
+        }
+        snapshot = SnapshotStore.open(path);
+        if (previous != null) {
+            previous.release();
+        }
+
+        for (Entry entry : changedBeforeSnapshot) {
+            cache.computeIfPresent(entry.cardId, (cardId, current) -> {
+                if (current == entry && current.changedIn < epoch) {
+                    current.dirty = false;
+                    if (!current.queued) {
+                        current.queued = true;
+                        clock.add(current);
+                    }
+                }
+                return current;
+            });
+        }
+        changedBeforeSnapshot = List.of();
+        createdBeforeSnapshot = List.of();
+        evict();
+    }
+
+    @Override
+    public long eventCount() {
+        return index.versionSum();
+    }
+
+    @Override
+    public CacheStats cacheStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    @Override
+    public Iterator<CardSnapshot> iterator() {
+        SnapshotFile file = snapshot;
+        int count = file == null ? 0 : file.getCount();
+        List<UUID> unwritten = new ArrayList<>();
+        index.forEachAfter(count, unwritten::add);
+        return new CardIterator(count, unwritten);
+    }
+
+    /**
+     * Returns the card from the cache, or reads it from the snapshot and caches it.
+     */
+    private CardSnapshot load(UUID cardId) {
+        while (true) {
+            Entry cached = cache.get(cardId);
+            if (cached != null) {
+                return cached.card;
+            }
+            long[] location = index.locate(cardId);
+            if (location == null) {
+                return null;
+            }
+
+            CardSnapshot stored = read(location[0]);
+            if (stored == null || !stored.getCardId().equals(cardId) || stored.getVersion() != location[1]) {
+                // committed after the snapshot that was read, so the writer has cached it or is about to
+                Thread.onSpinWait();
+                continue;
+            }
+            Entry loaded = new Entry(cardId, stored, true);
+            Entry entry = cache.compute(cardId, (id, current) ->
+                current != null || index.version(id) != stored.getVersion() ? current : loaded);
+            if (entry == loaded) {
+                clock.add(loaded);
+                evict();
+            }
+            if (entry != null) {
+                return entry.card;
+            }
+        }
+    }
+
+    /**
+     * Returns the card at the position of the current snapshot, or {@code null} if there is none.
+     */
+    private CardSnapshot read(long position) {
+        SnapshotFile file = snapshot;
+        if (position == CardIndex.UNWRITTEN || file == null || !file.retain()) {
+            return null;
+        }
+        try {
+            return file.read((int) position);
+        } finally {
+            file.release();
+        }
+    }
+
+    /**
+     * Sweeps the clock until the cache is back within its capacity, skipping cards changed since the latest
+     * snapshot, which leave the clock until they are in one. Only one thread sweeps at a time; others go on.
+     */
+    private void evict() {
+        if (cache.size() <= capacity || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (int budget = 2 * cache.size(); budget > 0 && cache.size() > capacity; budget--) {
+                Entry entry = clock.poll();
+                if (entry == null) {
+                    return;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.add(entry);
+                    continue;
+                }
+                boolean[] evicted = new boolean[1];
+                cache.computeIfPresent(entry.cardId, (cardId, current) -> {
+                    if (current != entry) {
+                        return current;
+                    }
+                    if (current.dirty) {
+                        current.queued = false;
+                        return current;
+                    }
+                    evicted[0] = true;
+                    return null;
+                });
+                if (evicted[0]) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * A cached card. {@code dirty} and {@code queued} are only accessed under the lock of its map entry.
+     */
+    private static final class Entry {
+
+        final UUID cardId;
+        volatile CardSnapshot card;
+        volatile boolean referenced;
+        boolean dirty;
+        boolean queued;
+        long changedIn = -1;
+
+        Entry(UUID cardId, CardSnapshot card, boolean queued) {
+            this.cardId = cardId;
+            this.card = card;
+            this.queued = queued;
+        }
+    }
+
+    /**
+     * Reads the first {@code count} cards from the current snapshot in batches, and then the cards that are in none
+     * yet. Positions are kept across snapshots, so a batch is read from whichever snapshot is current by then.
+     */
+    private final class CardIterator implements Iterator<CardSnapshot> {
+
+        private final int count;
+        private final Iterator<UUID> unwritten;
+        private final CardSnapshot[] batch = new CardSnapshot[READ_BATCH];
+        private int position;
+        private int batchSize;
+        private int batchIndex;
+        private CardSnapshot next;
+
+        CardIterator(int count, List<UUID> unwritten) {
+            this.count = count;
+            this.unwritten = unwritten.iterator();
+            next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public CardSnapshot next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            CardSnapshot card = next;
+            next = advance();
+            return card;
+        }
+
+        private CardSnapshot advance() {
+            if (batchIndex == batchSize && position < count) {
+                readBatch();
+            }
+            if (batchIndex < batchSize) {
+                CardSnapshot stored = batch[batchIndex++];
+                Entry cached = cache.get(stored.getCardId());
+                return cached != null ? cached.card : stored;
+            }
+            while (unwritten.hasNext()) {
+                CardSnapshot card = load(unwritten.next());
+                if (card != null) {
+                    return card;
+                }
+            }
+            return null;
+        }
+
+        private void readBatch() {
+            batchIndex = 0;
+            batchSize = 0;
+            for (SnapshotFile file = snapshot; file != null; file = snapshot) {
+                if (file.retain()) {
+                    try {
+                        batchSize = Math.min(file.read(position, batch), count - position);
+                    } finally {
+                        file.release();
+                    }
+                    position += batchSize;
+                    return;
+                }
+            }
+        }
+    }
+}
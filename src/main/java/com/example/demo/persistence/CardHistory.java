@@ -0,0 +1,292 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.Card;
+import com.example.demo.domain.CardSnapshot;
+import lombok.Value;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checkpoints of the state of each card of a shard, for answering what a card looked like at a past instant from
+ * the nearest of them instead of from the whole {@link EventLog}.
+ * <p>
+ * A card gets a checkpoint every {@link #CHECKPOINT_INTERVAL} events, up to {@link #MAX_CHECKPOINTS} of them; when
+ * they are all taken every other one is dropped, so the newest are the densest and the whole life of the card stays
+ * covered. The offsets of the events after the newest checkpoint are kept as a tail, so a query about the recent
+ * past reads only those records. An older one reads the log between the two checkpoints around the instant, which
+ * holds the events of the other cards of the shard as well. Either way a card costs a bounded amount of memory,
+ * however long it lives.
+ * <p>
+ * The checkpoints are saved with every snapshot of the shard, see {@link SnapshotStore#writeHistory}, so a restart
+ * only replays the log after the snapshot. The events carry no timestamp of their own, so the commit timestamps come
+ * from the framing of their records in the log.
+ */
+class CardHistory {
+
+    static final int CHECKPOINT_INTERVAL = 32;
+    static final int MAX_CHECKPOINTS = 16;
+
+    /**
+     * Rough heap footprint of the index of one card beside its checkpoints and tail.
+     */
+    private static final long CARD_OVERHEAD_BYTES = 128;
+
+    /**
+     * Rough heap footprint of one checkpoint: its timestamp, its offset and the {@link CardSnapshot}.
+     */
+    private static final long CHECKPOINT_BYTES = 2 * Long.BYTES + 48;
+
+    private final Map<UUID, Timeline> timelines = new ConcurrentHashMap<>();
+
+    /**
+     * Records a commit of the card, which reached {@code card} with its last event. Called by the writer in commit
+     * order of the card.
+     */
+    void record(CardSnapshot card, long timestamp, long firstOffset, int events) {
+        timelines.computeIfAbsent(card.getCardId(), cardId -> new Timeline())
+            .record(card, timestamp, firstOffset, events);
+    }
+
+    /**
+     * Returns the state of the card after its last event committed at or before the timestamp, or {@code null} if
+     * it had none by then.
+     */
+    CardSnapshot asOf(UUID cardId, long timestamp, EventLog eventLog) {
+        Timeline timeline = timelines.get(cardId);
+        if (timeline == null) {
+            return null;
+        }
+
+        Timeline.Tail tail = timeline.tailAsOf(timestamp);
+        Card card = tail.getStart() == null ? new Card(cardId) : Card.from(tail.getStart());
+        if (tail.getOffsets() != null) {
+            for (long offset : tail.getOffsets()) {
+                boolean[] after = new boolean[1];
+                eventLog.read(offset, (event, sequence, eventTimestamp, idempotencyKey) -> {
+                    after[0] = eventTimestamp > timestamp;
+                    if (!after[0]) {
+                        card.apply(event);
+                    }
+                });
+                if (after[0]) {
+                    break;
+                }
+            }
+        } else {
+            boolean[] after = new boolean[1];
+            for (long offset = tail.getFromOffset(); offset < tail.getToOffset() && !after[0]; ) {
+                long next = eventLog.read(offset, tail.getToOffset(),
+                    (recordOffset, nextOffset, event, sequence, eventTimestamp, idempotencyKey) -> {
+                        if (after[0] || !event.getCardId().equals(cardId)) {
+                            return;
+                        }
+                        after[0] = eventTimestamp > timestamp;
+                        if (!after[0] && sequence > card.getVersion()) {
+                            card.apply(event);
+                        }
+                    });
+                if (next == offset) {
+                    break;
+                }
+                offset = next;
+            }
+        }
+        return card.getVersion() == 0 ? null : card.snapshot();
+    }
+
+    /**
+     * Returns the card as of the last commit recorded for it, or a fresh one if there is none.
+     */
+    Card latest(UUID cardId, EventLog eventLog) {
+        CardSnapshot latest = asOf(cardId, Long.MAX_VALUE, eventLog);
+        return latest == null ? new Card(cardId) : Card.from(latest);
+    }
+
+    /**
+     * Writes the checkpoints and tails of all cards. Commits may go on meanwhile, each card is written as of some
+     * commit of its own.
+     */
+    void write(DataOutput out) throws IOException {
+        for (Map.Entry<UUID, Timeline> entry : timelines.entrySet()) {
+            out.writeBoolean(true);
+            out.writeLong(entry.getKey().getMostSignificantBits());
+            out.writeLong(entry.getKey().getLeastSignificantBits());
+            entry.getValue().write(out);
+        }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Reads back what {@link #write} wrote, replacing whatever the history held.
+     */
+    void read(DataInput in) throws IOException {
+        timelines.clear();
+        while (in.readBoolean()) {
+            UUID cardId = new UUID(in.readLong(), in.readLong());
+            timelines.put(cardId, Timeline.read(cardId, in));
+        }
+    }
+
+    void clear() {
+        timelines.clear();
+    }
+
+    long estimatedMemoryBytes() {
+        long bytes = 0;
+        for (Timeline timeline : timelines.values()) {
+            bytes += CARD_OVERHEAD_BYTES + timeline.estimatedMemoryBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * The checkpoints and the tail of one card. Written by the shard's writer and read by queries, so guarded by its
+     * own monitor.
+     */
+    private static class Timeline {
+
+        // where the first event of the card is, the start of the range before the oldest checkpoint
+        private long origin = -1;
+        private long[] checkpointTimestamps = new long[0];
+        // where the events after each checkpoint start
+        private long[] checkpointOffsets = new long[0];
+        private CardSnapshot[] checkpoints = new CardSnapshot[0];
+        private int checkpointCount;
+        private long[] tail = new long[4];
+        private int tailCount;
+
+        synchronized void record(CardSnapshot card, long timestamp, long firstOffset, int count) {
+            if (origin < 0) {
+                origin = firstOffset;
+            }
+
+            long lastCheckpoint = checkpointCount == 0 ? 0 : checkpoints[checkpointCount - 1].getVersion();
+            if (card.getVersion() - lastCheckpoint < CHECKPOINT_INTERVAL) {
+                if (tailCount + count > tail.length) {
+                    tail = Arrays.copyOf(tail, Math.max(tail.length * 2, tailCount + count));
+                }
+                for (int i = 0; i < count; i++) {
+                    tail[tailCount++] = firstOffset + (long) i * EventLog.RECORD_SIZE;
+                }
+                return;
+            }
+
+            if (checkpointCount == MAX_CHECKPOINTS) {
+                thin();
+            } else if (checkpointCount == checkpoints.length) {
+                int capacity = Math.min(Math.max(checkpointCount * 2, 1), MAX_CHECKPOINTS);
+                checkpoints = Arrays.copyOf(checkpoints, capacity);
+                checkpointTimestamps = Arrays.copyOf(checkpointTimestamps, capacity);
+                checkpointOffsets = Arrays.copyOf(checkpointOffsets, capacity);
+            }
+            checkpointTimestamps[checkpointCount] = timestamp;
+            checkpointOffsets[checkpointCount] = firstOffset + (long) count * EventLog.RECORD_SIZE;
+            checkpoints[checkpointCount++] = card;
+            tailCount = 0;
+        }
+
+        /**
+         * Returns the last checkpoint at or before the timestamp and where the events that may follow it up to
+         * there are: the offsets of the tail after the newest checkpoint, or else the range of the log up to the
+         * next checkpoint.
+         */
+        synchronized Tail tailAsOf(long timestamp) {
+            int index = lastCheckpointAtOrBefore(timestamp);
+            CardSnapshot start = index < 0 ? null : checkpoints[index];
+            if (index == checkpointCount - 1) {
+                return new Tail(start, Arrays.copyOf(tail, tailCount), 0, 0);
+            }
+            long from = index < 0 ? origin : checkpointOffsets[index];
+            return new Tail(start, null, from, checkpointOffsets[index + 1]);
+        }
+
+        synchronized long estimatedMemoryBytes() {
+            return (long) tail.length * Long.BYTES + checkpoints.length * CHECKPOINT_BYTES;
+        }
+
+        synchronized void write(DataOutput out) throws IOException {
+            out.writeLong(origin);
+            out.writeInt(checkpointCount);
+            for (int i = 0; i < checkpointCount; i++) {
+                out.writeLong(checkpointTimestamps[i]);
+                out.writeLong(checkpointOffsets[i]);
+                out.writeLong(checkpoints[i].getVersion());
+                out.writeLong(checkpoints[i].getLimit());
+                out.writeLong(checkpoints[i].getUsedLimit());
+                out.writeLong(checkpoints[i].getHeldLimit());
+            }
+            out.writeInt(tailCount);
+            for (int i = 0; i < tailCount; i++) {
+                out.writeLong(tail[i]);
+            }
+        }
+
+        static Timeline read(UUID cardId, DataInput in) throws IOException {
+            Timeline timeline = new Timeline();
+            timeline.origin = in.readLong();
+            timeline.checkpointCount = in.readInt();
+            int capacity = Math.min(timeline.checkpointCount, MAX_CHECKPOINTS);
+            timeline.checkpointTimestamps = new long[capacity];
+            timeline.checkpointOffsets = new long[capacity];
+            timeline.checkpoints = new CardSnapshot[capacity];
+            for (int i = 0; i < timeline.checkpointCount; i++) {
+                timeline.checkpointTimestamps[i] = in.readLong();
+                timeline.checkpointOffsets[i] = in.readLong();
+                long version = in.readLong();
+                long limit = in.readLong();
+                long usedLimit = in.readLong();
+                long heldLimit = in.readLong();
+                timeline.checkpoints[i] = new CardSnapshot(cardId, limit, usedLimit, heldLimit, version);
+            }
+            timeline.tailCount = in.readInt();
+            timeline.tail = new long[Math.max(timeline.tailCount, 4)];
+            for (int i = 0; i < timeline.tailCount; i++) {
+                timeline.tail[i] = in.readLong();
+            }
+            return timeline;
+        }
+
+        /**
+         * Drops every other checkpoint, keeping the newest one.
+         */
+        private void thin() {
+            int kept = 0;
+            for (int i = 1; i < checkpointCount; i += 2) {
+                checkpointTimestamps[kept] = checkpointTimestamps[i];
+                checkpointOffsets[kept] = checkpointOffsets[i];
+                checkpoints[kept++] = checkpoints[i];
+            }
+            Arrays.fill(checkpoints, kept, checkpointCount, null);
+            checkpointCount = kept;
+        }
+
+        private int lastCheckpointAtOrBefore(long timestamp) {
+            int low = 0;
+            int high = checkpointCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (checkpointTimestamps[middle] <= timestamp) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+
+        @Value
+        private static class Tail {
+            CardSnapshot start;
+            // null if the events are to be found in the range instead
+            long[] offsets;
+            long fromOffset;
+            long toOffset;
+        }
+    }
+}
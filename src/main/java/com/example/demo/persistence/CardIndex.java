@@ -0,0 +1,225 @@
+package com.example.demo.persistence;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Every card of a shard in a single {@code long[]}: where it lies in the latest snapshot and its committed version.
+ * An open addressing hash table like {@link FlatCardStates}, with the same sequence lock per slot, but without the
+ * state of the card, so it takes five longs per card.
+ * <p>
+ * Each slot is {@code [stamp][msb][lsb][position][version]}, where the position is the index of the card in the
+ * latest snapshot, or {@code -1} if it has been created since. Written by one thread at a time and read by any.
+ */
+class CardIndex {
+
+    /**
+     * Position of a card that is in no snapshot yet.
+     */
+    static final int UNWRITTEN = -1;
+
+    private static final int FIELDS = 5;
+    private static final int STAMP = 0;
+    private static final int MSB = 1;
+    private static final int LSB = 2;
+    private static final int POSITION = 3;
+    private static final int VERSION = 4;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private volatile long[] table = new long[INITIAL_CAPACITY * FIELDS];
+    private volatile int size;
+
+    /**
+     * Returns the version of the card, or {@code 0} for an unknown card.
+     */
+    long version(UUID cardId) {
+        long[] location = locate(cardId);
+        return location == null ? 0 : location[1];
+    }
+
+    /**
+     * Returns the position and the version of the card, or {@code null} for an unknown card.
+     */
+    long[] locate(UUID cardId) {
+        long msb = cardId.getMostSignificantBits();
+        long lsb = cardId.getLeastSignificantBits();
+        long[] slots = table;
+        int mask = capacity(slots) - 1;
+
+        for (int slot = FlatCardStates.indexOf(msb, lsb, mask); ; slot = (slot + 1) & mask) {
+            int base = slot * FIELDS;
+            while (true) {
+                long stamp = (long) SLOTS.getAcquire(slots, base + STAMP);
+                if (stamp == 0) {
+                    return null;
+                }
+                if ((stamp & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+
+                boolean match = slots[base + MSB] == msb && slots[base + LSB] == lsb;
+                long position = slots[base + POSITION];
+                long version = slots[base + VERSION];
+                VarHandle.loadLoadFence();
+                if ((long) SLOTS.getOpaque(slots, base + STAMP) != stamp) {
+                    continue;
+                }
+                if (match) {
+                    return new long[]{position, version};
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sets the version of the card, adding it as {@link #UNWRITTEN} if it is new, and returns whether it was.
+     */
+    boolean put(UUID cardId, long version) {
+        long[] slots = slotsFor(cardId);
+        int base = find(slots, cardId.getMostSignificantBits(), cardId.getLeastSignificantBits());
+        boolean added = slots[base + STAMP] == 0;
+        write(slots, base, cardId, added ? UNWRITTEN : slots[base + POSITION], version);
+        return added;
+    }
+
+    /**
+     * Adds a card read from the snapshot at the position.
+     */
+    void put(UUID cardId, int position, long version) {
+        long[] slots = slotsFor(cardId);
+        write(slots, find(slots, cardId.getMostSignificantBits(), cardId.getLeastSignificantBits()), cardId,
+            position, version);
+    }
+
+    /**
+     * Records where a card that was {@link #UNWRITTEN} lies in the snapshot just written.
+     */
+    void setPosition(UUID cardId, int position) {
+        long[] slots = table;
+        int base = find(slots, cardId.getMostSignificantBits(), cardId.getLeastSignificantBits());
+        if (slots[base + STAMP] != 0) {
+            write(slots, base, cardId, position, slots[base + VERSION]);
+        }
+    }
+
+    /**
+     * Hands over the cards that are not among the first {@code count} of the latest snapshot.
+     */
+    void forEachAfter(int count, Consumer<UUID> consumer) {
+        long[] slots = table;
+        for (int base = 0; base < slots.length; base += FIELDS) {
+            while (true) {
+                long stamp = (long) SLOTS.getAcquire(slots, base + STAMP);
+                if (stamp == 0) {
+                    break;
+                }
+                if ((stamp & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+
+                long msb = slots[base + MSB];
+                long lsb = slots[base + LSB];
+                long position = slots[base + POSITION];
+                VarHandle.loadLoadFence();
+                if ((long) SLOTS.getOpaque(slots, base + STAMP) != stamp) {
+                    continue;
+                }
+                if (position == UNWRITTEN || position >= count) {
+                    consumer.accept(new UUID(msb, lsb));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sum of the versions of all cards. Only called by the writer.
+     */
+    long versionSum() {
+        long[] slots = table;
+        long sum = 0;
+        for (int base = 0; base < slots.length; base += FIELDS) {
+            sum += slots[base + VERSION];
+        }
+        return sum;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        table = new long[INITIAL_CAPACITY * FIELDS];
+        size = 0;
+    }
+
+    long estimatedMemoryBytes() {
+        return (long) table.length * Long.BYTES;
+    }
+
+    /**
+     * Returns the table the card belongs in, growing it first if the card is new and the table too full.
+     */
+    private long[] slotsFor(UUID cardId) {
+        long[] slots = table;
+        int base = find(slots, cardId.getMostSignificantBits(), cardId.getLeastSignificantBits());
+        if (slots[base + STAMP] == 0) {
+            if ((size + 1) * 4L > capacity(slots) * 3L) {
+                slots = grow(slots);
+            }
+            size = size + 1;
+        }
+        return slots;
+    }
+
+    /**
+     * Only called by the writer, which is the only one to change slots and so can read them plainly.
+     */
+    private static void write(long[] slots, int base, UUID cardId, long position, long version) {
+        long stamp = slots[base + STAMP];
+        SLOTS.setOpaque(slots, base + STAMP, stamp + 1);
+        VarHandle.storeStoreFence();
+        slots[base + MSB] = cardId.getMostSignificantBits();
+        slots[base + LSB] = cardId.getLeastSignificantBits();
+        slots[base + POSITION] = position;
+        slots[base + VERSION] = version;
+        SLOTS.setRelease(slots, base + STAMP, stamp + 2);
+    }
+
+    /**
+     * Returns the slot of the card, or the free slot where it belongs.
+     */
+    private static int find(long[] slots, long msb, long lsb) {
+        int mask = capacity(slots) - 1;
+        for (int slot = FlatCardStates.indexOf(msb, lsb, mask); ; slot = (slot + 1) & mask) {
+            int base = slot * FIELDS;
+            if (slots[base + STAMP] == 0 || (slots[base + MSB] == msb && slots[base + LSB] == lsb)) {
+                return base;
+            }
+        }
+    }
+
+    private long[] grow(long[] slots) {
+        long[] grown = new long[slots.length * 2];
+        for (int base = 0; base < slots.length; base += FIELDS) {
+            if (slots[base + STAMP] != 0) {
+                int target = find(grown, slots[base + MSB], slots[base + LSB]);
+                System.arraycopy(slots, base, grown, target, FIELDS);
+                grown[target + STAMP] = 2;
+            }
+        }
+        table = grown;
+        return grown;
+    }
+
+    private static int capacity(long[] slots) {
+        return slots.length / FIELDS;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Committed state of the cards of one shard. Written by one thread at a time, the shard's committing writer, and
+ * read by any thread without locking.
+ */
+interface CardStates extends Iterable<CardSnapshot> {
+
+    /**
+     * Returns the state of the card, or {@code null} for an unknown card.
+     */
+    CardSnapshot get(UUID cardId);
+
+    void put(CardSnapshot card);
+
+    int size();
+
+    void clear();
+
+    long estimatedMemoryBytes();
+
+    /**
+     * Restores the cards of the newest snapshot and returns where in the log it was taken, or
+     * {@link SnapshotStore.Offsets#NONE} without one.
+     */
+    default SnapshotStore.Offsets restore(SnapshotStore snapshots) {
+        return snapshots.loadLatest()
+            .map(snapshot -> {
+                snapshot.getCards().values().forEach(this::put);
+                return new SnapshotStore.Offsets(snapshot.getLogOffset(), snapshot.getHoldsOffset());
+            })
+            .orElse(SnapshotStore.Offsets.NONE);
+    }
+
+    /**
+     * Returns the cards to write to the next snapshot. Called under the commit lock, while the log offset of the
+     * snapshot is taken.
+     */
+    default Iterable<CardSnapshot> beginSnapshot() {
+        return this;
+    }
+
+    /**
+     * Called under the commit lock once the cards returned by {@link #beginSnapshot()} have been written.
+     */
+    default void endSnapshot(Path snapshot) {
+    }
+
+    /**
+     * Sum of the versions of all cards, which is the number of events committed to them.
+     */
+    default long eventCount() {
+        long count = 0;
+        for (CardSnapshot card : this) {
+            count += card.getVersion();
+        }
+        return count;
+    }
+
+    default CacheStats cacheStats() {
+        return CacheStats.NONE;
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+
+/**
+ * Told about every commit once it is durable, on the committer thread of its shard and before the writer is
+ * acknowledged. Calls for one card therefore arrive in version order, and a listener must be quick.
+ */
+public interface CommitListener {
+
+    void onCommit(CardSnapshot card);
+
+    void onClear();
+}
@@ -0,0 +1,13 @@
+package com.example.demo.persistence;
+
+import com.example.demo.events.Event;
+
+/**
+ * Receives committed events read back from the log of a shard, each with the offset of its record and the offset
+ * right after it, where reading resumes.
+ */
+@FunctionalInterface
+public interface CommittedEventConsumer {
+
+    void accept(int shard, long offset, long nextOffset, Event event, long sequence, long timestamp);
+}
@@ -0,0 +1,133 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.Money;
+import com.example.demo.domain.events.HoldCapturedEvent;
+import com.example.demo.domain.events.HoldExpiredEvent;
+import com.example.demo.domain.events.HoldReleasedEvent;
+import com.example.demo.domain.events.LimitChangedEvent;
+import com.example.demo.domain.events.LimitHeldEvent;
+import com.example.demo.domain.events.LimitPartPaidEvent;
+import com.example.demo.domain.events.LimitPartUsedEvent;
+import com.example.demo.events.Event;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Fixed size binary encoding of the domain events, read and written in place on a {@link ByteBuffer}.
+ * <p>
+ * A record is {@code [schema:byte][type:byte][cardId:16][amount:long][sequence:long][timestamp:long]
+ * [idempotencyKey:long][reference:long]}, with the amount in minor units, the timestamp in epoch millis of the
+ * commit and the idempotency key the 64 bit hash the commit was made under, {@code 0} for none. The reference ties
+ * the events of a hold together: it is the expiry in epoch millis of a {@link LimitHeldEvent}, whose hold id is its
+ * own sequence, and the hold id of the events that close a hold. A record of any other schema or size is rejected.
+ */
+final class EventCodec {
+
+    static final byte SCHEMA = 4;
+    static final int SIZE = 1 + 1 + 16 + Long.BYTES + Long.BYTES + Long.BYTES + Long.BYTES + Long.BYTES;
+
+    private static final byte LIMIT_CHANGED = 1;
+    private static final byte LIMIT_PART_USED = 2;
+    private static final byte LIMIT_PART_PAID = 3;
+    private static final byte LIMIT_HELD = 4;
+    private static final byte HOLD_CAPTURED = 5;
+    private static final byte HOLD_RELEASED = 6;
+    private static final byte HOLD_EXPIRED = 7;
+
+    private EventCodec() {
+    }
+
+    static void encode(Event event, long sequence, long timestamp, long idempotencyKey, ByteBuffer buffer) {
+        byte type;
+        Money amount;
+        long reference = 0;
+        if (event instanceof LimitChangedEvent) {
+            type = LIMIT_CHANGED;
+            amount = ((LimitChangedEvent) event).getLimit();
+        } else if (event instanceof LimitPartUsedEvent) {
+            type = LIMIT_PART_USED;
+            amount = ((LimitPartUsedEvent) event).getLimitPartValue();
+        } else if (event instanceof LimitPartPaidEvent) {
+            type = LIMIT_PART_PAID;
+            amount = ((LimitPartPaidEvent) event).getLimitPartValue();
+        } else if (event instanceof LimitHeldEvent) {
+            type = LIMIT_HELD;
+            amount = ((LimitHeldEvent) event).getAmount();
+            reference = ((LimitHeldEvent) event).getExpiresAt();
+        } else if (event instanceof HoldCapturedEvent) {
+            type = HOLD_CAPTURED;
+            amount = ((HoldCapturedEvent) event).getAmount();
+            reference = ((HoldCapturedEvent) event).getHoldId();
+        } else if (event instanceof HoldReleasedEvent) {
+            type = HOLD_RELEASED;
+            amount = ((HoldReleasedEvent) event).getAmount();
+            reference = ((HoldReleasedEvent) event).getHoldId();
+        } else if (event instanceof HoldExpiredEvent) {
+            type = HOLD_EXPIRED;
+            amount = ((HoldExpiredEvent) event).getAmount();
+            reference = ((HoldExpiredEvent) event).getHoldId();
+        } else {
+            throw new IllegalArgumentException("Unsupported event type: " + event.getClass().getName());
+        }
+
+        buffer.put(SCHEMA);
+        buffer.put(type);
+        buffer.putLong(event.getCardId().getMostSignificantBits());
+        buffer.putLong(event.getCardId().getLeastSignificantBits());
+        buffer.putLong(amount.getMinorUnits());
+        buffer.putLong(sequence);
+        buffer.putLong(timestamp);
+        buffer.putLong(idempotencyKey);
+        buffer.putLong(reference);
+    }
+
+    /**
+     * Decodes the single record that fills the remaining bytes of the buffer.
+     *
+     * @throws IllegalStateException if the record is not one of {@link #SIZE} bytes in the {@link #SCHEMA}
+     */
+    static void decode(ByteBuffer record, RecordConsumer consumer) {
+        if (record.remaining() != SIZE) {
+            throw new IllegalStateException("Event record of " + record.remaining() + " bytes, not " + SIZE);
+        }
+        byte schema = record.get();
+        if (schema != SCHEMA) {
+            throw new IllegalStateException("Unknown event schema: " + schema);
+        }
+        byte type = record.get();
+        UUID cardId = new UUID(record.getLong(), record.getLong());
+        Money amount = Money.ofMinorUnits(record.getLong());
+        long sequence = record.getLong();
+        long timestamp = record.getLong();
+        long idempotencyKey = record.getLong();
+        long reference = record.getLong();
+        consumer.accept(decodeEvent(type, cardId, amount, sequence, reference), sequence, timestamp, idempotencyKey);
+    }
+
+    private static Event decodeEvent(byte type, UUID cardId, Money amount, long sequence, long reference) {
+        switch (type) {
+            case LIMIT_CHANGED:
+                return new LimitChangedEvent(cardId, amount);
+            case LIMIT_PART_USED:
+                return new LimitPartUsedEvent(cardId, amount);
+            case LIMIT_PART_PAID:
+                return new LimitPartPaidEvent(cardId, amount);
+            case LIMIT_HELD:
+                return new LimitHeldEvent(cardId, sequence, amount, reference);
+            case HOLD_CAPTURED:
+                return new HoldCapturedEvent(cardId, reference, amount);
+            case HOLD_RELEASED:
+                return new HoldReleasedEvent(cardId, reference, amount);
+            case HOLD_EXPIRED:
+                return new HoldExpiredEvent(cardId, reference, amount);
+            default:
+                throw new IllegalStateException("Unknown event type: " + type);
+        }
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(Event event, long sequence, long timestamp, long idempotencyKey);
+    }
+}
@@ -0,0 +1,446 @@
+package com.example.demo.persistence;
+
+import com.example.demo.events.Event;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only log of domain events split into segment files.
+ * <p>
+ * Each record is laid out as {@code [length:int][crc32:int][event]}, where the event is encoded by
+ * {@link EventCodec} together with its sequence, the version the card reached with it. Segments are named after
+ * the log offset of their first byte, so an offset is simply a byte position in the whole log. Appends encode
+ * straight into a buffer that a single {@link FileChannel} write puts at the end of the active segment; the log
+ * never seeks backwards.
+ * <p>
+ * Reads of single records and spans take no lock: they go through read-only channels of their own, one per segment,
+ * with positional reads into buffers of the reading thread, so they neither wait for appends nor hold them up.
+ */
+class EventLog implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    static final int RECORD_SIZE = HEADER_SIZE + EventCodec.SIZE;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    private final Path directory;
+    private final long segmentSize;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final CRC32 checksum = new CRC32();
+
+    // bases of every segment, the active one included, and the read channels opened so far
+    private final NavigableSet<Long> bases = new ConcurrentSkipListSet<>();
+    private final Map<Long, FileChannel> readers = new ConcurrentHashMap<>();
+
+    private FileChannel segment;
+    private long segmentBase;
+    private long endOffset;
+
+    EventLog(Path directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        open();
+    }
+
+    /**
+     * Appends events of a single card in order and returns the log offset right after the last of them.
+     * The first event gets {@code firstSequence}, every following one the next number; all of them are stamped
+     * with the current time. The records are {@link #RECORD_SIZE} bytes each and follow each other without a gap,
+     * even across segments.
+     */
+    long append(List<? extends Event> events, long firstSequence) {
+        return append(events, firstSequence, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Like {@link #append(List, long)}, with the events stamped with the given epoch millis and idempotency key.
+     */
+    synchronized long append(List<? extends Event> events, long firstSequence, long timestamp,
+                             long idempotencyKey) {
+        long end = write(events, firstSequence, timestamp, idempotencyKey);
+        flush();
+        return end;
+    }
+
+    /**
+     * Like {@link #append(List, long, long, long)}, but leaves the records in the write buffer, which is only
+     * handed to the file when it is full or on the next {@link #flush()}. Lets a writer append the events of many
+     * cards with a single write call; until the flush the records can be neither read nor synced.
+     */
+    synchronized long write(List<? extends Event> events, long firstSequence, long timestamp, long idempotencyKey) {
+        long sequence = firstSequence;
+        for (Event event : events) {
+            if (endOffset - segmentBase + RECORD_SIZE > segmentSize) {
+                roll();
+            }
+            if (writeBuffer.remaining() < RECORD_SIZE) {
+                flush();
+            }
+
+            // encode straight into the write buffer and fill in the header once the checksum is known
+            int start = writeBuffer.position();
+            writeBuffer.position(start + HEADER_SIZE);
+            EventCodec.encode(event, sequence++, timestamp, idempotencyKey, writeBuffer);
+            int end = writeBuffer.position();
+
+            checksum.reset();
+            writeBuffer.position(start + HEADER_SIZE).limit(end);
+            checksum.update(writeBuffer);
+            writeBuffer.limit(writeBuffer.capacity());
+
+            writeBuffer.putInt(start, EventCodec.SIZE);
+            writeBuffer.putInt(start + Integer.BYTES, (int) checksum.getValue());
+            endOffset += RECORD_SIZE;
+        }
+        return endOffset;
+    }
+
+    /**
+     * Reads every record starting at {@code fromOffset} and hands the decoded events to the consumer in
+     * append order.
+     */
+    void replay(long fromOffset, EventCodec.RecordConsumer consumer) {
+        replay(fromOffset, (offset, event, sequence, timestamp, idempotencyKey) ->
+            consumer.accept(event, sequence, timestamp, idempotencyKey));
+    }
+
+    /**
+     * Like {@link #replay(long, EventCodec.RecordConsumer)}, but hands out the offset of every record as well.
+     */
+    synchronized void replay(long fromOffset, LocatedRecordConsumer consumer) {
+        List<Long> bases = segmentBases();
+        for (int i = 0; i < bases.size(); i++) {
+            long base = bases.get(i);
+            boolean endsBeforeOffset = i + 1 < bases.size() && bases.get(i + 1) <= fromOffset;
+            if (endsBeforeOffset) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(segmentPath(base), READ)) {
+                var buffer = channel.map(READ_ONLY, 0, channel.size());
+                buffer.position((int) Math.min(Math.max(fromOffset - base, 0), buffer.limit()));
+                readRecords(buffer, base, (offset, nextOffset, event, sequence, timestamp, idempotencyKey) ->
+                    consumer.accept(offset, event, sequence, timestamp, idempotencyKey));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the single record at the offset, one handed out by {@link #append} or {@link #replay}.
+     *
+     * @throws IllegalStateException if there is no intact record at the offset
+     */
+    void read(long offset, EventCodec.RecordConsumer consumer) {
+        long base = baseOf(offset);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        readAt(base, offset - base, buffer);
+
+        buffer.flip();
+        if (buffer.remaining() >= HEADER_SIZE) {
+            buffer.limit(Math.min(buffer.limit(), HEADER_SIZE + Math.max(buffer.getInt(0), 0)));
+        }
+        boolean[] found = new boolean[1];
+        readRecords(buffer, offset, (recordOffset, nextOffset, event, sequence, timestamp, idempotencyKey) -> {
+            found[0] = true;
+            consumer.accept(event, sequence, timestamp, idempotencyKey);
+        });
+        if (!found[0]) {
+            throw new IllegalStateException("No event record at offset " + offset);
+        }
+    }
+
+    /**
+     * Reads the records from {@code fromOffset}, where a record starts, up to {@code toOffset} and returns the
+     * offset after the last one handed out. Reads no further than the end of the segment and what fits in the read
+     * buffer, so a caller loops until it gets {@code toOffset} back. The records come with one positional read
+     * straight into a direct buffer of the reading thread and are decoded in place, without mapping the segment or
+     * copying them onto the heap, and only records the writer has already handed to the file are ever asked for.
+     */
+    long read(long fromOffset, long toOffset, SpanConsumer consumer) {
+        if (fromOffset >= toOffset) {
+            return fromOffset;
+        }
+        long base = baseOf(fromOffset);
+        Long nextBase = bases.higher(base);
+        long end = nextBase == null ? toOffset : Math.min(toOffset, nextBase);
+
+        ByteBuffer buffer = READ_BUFFER.get();
+        buffer.clear().limit((int) Math.min(buffer.capacity(), end - fromOffset));
+        readAt(base, fromOffset - base, buffer);
+        buffer.flip();
+        return fromOffset + readRecords(buffer, fromOffset, consumer);
+    }
+
+    /**
+     * Forces everything appended so far to disk and returns the offset up to which the log is now durable. The
+     * force itself runs outside the lock, so appends carry on while it waits for the disk.
+     */
+    long sync() {
+        FileChannel channel;
+        long offset;
+        synchronized (this) {
+            channel = segment;
+            offset = endOffset;
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // the segment was rolled or closed in the meantime, which forces it anyway
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the first segment modified at or after the epoch millis, the end of the log if none
+     * was. Every record appended since then lies after it.
+     */
+    synchronized long firstOffsetWrittenSince(long timestamp) {
+        try {
+            for (long base : segmentBases()) {
+                if (Files.getLastModifiedTime(segmentPath(base)).toMillis() >= timestamp) {
+                    return base;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return endOffset;
+    }
+
+    synchronized long endOffset() {
+        return endOffset;
+    }
+
+    /**
+     * Drops every segment and starts over from offset zero.
+     */
+    synchronized void truncate() {
+        closeSegment();
+        closeReaders();
+        try {
+            for (long base : segmentBases()) {
+                Files.delete(segmentPath(base));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        open();
+    }
+
+    @Override
+    public synchronized void close() {
+        closeSegment();
+        closeReaders();
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(directory);
+
+            List<Long> existing = segmentBases();
+            segmentBase = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+            bases.addAll(existing);
+            bases.add(segmentBase);
+            segment = FileChannel.open(segmentPath(segmentBase), CREATE, READ, WRITE);
+
+            // a crash may leave a half written record at the very end; cut the segment back to the last valid one
+            long validLength = readRecords(segment.map(READ_ONLY, 0, segment.size()), segmentBase, null);
+            segment.truncate(validLength);
+            segment.position(validLength);
+            endOffset = segmentBase + validLength;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void roll() {
+        flush();
+        closeSegment();
+        try {
+            segmentBase = endOffset;
+            segment = FileChannel.open(segmentPath(segmentBase), CREATE, READ, WRITE);
+            bases.add(segmentBase);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Hands the records written so far to the file.
+     */
+    synchronized void flush() {
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                segment.write(writeBuffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            flush();
+            segment.force(true);
+            segment.close();
+            segment = null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long baseOf(long offset) {
+        Long base = bases.floor(offset);
+        if (base == null) {
+            throw new IllegalStateException("No segment holds offset " + offset);
+        }
+        return base;
+    }
+
+    /**
+     * Fills the buffer from the position in the segment, or up to its end. A reader interrupted in the middle closes
+     * the channel for every other reader as well, so they simply open it again; the writer never shares it.
+     */
+    private void readAt(long base, long position, ByteBuffer buffer) {
+        while (true) {
+            FileChannel channel = null;
+            try {
+                channel = reader(base);
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+                    // a short read only means the rest comes with the next one
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                readers.remove(base, channel);
+                throw new UncheckedIOException(e);
+            } catch (ClosedChannelException e) {
+                readers.remove(base, channel);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Segments are only opened for reading once a record of them is asked for.
+     */
+    private FileChannel reader(long base) throws IOException {
+        FileChannel channel = readers.get(base);
+        if (channel != null) {
+            return channel;
+        }
+        FileChannel opened = FileChannel.open(segmentPath(base), READ);
+        FileChannel raced = readers.putIfAbsent(base, opened);
+        if (raced != null) {
+            opened.close();
+            return raced;
+        }
+        return opened;
+    }
+
+    private void closeReaders() {
+        try {
+            for (FileChannel channel : readers.values()) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            readers.clear();
+            bases.clear();
+        }
+    }
+
+    private static int readRecords(ByteBuffer buffer, long base, SpanConsumer consumer) {
+        CRC32 crc = new CRC32();
+
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int expectedChecksum = buffer.getInt();
+
+            if (length <= 0 || length > buffer.remaining()) {
+                return start;
+            }
+
+            ByteBuffer payload = buffer.slice().limit(length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != expectedChecksum) {
+                return start;
+            }
+
+            if (consumer != null) {
+                long offset = base + start;
+                long nextOffset = offset + HEADER_SIZE + length;
+                EventCodec.decode(payload, (event, sequence, timestamp, idempotencyKey) ->
+                    consumer.accept(offset, nextOffset, event, sequence, timestamp, idempotencyKey));
+            }
+            buffer.position(start + HEADER_SIZE + length);
+        }
+
+        return buffer.position();
+    }
+
+    private List<Long> segmentBases() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    @FunctionalInterface
+    interface LocatedRecordConsumer {
+        void accept(long offset, Event event, long sequence, long timestamp, long idempotencyKey);
+    }
+
+    /**
+     * Gets the offset right after each record as well, where the next one starts.
+     */
+    @FunctionalInterface
+    interface SpanConsumer {
+        void accept(long offset, long nextOffset, Event event, long sequence, long timestamp, long idempotencyKey);
+    }
+}
@@ -1,12 +1,534 @@
 package com.example.demo.persistence;
 
 import com.example.demo.domain.Card;
+import com.example.demo.domain.CardSnapshot;
+import com.example.demo.domain.Hold;
+import com.example.demo.domain.exceptions.InvalidCursorException;
+import com.example.demo.domain.exceptions.StaleCardVersionException;
+import com.example.demo.events.Events;
+import com.example.demo.utils.Stripes;
+import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-public final class EventStore {
-    public static Map<UUID, Card> eventStore = new ConcurrentHashMap<>();
+/**
+ * Keeps the committed state of every card in memory and backs it with a durable {@link EventLog}. With the
+ * {@link StoreLayout#HEAP} layout a card is an immutable {@link CardSnapshot} in a map; {@link StoreLayout#FLAT}
+ * packs it into primitive slots instead and hands out snapshots only when it is read. {@link StoreLayout#CACHED}
+ * keeps only a bounded cache of recently used cards and reads the others from the latest snapshot on a miss.
+ * <p>
+ * Cards are partitioned by the hash of their id into {@link EventStoreShard}s, each with its own cards, log
+ * directory ({@code shard-NN}) and commit lock, so writers of different shards never contend and all shards are
+ * recovered in parallel on startup. The shard count of a new log defaults to the number of cores like the mailboxes
+ * of {@code CardCommandExecutor}; with equal counts each mailbox thread is the only writer of its shard. An existing
+ * log keeps the count it was created with.
+ * <p>
+ * A commit only succeeds if the stored version is still the one the card was loaded at, so two writers that
+ * raced on the same card cannot both win. Every shard syncs its log in batches on its own {@link GroupCommitter};
+ * a commit is acknowledged, and its events handed to {@link Events} in commit order of the card, only once it is
+ * durable.
+ * <p>
+ * Unless {@code card.history.enabled} is turned off each shard also keeps checkpoints of every card, see
+ * {@link CardHistory}, so the state of a card at a past instant is rebuilt from a nearby checkpoint instead of its
+ * whole history. They take a bounded amount of memory per card and are saved with the snapshots, but they do take
+ * every card, so they cannot go with the {@link StoreLayout#CACHED} layout. Every shard remembers the outcome of
+ * recent commands made under an idempotency key in its {@link IdempotencyCache}.
+ * <p>
+ * Every {@code snapshotInterval} committed events of a shard the shard is written out by {@link SnapshotStore}
+ * in the background. On startup the newest snapshot is loaded and only the log tail after it is replayed through
+ * {@link Card#apply}.
+ */
+@Component
+public class EventStore {
 
+    /**
+     * Outcome recorded under the idempotency key of every commit, see {@link #commit(Card, String)}.
+     */
+    public static final int ACCEPTED = 0;
+
+    private static final String SHARD_COUNT_FILE = "shards";
+
+    private final EventStoreShard[] shards;
+    private final StoreLayout layout;
+    private final Object durableSignal = new Object();
+    private final List<CommitListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "card-snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public EventStore(Events events, EventStoreProperties properties) {
+        this.layout = properties.getStore().getLayout();
+        Boolean historyEnabled = properties.getHistory().getEnabled();
+        if (layout == StoreLayout.CACHED && Boolean.TRUE.equals(historyEnabled)) {
+            throw new IllegalStateException("The history index holds every card in memory, which the CACHED layout "
+                + "does not, so card.history.enabled cannot go with it");
+        }
+        boolean history = historyEnabled != null ? historyEnabled : layout != StoreLayout.CACHED;
+        EventStoreProperties.EventLog log = properties.getEventLog();
+        int count = shardCount(log.getDirectory(), log.getShards());
+
+        this.shards = new EventStoreShard[count];
+        for (int i = 0; i < count; i++) {
+            Path shardDirectory = log.getDirectory().resolve(String.format("shard-%02d", i));
+            var idempotencyCache = new IdempotencyCache(properties.getIdempotency().getMaxKeys() / count,
+                TimeUnit.SECONDS.toMillis(properties.getIdempotency().getTtlSeconds()));
+            this.shards[i] = new EventStoreShard(shardDirectory, properties.getStore().getLayout(),
+                Math.max(properties.getStore().getCacheSize() / count, 1),
+                properties.getStats().getNearExhaustionPercent(), history,
+                idempotencyCache, log.getSegmentSize(), properties.getSnapshot().getIntervalEvents(), events,
+                snapshotter, listeners, log.getGroupCommit().getMaxBatchSize(),
+                TimeUnit.MICROSECONDS.toNanos(log.getGroupCommit().getMaxWaitMicros()), this::signalDurable);
+        }
+
+        Arrays.stream(this.shards).parallel().forEach(EventStoreShard::recover);
+    }
+
+    /**
+     * Returns a fresh {@link Card} rebuilt from the last committed state, or {@code null} for an unknown card.
+     */
+    public Card get(UUID cardId) {
+        CardSnapshot snapshot = snapshotOf(cardId);
+        return snapshot == null ? null : Card.from(snapshot);
+    }
+
+    /**
+     * Returns the last committed state of the card, or {@code null} for an unknown card.
+     */
+    public CardSnapshot snapshotOf(UUID cardId) {
+        return shardOf(cardId).get(cardId);
+    }
+
+    /**
+     * Returns the hold of the card if it is still open, or {@code null} if there is no such hold or it has been
+     * captured, released or has expired.
+     */
+    public Hold openHold(UUID cardId, long holdId) {
+        return shardOf(cardId).openHold(cardId, holdId);
+    }
+
+    /**
+     * Returns the open hold placed on the card by the command made under the idempotency key, or {@code null} if
+     * there is none or it is closed already.
+     */
+    public Hold openHoldPlacedUnder(UUID cardId, String idempotencyKey) {
+        return shardOf(cardId).openHoldPlacedUnder(IdempotencyCache.keyOf(cardId, idempotencyKey));
+    }
+
+    /**
+     * Hands over every hold that is open, as of the commits so far, on any card.
+     */
+    public void forEachOpenHold(Consumer<Hold> consumer) {
+        for (EventStoreShard shard : shards) {
+            shard.forEachOpenHold(consumer);
+        }
+    }
+
+    /**
+     * Returns the card as it was after its last event committed at or before the instant, or {@code null} if it had
+     * none by then. Answered from the {@link CardHistory} of the shard, so only the events after the closest
+     * checkpoint are read from the log; without one the whole shard log is scanned.
+     */
+    public Card getAsOf(UUID cardId, Instant instant) {
+        CardSnapshot snapshot = shardOf(cardId).asOf(cardId, instant.toEpochMilli());
+        return snapshot == null ? null : Card.from(snapshot);
+    }
+
+    /**
+     * Commits the pending changes of the card and waits until they are durable.
+     *
+     * @throws StaleCardVersionException if another change of the card was committed after it had been loaded
+     */
+    public void save(Card card) {
+        commit(card).join();
+    }
+
+    /**
+     * Commits the pending changes of the card. The card and the store reflect them as soon as this returns; the
+     * future completes once they are durable and have been handed to the commit listeners and {@link Events}.
+     *
+     * @throws StaleCardVersionException if another change of the card was committed after it had been loaded
+     */
+    public CompletableFuture<Void> commit(Card card) {
+        return commit(card, null);
+    }
+
+    /**
+     * Like {@link #commit(Card)}, but also writes the idempotency key, if any, with the events and records the
+     * command under it as {@link #ACCEPTED}. Keys are rebuilt from the log on startup for as long as they live.
+     *
+     * @throws StaleCardVersionException if another change of the card was committed after it had been loaded
+     */
+    public CompletableFuture<Void> commit(Card card, String idempotencyKey) {
+        if (card.getStateChanges().isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        long key = idempotencyKey == null ? 0 : IdempotencyCache.keyOf(card.getId(), idempotencyKey);
+        return shardOf(card.getId()).commit(card, key);
+    }
+
+    /**
+     * Commits the pending changes of many cards, each card at most once, and returns a future per card in their
+     * order, completing as {@link #commit(Card)} does. The cards of a shard are written to its log together, under
+     * one acquisition of its commit lock, and so are typically synced together as well. A card whose commit conflicts
+     * fails only its own future with a {@link StaleCardVersionException}.
+     */
+    public List<CompletableFuture<Void>> commitAll(List<Card> cards) {
+        List<List<Card>> byShard = new ArrayList<>(shards.length);
+        List<List<Integer>> positions = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<>());
+            positions.add(new ArrayList<>());
+        }
+        List<CompletableFuture<Void>> durable = new ArrayList<>(cards.size());
+        for (int i = 0; i < cards.size(); i++) {
+            Card card = cards.get(i);
+            durable.add(CompletableFuture.completedFuture(null));
+            if (!card.getStateChanges().isEmpty()) {
+                int shard = Stripes.indexOf(card.getId(), shards.length);
+                byShard.get(shard).add(card);
+                positions.get(shard).add(i);
+            }
+        }
+
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (byShard.get(shard).isEmpty()) {
+                continue;
+            }
+            List<CompletableFuture<Void>> committed = shards[shard].commitAll(byShard.get(shard));
+            for (int i = 0; i < committed.size(); i++) {
+                durable.set(positions.get(shard).get(i), committed.get(i));
+            }
+        }
+        return durable;
+    }
+
+    /**
+     * Returns the outcome of the command made on the card under the idempotency key, if it is still remembered.
+     */
+    public OptionalInt outcomeOf(UUID cardId, String idempotencyKey) {
+        int outcome = shardOf(cardId).outcomeOf(IdempotencyCache.keyOf(cardId, idempotencyKey));
+        return outcome < 0 ? OptionalInt.empty() : OptionalInt.of(outcome);
+    }
+
+    /**
+     * Remembers how a command made under the idempotency key ended without a commit, such as a non-negative code of
+     * the exception that declined it. Such outcomes live in memory only and are gone after a restart.
+     */
+    public void recordOutcome(UUID cardId, String idempotencyKey, int outcome) {
+        shardOf(cardId).recordOutcome(IdempotencyCache.keyOf(cardId, idempotencyKey), outcome);
+    }
+
+    /**
+     * Returns a cursor at the very first record of every shard.
+     */
+    public LogCursor startCursor() {
+        return new LogCursor(new long[shards.length]);
+    }
+
+    /**
+     * Returns a cursor right after the last durable commit of every shard, from where only later commits are read.
+     */
+    public LogCursor endCursor() {
+        long[] offsets = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            offsets[i] = shards[i].durableOffset();
+        }
+        return new LogCursor(offsets);
+    }
+
+    /**
+     * Parses a cursor handed out with earlier events, see {@link LogCursor}.
+     *
+     * @throws InvalidCursorException unless each of its offsets is where a durable record starts or the durable end
+     *                                of its shard
+     */
+    public LogCursor parseCursor(String cursor) {
+        LogCursor parsed = LogCursor.parse(cursor, shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            if (!shards[i].isRecordBoundary(parsed.offset(i))) {
+                throw new InvalidCursorException();
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Hands the consumer the durable events of the shard after the cursor, as many as the log reads at once, and
+     * moves the cursor past them. Returns whether there were any. Events come in commit order within a shard.
+     */
+    public boolean readCommitted(LogCursor cursor, int shard, CommittedEventConsumer consumer) {
+        long from = cursor.offset(shard);
+        long next = shards[shard].readCommitted(shard, from, consumer);
+        cursor.advance(shard, next);
+        return next != from;
+    }
+
+    /**
+     * Reads the durable events after the cursor, at most {@code maxEvents} and taking turns between the shards, as a
+     * batch for a follower, see {@link ReplicationBatch}, and moves the cursor past them. Returns an empty batch if
+     * there are none.
+     */
+    public byte[] readReplicationBatch(LogCursor cursor, int maxEvents) {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        ByteBuffer record = ByteBuffer.allocate(EventCodec.SIZE);
+        int[] events = new int[1];
+        boolean read = true;
+        while (read && events[0] < maxEvents) {
+            read = false;
+            for (int shard = 0; shard < shards.length && events[0] < maxEvents; shard++) {
+                int current = shard;
+                long from = cursor.offset(shard);
+                shards[shard].readDurable(from, (offset, nextOffset, event, sequence, timestamp, idempotencyKey) -> {
+                    if (events[0] < maxEvents) {
+                        ReplicationBatch.write(event, sequence, timestamp, idempotencyKey, record, batch);
+                        cursor.advance(current, nextOffset);
+                        events[0]++;
+                    }
+                });
+                read |= cursor.offset(shard) != from;
+            }
+        }
+        return batch.toByteArray();
+    }
+
+    /**
+     * Commits the events of a batch read from a leader with {@link #readReplicationBatch} as changes of their cards,
+     * under the idempotency keys they were committed under, and returns a future that completes once all of them are
+     * durable. Events the card already has, from a batch that was applied before but not acknowledged, are skipped,
+     * so a batch can be applied again. The commits carry the time they are made here, not on the leader.
+     *
+     * @throws IllegalStateException if an event does not follow right after the version of its card, which leaves
+     *                               the events before it committed
+     */
+    public CompletableFuture<Void> applyReplicationBatch(InputStream batch) throws IOException {
+        Map<UUID, Card> pending = new LinkedHashMap<>();
+        Map<UUID, Long> keys = new HashMap<>();
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        ReplicationBatch.read(batch, (event, sequence, timestamp, idempotencyKey) -> {
+            UUID cardId = event.getCardId();
+            Card card = pending.get(cardId);
+            if (card != null && keys.get(cardId) != idempotencyKey) {
+                // a commit carries a single key, so the events of another command of the card go in one of their own
+                durable.add(shardOf(cardId).commit(pending.remove(cardId), keys.get(cardId)));
+                card = null;
+            }
+            if (card == null) {
+                card = get(cardId);
+                card = card == null ? new Card(cardId) : card;
+            }
+            if (sequence <= card.getVersion()) {
+                return;
+            }
+            if (sequence != card.getVersion() + 1) {
+                throw new IllegalStateException(
+                    "Replicated event " + sequence + " of card " + cardId + " skips from " + card.getVersion());
+            }
+            card.record(event);
+            pending.put(cardId, card);
+            keys.put(cardId, idempotencyKey);
+        });
+        pending.forEach((cardId, card) -> durable.add(shardOf(cardId).commit(card, keys.get(cardId))));
+        return CompletableFuture.allOf(durable.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Waits until some shard has commits after the cursor, at most the timeout. Every durable batch of a shard wakes
+     * all waiting readers, which only check a few offsets.
+     */
+    public void awaitCommitted(LogCursor cursor, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (durableSignal) {
+            long remaining;
+            while (!hasCommittedAfter(cursor) && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(durableSignal, remaining);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener for all later commits and hands it the current state of every card first. Meant to be
+     * called while the application starts, before any command runs.
+     */
+    public void addCommitListener(CommitListener listener) {
+        for (EventStoreShard shard : shards) {
+            shard.cards().forEach(listener::onCommit);
+        }
+        listeners.add(listener);
+    }
+
+    public StoreLayout layout() {
+        return layout;
+    }
+
+    public int size() {
+        int size = 0;
+        for (EventStoreShard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Number of events committed to all cards, which is also the sum of their versions.
+     */
+    public long eventCount() {
+        long count = 0;
+        for (EventStoreShard shard : shards) {
+            count += shard.eventCount();
+        }
+        return count;
+    }
+
+    /**
+     * Estimated heap held by the in-memory card state, history index and idempotency keys of all shards.
+     */
+    public long estimatedMemoryBytes() {
+        long bytes = 0;
+        for (EventStoreShard shard : shards) {
+            bytes += shard.estimatedMemoryBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Limits granted, used and held over all cards, and how many cards have nearly none left. Kept up to date by
+     * every commit, so this only adds up the totals of the shards.
+     */
+    public ExposureStats exposure() {
+        ExposureStats stats = ExposureStats.NONE;
+        for (EventStoreShard shard : shards) {
+            stats = stats.plus(shard.exposure());
+        }
+        return stats;
+    }
+
+    /**
+     * Hits, misses and evictions of the card caches of all shards, see {@link StoreLayout#CACHED}.
+     */
+    public CacheStats cacheStats() {
+        CacheStats stats = CacheStats.NONE;
+        for (EventStoreShard shard : shards) {
+            stats = stats.plus(shard.cacheStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Bytes written to the event logs so far.
+     */
+    public long logSize() {
+        long bytes = 0;
+        for (EventStoreShard shard : shards) {
+            bytes += shard.logSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * Ids of all cards, copied from every shard.
+     */
+    public Set<UUID> cardIds() {
+        Set<UUID> cardIds = new HashSet<>();
+        for (EventStoreShard shard : shards) {
+            shard.cards().forEach(card -> cardIds.add(card.getCardId()));
+        }
+        return cardIds;
+    }
+
+    public void clear() {
+        for (EventStoreShard shard : shards) {
+            shard.clear();
+        }
+        listeners.forEach(CommitListener::onClear);
+    }
+
+    void snapshot() {
+        for (EventStoreShard shard : shards) {
+            shard.snapshot();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        snapshotter.shutdown();
+        snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+
+        for (EventStoreShard shard : shards) {
+            shard.close();
+        }
+    }
+
+    private boolean hasCommittedAfter(LogCursor cursor) {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i].durableOffset() > cursor.offset(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void signalDurable() {
+        synchronized (durableSignal) {
+            durableSignal.notifyAll();
+        }
+    }
+
+    private EventStoreShard shardOf(UUID cardId) {
+        return shards[Stripes.indexOf(cardId, shards.length)];
+    }
+
+    /**
+     * Returns the shard count of the log in the directory, or of a new log there the configured count, or the number
+     * of cores for {@code 0}. Cards are placed by their hash modulo the shard count, so reopening the log with
+     * another count would look them up in the wrong shard; without a configured count the log keeps its own, so
+     * the same directory opens on a host with any number of cores.
+     *
+     * @throws IllegalStateException if a count is configured and the existing log has another one
+     */
+    private static int shardCount(Path directory, int configured) {
+        Path file = directory.resolve(SHARD_COUNT_FILE);
+        try {
+            if (Files.exists(file)) {
+                int existing = Integer.parseInt(Files.readString(file).trim());
+                if (configured > 0 && existing != configured) {
+                    throw new IllegalStateException(
+                        "Event log in " + directory + " has " + existing + " shards, not " + configured);
+                }
+                return existing;
+            }
+            int count = configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+            Files.createDirectories(directory);
+            Files.writeString(file, Integer.toString(count));
+            return count;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
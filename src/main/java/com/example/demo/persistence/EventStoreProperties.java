@@ -0,0 +1,74 @@
+package com.example.demo.persistence;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+/**
+ * Settings of the {@link EventStore}, bound from the {@code card.*} properties named after the fields, such as
+ * {@code card.event-log.group-commit.max-batch-size}.
+ */
+@Data
+@Component
+@ConfigurationProperties("card")
+public class EventStoreProperties {
+
+    private final EventLog eventLog = new EventLog();
+    private final Store store = new Store();
+    private final History history = new History();
+    private final Idempotency idempotency = new Idempotency();
+    private final Snapshot snapshot = new Snapshot();
+    private final Stats stats = new Stats();
+
+    @Data
+    public static class EventLog {
+        private Path directory = Path.of("data/events");
+        /**
+         * Number of shards of a new log, the number of cores if {@code 0}. An existing log keeps the count it was
+         * created with, and opening it with another one set here fails.
+         */
+        private int shards;
+        private long segmentSize = 64 * 1024 * 1024;
+        private final GroupCommit groupCommit = new GroupCommit();
+    }
+
+    @Data
+    public static class GroupCommit {
+        private int maxBatchSize = 1024;
+        private long maxWaitMicros;
+    }
+
+    @Data
+    public static class Store {
+        private StoreLayout layout = StoreLayout.HEAP;
+        private int cacheSize = 1_000_000;
+    }
+
+    @Data
+    public static class History {
+        /**
+         * Whether every shard keeps a {@link CardHistory} for point-in-time reads, by default unless the layout is
+         * {@link StoreLayout#CACHED}, which does not keep every card in memory. Without it such reads scan the whole
+         * log of the shard instead.
+         */
+        private Boolean enabled;
+    }
+
+    @Data
+    public static class Idempotency {
+        private int maxKeys = 1_000_000;
+        private long ttlSeconds = 86400;
+    }
+
+    @Data
+    public static class Snapshot {
+        private long intervalEvents = 100_000;
+    }
+
+    @Data
+    public static class Stats {
+        private int nearExhaustionPercent = 10;
+    }
+}
@@ -0,0 +1,417 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.Card;
+import com.example.demo.domain.CardSnapshot;
+import com.example.demo.domain.Hold;
+import com.example.demo.domain.exceptions.StaleCardVersionException;
+import com.example.demo.events.Event;
+import com.example.demo.events.Events;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * One partition of the {@link EventStore}: the cards whose id hashes to it, together with their own
+ * {@link EventLog}, {@link SnapshotStore} and commit lock, and held in the {@link CardStates} of its
+ * {@link StoreLayout}, along with the {@link HoldBook} of their open holds. Shards share nothing, so commits,
+ * snapshots and replays of different shards never wait for each other.
+ */
+class EventStoreShard {
+
+    private final CardStates cards;
+    private final CardHistory history;
+    private final HoldBook holds = new HoldBook();
+    private final Exposure exposure;
+    private final IdempotencyCache idempotencyCache;
+    private final Object commitLock = new Object();
+    private final Object snapshotLock = new Object();
+    private final EventLog eventLog;
+    private final SnapshotStore snapshotStore;
+    private final GroupCommitter committer;
+    private final long snapshotInterval;
+    private final Executor snapshotter;
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+    private long eventsSinceSnapshot;
+    private volatile long eventCount;
+
+    EventStoreShard(Path directory, StoreLayout layout, int cacheSize, int nearExhaustionPercent, boolean history,
+                    IdempotencyCache idempotencyCache, long segmentSize, long snapshotInterval, Events events,
+                    Executor snapshotter, List<CommitListener> listeners, int maxBatchSize, long maxWaitNanos,
+                    Runnable onDurable) {
+        this.cards = cardStates(layout, cacheSize);
+        this.history = history ? new CardHistory() : null;
+        this.exposure = new Exposure(nearExhaustionPercent);
+        this.idempotencyCache = idempotencyCache;
+        this.eventLog = new EventLog(directory, segmentSize);
+        this.snapshotStore = new SnapshotStore(directory);
+        this.committer = new GroupCommitter("card-committer-" + directory.getFileName(), eventLog, events, listeners,
+            maxBatchSize, maxWaitNanos, onDurable);
+        this.snapshotInterval = snapshotInterval;
+        this.snapshotter = snapshotter;
+    }
+
+    CardSnapshot get(UUID cardId) {
+        return cards.get(cardId);
+    }
+
+    /**
+     * Applies the commit to the shard right away and returns a future that completes once it is durable. A non-zero
+     * idempotency key is written with the events and recorded as {@link EventStore#ACCEPTED} in the same step, so
+     * a duplicate can never slip in between. Once a sync of the log failed, the commit is refused without touching
+     * the shard, see {@link GroupCommitter}.
+     */
+    CompletableFuture<Void> commit(Card card, long idempotencyKey) {
+        synchronized (commitLock) {
+            if (committer.failure() != null) {
+                return CompletableFuture.failedFuture(committer.failure());
+            }
+            long timestamp = System.currentTimeMillis();
+            CardSnapshot committed = card.snapshot();
+            long firstOffset = write(card, committed, timestamp, idempotencyKey);
+            eventLog.flush();
+            return committed(card, committed, timestamp, firstOffset, idempotencyKey);
+        }
+    }
+
+    /**
+     * Commits the changes of many cards under a single acquisition of the commit lock and with a single write to
+     * the log, and returns a future per card in their order. A card that another commit got to first fails its
+     * future with a {@link StaleCardVersionException} and leaves the others alone.
+     */
+    List<CompletableFuture<Void>> commitAll(List<Card> batch) {
+        CardSnapshot[] committed = new CardSnapshot[batch.size()];
+        long[] firstOffsets = new long[batch.size()];
+        List<CompletableFuture<Void>> durable = new ArrayList<>(batch.size());
+
+        synchronized (commitLock) {
+            if (committer.failure() != null) {
+                batch.forEach(card -> durable.add(CompletableFuture.failedFuture(committer.failure())));
+                return durable;
+            }
+            long timestamp = System.currentTimeMillis();
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    committed[i] = batch.get(i).snapshot();
+                    firstOffsets[i] = write(batch.get(i), committed[i], timestamp, 0);
+                } catch (StaleCardVersionException e) {
+                    committed[i] = null;
+                }
+            }
+            eventLog.flush();
+
+            for (int i = 0; i < batch.size(); i++) {
+                durable.add(committed[i] == null
+                    ? CompletableFuture.failedFuture(new StaleCardVersionException())
+                    : committed(batch.get(i), committed[i], timestamp, firstOffsets[i], 0));
+            }
+        }
+        return durable;
+    }
+
+    /**
+     * Writes the changes of the card to the log and makes them the state of the card, returning the offset of
+     * their first record. Only called under the commit lock.
+     */
+    private long write(Card card, CardSnapshot committed, long timestamp, long idempotencyKey) {
+        List<Event> changes = card.getStateChanges();
+        long loadedVersion = card.getVersion() - changes.size();
+        CardSnapshot current = cards.get(card.getId());
+        long currentVersion = current == null ? 0 : current.getVersion();
+        if (currentVersion != loadedVersion) {
+            throw new StaleCardVersionException();
+        }
+
+        long endOffset = eventLog.write(changes, loadedVersion + 1, timestamp, idempotencyKey);
+        cards.put(committed);
+        exposure.replace(current, committed);
+        return endOffset - (long) changes.size() * EventLog.RECORD_SIZE;
+    }
+
+    /**
+     * Records a commit whose records have been flushed to the log and hands it to the committer. Only called under
+     * the commit lock.
+     */
+    private CompletableFuture<Void> committed(Card card, CardSnapshot committed, long timestamp, long firstOffset,
+                                              long idempotencyKey) {
+        List<Event> changes = card.getStateChanges();
+        if (history != null) {
+            history.record(committed, timestamp, firstOffset, changes.size());
+        }
+        for (int i = 0; i < changes.size(); i++) {
+            holds.apply(changes.get(i), firstOffset + (long) i * EventLog.RECORD_SIZE, idempotencyKey);
+        }
+        // after the holds, so whoever sees the key accepted also finds the hold placed under it
+        if (idempotencyKey != 0) {
+            idempotencyCache.put(idempotencyKey, EventStore.ACCEPTED, timestamp, timestamp);
+        }
+        eventCount += changes.size();
+
+        eventsSinceSnapshot += changes.size();
+        if (eventsSinceSnapshot >= snapshotInterval) {
+            eventsSinceSnapshot = 0;
+            scheduleSnapshot();
+        }
+
+        long endOffset = firstOffset + (long) changes.size() * EventLog.RECORD_SIZE;
+        CompletableFuture<Void> durable = committer.enqueue(committed, List.copyOf(changes), endOffset);
+        card.markChangesAsCommitted();
+        return durable;
+    }
+
+    /**
+     * Offset up to which the log holds commits that are durable and delivered, see {@link GroupCommitter}.
+     */
+    long durableOffset() {
+        return committer.durableOffset();
+    }
+
+    /**
+     * Reads the next durable records from the offset on, as many as {@link EventLog#read(long, long,
+     * EventLog.SpanConsumer)} reads at once, and returns the offset after the last of them.
+     */
+    long readCommitted(int shard, long fromOffset, CommittedEventConsumer consumer) {
+        return readDurable(fromOffset, (offset, nextOffset, event, sequence, timestamp, idempotencyKey) ->
+            consumer.accept(shard, offset, nextOffset, event, sequence, timestamp));
+    }
+
+    /**
+     * Like {@link #readCommitted}, but hands out the records as they are in the log, idempotency key included.
+     */
+    long readDurable(long fromOffset, EventLog.SpanConsumer consumer) {
+        return eventLog.read(fromOffset, committer.durableOffset(), consumer);
+    }
+
+    /**
+     * Tells whether a durable record starts at the offset, or it is the durable end of the log.
+     */
+    boolean isRecordBoundary(long offset) {
+        long durable = committer.durableOffset();
+        if (offset >= durable) {
+            return offset == durable;
+        }
+        boolean[] found = new boolean[1];
+        eventLog.read(offset, Math.min(durable, offset + EventLog.RECORD_SIZE),
+            (recordOffset, nextOffset, event, sequence, timestamp, idempotencyKey) -> found[0] = true);
+        return found[0];
+    }
+
+    /**
+     * Returns the state of the card as of the epoch millis, or {@code null} if it had no event by then. Without a
+     * {@link CardHistory}, as with the {@link StoreLayout#CACHED} layout, the whole log of the shard is read.
+     */
+    CardSnapshot asOf(UUID cardId, long timestamp) {
+        if (history != null) {
+            return history.asOf(cardId, timestamp, eventLog);
+        }
+
+        Card card = new Card(cardId);
+        eventLog.replay(0, (event, sequence, eventTimestamp, idempotencyKey) -> {
+            if (event.getCardId().equals(cardId) && eventTimestamp <= timestamp && sequence > card.getVersion()) {
+                card.apply(event);
+            }
+        });
+        return card.getVersion() == 0 ? null : card.snapshot();
+    }
+
+    /**
+     * Returns the outcome recorded under the idempotency key, or {@code -1} if there is none.
+     */
+    int outcomeOf(long idempotencyKey) {
+        return idempotencyCache.get(idempotencyKey, System.currentTimeMillis());
+    }
+
+    void recordOutcome(long idempotencyKey, int outcome) {
+        long now = System.currentTimeMillis();
+        idempotencyCache.put(idempotencyKey, outcome, now, now);
+    }
+
+    /**
+     * Returns the open hold, or {@code null} if the card has no such hold or it is closed already.
+     */
+    Hold openHold(UUID cardId, long holdId) {
+        return holds.get(cardId, holdId);
+    }
+
+    Hold openHoldPlacedUnder(long idempotencyKey) {
+        return holds.placedUnder(idempotencyKey);
+    }
+
+    void forEachOpenHold(Consumer<Hold> consumer) {
+        holds.forEach(consumer);
+    }
+
+    int size() {
+        return cards.size();
+    }
+
+    long eventCount() {
+        return eventCount;
+    }
+
+    long estimatedMemoryBytes() {
+        return cards.estimatedMemoryBytes() + (history == null ? 0 : history.estimatedMemoryBytes())
+            + idempotencyCache.estimatedMemoryBytes() + holds.estimatedMemoryBytes();
+    }
+
+    /**
+     * Totals of the cards as of the commits so far, read under the commit lock so that they add up.
+     */
+    ExposureStats exposure() {
+        synchronized (commitLock) {
+            return exposure.stats();
+        }
+    }
+
+    CacheStats cacheStats() {
+        return cards.cacheStats();
+    }
+
+    long logSize() {
+        return eventLog.endOffset();
+    }
+
+    Iterable<CardSnapshot> cards() {
+        return cards;
+    }
+
+    void clear() {
+        synchronized (snapshotLock) {
+            synchronized (commitLock) {
+                // let commits still on their way to disk reach the listeners first, so none of them outlives the
+                // clear
+                committer.awaitEnqueued();
+                eventLog.truncate();
+                committer.resetDurableOffset(0);
+                snapshotStore.deleteAll();
+                cards.clear();
+                if (history != null) {
+                    history.clear();
+                }
+                idempotencyCache.clear();
+                holds.clear();
+                exposure.clear();
+                eventsSinceSnapshot = 0;
+                eventCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of every card of the shard. The log offset is taken under the commit lock, so each event
+     * before it is already reflected in the map; cards committed while the map is being written simply end up with
+     * a newer version than the offset implies. The log is synced up to the offset first, otherwise a crash could
+     * leave it shorter than the snapshot claims and later appends would hide behind the offset. The offset of the
+     * oldest open hold is taken along with it. The checkpoints of the {@link CardHistory}, if any, are written first,
+     * so that the sync covers every record they point to as well. Snapshots of a shard are taken one at a time.
+     */
+    void snapshot() {
+        synchronized (snapshotLock) {
+            long logOffset;
+            long holdsOffset;
+            Iterable<CardSnapshot> snapshot;
+            synchronized (commitLock) {
+                logOffset = eventLog.endOffset();
+                holdsOffset = holds.oldestOffset(logOffset);
+                snapshot = cards.beginSnapshot();
+            }
+            if (history != null) {
+                snapshotStore.writeHistory(logOffset, history);
+            }
+            eventLog.sync();
+            Path written = snapshotStore.write(logOffset, holdsOffset, snapshot);
+            synchronized (commitLock) {
+                cards.endSnapshot(written);
+            }
+        }
+    }
+
+    void close() {
+        committer.close();
+        snapshot();
+        eventLog.close();
+    }
+
+    /**
+     * Loads the newest snapshot of the shard and replays only the log tail after it. The {@link CardHistory} is
+     * loaded from the checkpoints saved with the snapshot and sees the tail as well; without any, as when the
+     * history was off before, the whole log is read for it once. The {@link IdempotencyCache} has to see every key
+     * that has not expired yet, so the replay starts at the first segment written within its time to live. The
+     * {@link HoldBook} is rebuilt from the oldest hold that was open at the snapshot on. Only the tail is applied to
+     * the cards, which a {@link StoreLayout#CACHED} shard reads from the snapshot as it needs them.
+     */
+    void recover() {
+        SnapshotStore.Offsets restored = cards.restore(snapshotStore);
+        long fromOffset = restored.getLogOffset();
+        long holdsOffset = Math.min(restored.getHoldsOffset(), fromOffset);
+        long historyOffset = history == null || snapshotStore.readHistory(fromOffset, history) ? fromOffset : 0;
+
+        long now = System.currentTimeMillis();
+        long replayFrom = Math.min(Math.min(historyOffset, holdsOffset),
+            Math.min(fromOffset, eventLog.firstOffsetWrittenSince(now - idempotencyCache.getTtlMillis())));
+
+        Map<UUID, Card> replayed = new HashMap<>();
+        Map<UUID, Card> timelines = new HashMap<>();
+        eventLog.replay(replayFrom, (offset, event, sequence, timestamp, idempotencyKey) -> {
+            if (history != null && offset >= historyOffset) {
+                Card timeline = timelines.computeIfAbsent(event.getCardId(),
+                    cardId -> history.latest(cardId, eventLog));
+                if (sequence > timeline.getVersion()) {
+                    timeline.apply(event);
+                    history.record(timeline.snapshot(), timestamp, offset, 1);
+                }
+            }
+            if (idempotencyKey != 0) {
+                idempotencyCache.put(idempotencyKey, EventStore.ACCEPTED, timestamp, now);
+            }
+            if (offset >= holdsOffset) {
+                holds.apply(event, offset, idempotencyKey);
+            }
+            if (offset < fromOffset) {
+                return;
+            }
+            Card card = replayed.computeIfAbsent(event.getCardId(), this::rehydrate);
+            if (sequence > card.getVersion()) {
+                card.apply(event);
+            }
+        });
+        replayed.values().forEach(card -> cards.put(card.snapshot()));
+        eventCount = cards.eventCount();
+        cards.forEach(card -> exposure.replace(null, card));
+    }
+
+    private void scheduleSnapshot() {
+        if (snapshotScheduled.compareAndSet(false, true)) {
+            snapshotter.execute(() -> {
+                try {
+                    snapshot();
+                } finally {
+                    snapshotScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private static CardStates cardStates(StoreLayout layout, int cacheSize) {
+        switch (layout) {
+            case FLAT:
+                return new FlatCardStates();
+            case CACHED:
+                return new CachedCardStates(cacheSize);
+            default:
+                return new HeapCardStates();
+        }
+    }
+
+    private Card rehydrate(UUID cardId) {
+        CardSnapshot snapshot = cards.get(cardId);
+        return snapshot == null ? new Card(cardId) : Card.from(snapshot);
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+
+/**
+ * Running totals of the cards of one shard, moved by the difference every commit makes to its card, so they are
+ * never recomputed from the cards but once on recovery. Only changed and read under the commit lock of the shard,
+ * which keeps them in step with the cards.
+ */
+class Exposure {
+
+    private final double nearExhaustionRatio;
+    private long cards;
+    private long grantedLimit;
+    private long usedLimit;
+    private long heldLimit;
+    private long cardsNearExhaustion;
+
+    Exposure(int nearExhaustionPercent) {
+        this.nearExhaustionRatio = nearExhaustionPercent / 100.0;
+    }
+
+    /**
+     * Replaces the previous state of a card, {@code null} for a new one, by the state it was committed in.
+     */
+    void replace(CardSnapshot previous, CardSnapshot committed) {
+        if (previous == null) {
+            cards++;
+        } else {
+            grantedLimit -= previous.getLimit();
+            usedLimit -= previous.getUsedLimit();
+            heldLimit -= previous.getHeldLimit();
+            cardsNearExhaustion -= isNearExhaustion(previous) ? 1 : 0;
+        }
+        grantedLimit += committed.getLimit();
+        usedLimit += committed.getUsedLimit();
+        heldLimit += committed.getHeldLimit();
+        cardsNearExhaustion += isNearExhaustion(committed) ? 1 : 0;
+    }
+
+    ExposureStats stats() {
+        return new ExposureStats(cards, grantedLimit, usedLimit, heldLimit, cardsNearExhaustion);
+    }
+
+    void clear() {
+        cards = 0;
+        grantedLimit = 0;
+        usedLimit = 0;
+        heldLimit = 0;
+        cardsNearExhaustion = 0;
+    }
+
+    private boolean isNearExhaustion(CardSnapshot card) {
+        long available = card.getLimit() - card.getUsedLimit() - card.getHeldLimit();
+        return card.getLimit() > 0 && available <= card.getLimit() * nearExhaustionRatio;
+    }
+}
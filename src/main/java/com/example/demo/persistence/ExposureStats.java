@@ -0,0 +1,25 @@
+package com.example.demo.persistence;
+
+import lombok.Value;
+
+/**
+ * What the cards of the store add up to: their count, the limits granted to them, used and held on them, all in
+ * minor units, and how many of them have at most {@code card.stats.near-exhaustion-percent} of a non-zero limit
+ * left.
+ */
+@Value
+public class ExposureStats {
+
+    static final ExposureStats NONE = new ExposureStats(0, 0, 0, 0, 0);
+
+    long cards;
+    long grantedLimit;
+    long usedLimit;
+    long heldLimit;
+    long cardsNearExhaustion;
+
+    ExposureStats plus(ExposureStats other) {
+        return new ExposureStats(cards + other.cards, grantedLimit + other.grantedLimit, usedLimit + other.usedLimit,
+            heldLimit + other.heldLimit, cardsNearExhaustion + other.cardsNearExhaustion);
+    }
+}
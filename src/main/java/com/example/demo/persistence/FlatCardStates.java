@@ -0,0 +1,223 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * The cards of a shard as primitive slots in a single {@code long[]}, an open addressing hash table keyed by the two
+ * halves of the card id. A card costs its seven longs divided by the load factor and no object at all, so tens of
+ * millions of cards add nothing for the garbage collector to trace; a {@link CardSnapshot} is only materialised
+ * when a card is read.
+ * <p>
+ * Each slot is {@code [stamp][msb][lsb][limit][usedLimit][heldLimit][version]}. The stamp is a sequence lock: the writer makes
+ * it odd while it updates the slot and even again after, and a reader retries until it read the same even stamp
+ * before and after the fields. A stamp of {@code 0} marks a free slot. Cards are never removed one by one, so a
+ * probe ends at the first free slot. When the table grows the writer fills a new array and publishes it whole; a
+ * reader still on the old one sees the cards as they were committed before, just like a reader that came earlier.
+ */
+class FlatCardStates implements CardStates {
+
+    private static final int FIELDS = 7;
+    private static final int STAMP = 0;
+    private static final int MSB = 1;
+    private static final int LSB = 2;
+    private static final int LIMIT = 3;
+    private static final int USED_LIMIT = 4;
+    private static final int HELD_LIMIT = 5;
+    private static final int VERSION = 6;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * Marks a slot that holds another card than the one asked for.
+     */
+    private static final CardSnapshot MISMATCH = new CardSnapshot(new UUID(0, 0), 0, 0, 0, 0);
+
+    private volatile long[] table = new long[INITIAL_CAPACITY * FIELDS];
+    private volatile int size;
+
+    @Override
+    public CardSnapshot get(UUID cardId) {
+        long msb = cardId.getMostSignificantBits();
+        long lsb = cardId.getLeastSignificantBits();
+        long[] slots = table;
+        int mask = capacity(slots) - 1;
+
+        for (int slot = indexOf(msb, lsb, mask); ; slot = (slot + 1) & mask) {
+            int base = slot * FIELDS;
+            CardSnapshot card = read(slots, base, cardId);
+            if (card == null) {
+                return null;
+            }
+            if (card != MISMATCH) {
+                return card;
+            }
+        }
+    }
+
+    @Override
+    public void put(CardSnapshot card) {
+        long msb = card.getCardId().getMostSignificantBits();
+        long lsb = card.getCardId().getLeastSignificantBits();
+        long[] slots = table;
+        int base = find(slots, msb, lsb);
+
+        if (slots[base + STAMP] == 0) {
+            if ((size + 1) * 4L > capacity(slots) * 3L) {
+                slots = grow(slots);
+                base = find(slots, msb, lsb);
+            }
+            size = size + 1;
+        }
+        write(slots, base, msb, lsb, card);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        table = new long[INITIAL_CAPACITY * FIELDS];
+        size = 0;
+    }
+
+    @Override
+    public long estimatedMemoryBytes() {
+        return (long) table.length * Long.BYTES;
+    }
+
+    @Override
+    public Iterator<CardSnapshot> iterator() {
+        long[] slots = table;
+        return new Iterator<>() {
+            private int base = -FIELDS;
+            private CardSnapshot next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public CardSnapshot next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                CardSnapshot card = next;
+                next = advance();
+                return card;
+            }
+
+            private CardSnapshot advance() {
+                for (base += FIELDS; base < slots.length; base += FIELDS) {
+                    CardSnapshot card = read(slots, base, null);
+                    if (card != null) {
+                        return card;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Reads a consistent copy of the slot: {@code null} if it is free, {@link #MISMATCH} if it holds another card
+     * than {@code cardId} and the card otherwise. Any card matches a {@code null} id.
+     */
+    private static CardSnapshot read(long[] slots, int base, UUID cardId) {
+        while (true) {
+            long stamp = (long) SLOTS.getAcquire(slots, base + STAMP);
+            if (stamp == 0) {
+                return null;
+            }
+            if ((stamp & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            long msb = slots[base + MSB];
+            long lsb = slots[base + LSB];
+            long limit = slots[base + LIMIT];
+            long usedLimit = slots[base + USED_LIMIT];
+            long heldLimit = slots[base + HELD_LIMIT];
+            long version = slots[base + VERSION];
+            VarHandle.loadLoadFence();
+            if ((long) SLOTS.getOpaque(slots, base + STAMP) != stamp) {
+                continue;
+            }
+
+            if (cardId == null) {
+                return new CardSnapshot(new UUID(msb, lsb), limit, usedLimit, heldLimit, version);
+            }
+            if (msb != cardId.getMostSignificantBits() || lsb != cardId.getLeastSignificantBits()) {
+                return MISMATCH;
+            }
+            return new CardSnapshot(cardId, limit, usedLimit, heldLimit, version);
+        }
+    }
+
+    /**
+     * Only called by the writer, which is the only one to change slots and so can read them plainly.
+     */
+    private static void write(long[] slots, int base, long msb, long lsb, CardSnapshot card) {
+        long stamp = slots[base + STAMP];
+        SLOTS.setOpaque(slots, base + STAMP, stamp + 1);
+        VarHandle.storeStoreFence();
+        slots[base + MSB] = msb;
+        slots[base + LSB] = lsb;
+        slots[base + LIMIT] = card.getLimit();
+        slots[base + USED_LIMIT] = card.getUsedLimit();
+        slots[base + HELD_LIMIT] = card.getHeldLimit();
+        slots[base + VERSION] = card.getVersion();
+        SLOTS.setRelease(slots, base + STAMP, stamp + 2);
+    }
+
+    /**
+     * Returns the slot of the card, or the free slot where it belongs.
+     */
+    private static int find(long[] slots, long msb, long lsb) {
+        int mask = capacity(slots) - 1;
+        for (int slot = indexOf(msb, lsb, mask); ; slot = (slot + 1) & mask) {
+            int base = slot * FIELDS;
+            if (slots[base + STAMP] == 0 || (slots[base + MSB] == msb && slots[base + LSB] == lsb)) {
+                return base;
+            }
+        }
+    }
+
+    private long[] grow(long[] slots) {
+        long[] grown = new long[slots.length * 2];
+        for (int base = 0; base < slots.length; base += FIELDS) {
+            if (slots[base + STAMP] != 0) {
+                int target = find(grown, slots[base + MSB], slots[base + LSB]);
+                System.arraycopy(slots, base, grown, target, FIELDS);
+                grown[target + STAMP] = 2;
+            }
+        }
+        table = grown;
+        return grown;
+    }
+
+    private static int capacity(long[] slots) {
+        return slots.length / FIELDS;
+    }
+
+    /**
+     * Shards are picked by {@link UUID#hashCode()}, so the slot mixes all bits of the id again to stay independent.
+     */
+    static int indexOf(long msb, long lsb, int mask) {
+        long hash = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash & mask;
+    }
+}
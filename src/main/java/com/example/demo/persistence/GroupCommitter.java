@@ -0,0 +1,213 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+import com.example.demo.events.Event;
+import com.example.demo.events.Events;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the commits of one shard durable in batches.
+ * <p>
+ * A commit is appended to the {@link EventLog} by the writer and then only enqueued here. The committer thread
+ * takes everything enqueued so far, forces the log once for all of it and only then hands the commits to the
+ * {@link CommitListener}s and {@link Events}, in commit order, and completes their futures. So no caller is
+ * acknowledged, no event published and no read model updated before the change is on disk.
+ * <p>
+ * A batch is synced as soon as {@code maxBatchSize} commits are waiting or the oldest of them has waited
+ * {@code maxWaitNanos}, and holds at most {@code maxBatchSize} commits; with no wait at all, batches are whatever
+ * piles up while the previous sync runs, up to that size.
+ * <p>
+ * A failed sync fences the shard for good. Its commits are already applied in memory and their records are in the
+ * log, where the next sync that succeeds would make them durable after all, so failing only their futures would
+ * deny changes that are live and may survive a restart. Instead every commit from then on fails with the
+ * {@link #failure()} as well, the durable offset stays where it is, and the node has to be restarted, which
+ * recovers whatever of the log did reach the disk.
+ */
+@Slf4j
+class GroupCommitter implements Closeable {
+
+    private final EventLog eventLog;
+    private final Events events;
+    private final List<CommitListener> listeners;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final Runnable onDurable;
+    private final Queue<Pending> pending = new ArrayDeque<>();
+    private final Thread thread;
+    private boolean running = true;
+    private volatile long durableOffset;
+    private volatile IllegalStateException failure;
+
+    GroupCommitter(String name, EventLog eventLog, Events events, List<CommitListener> listeners, int maxBatchSize,
+                   long maxWaitNanos, Runnable onDurable) {
+        this.eventLog = eventLog;
+        this.events = events;
+        this.listeners = listeners;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = maxWaitNanos;
+        this.onDurable = onDurable;
+        this.durableOffset = eventLog.endOffset();
+
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Enqueues a commit that has already been appended to the log and ends at {@code endOffset}. Must be called in
+     * commit order.
+     */
+    CompletableFuture<Void> enqueue(CardSnapshot card, List<Event> changes, long endOffset) {
+        Pending commit = new Pending(card, changes, endOffset, System.nanoTime(), new CompletableFuture<>());
+        synchronized (pending) {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            pending.add(commit);
+            if (pending.size() == 1 || pending.size() >= maxBatchSize) {
+                pending.notifyAll();
+            }
+        }
+        return commit.getDurable();
+    }
+
+    /**
+     * Returns once every commit enqueued before has been synced and delivered.
+     */
+    void awaitEnqueued() {
+        enqueue(null, List.of(), 0).join();
+    }
+
+    /**
+     * Returns the offset up to which the commits are durable and have been delivered, the end of the log as far
+     * as readers of committed events are concerned.
+     */
+    long durableOffset() {
+        return durableOffset;
+    }
+
+    /**
+     * Returns why the shard was fenced, or {@code null} while every sync has succeeded.
+     */
+    IllegalStateException failure() {
+        return failure;
+    }
+
+    /**
+     * Starts over at the offset after the log has been truncated. Only called while nothing is enqueued.
+     */
+    void resetDurableOffset(long offset) {
+        durableOffset = offset;
+    }
+
+    @Override
+    public void close() {
+        synchronized (pending) {
+            running = false;
+            pending.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        while (takeBatch(batch)) {
+            try {
+                eventLog.sync();
+            } catch (RuntimeException e) {
+                log.error("Syncing the log failed, fencing the shard", e);
+                fence(new IllegalStateException("The log of the shard failed to sync", e), batch);
+                return;
+            }
+
+            for (Pending commit : batch) {
+                try {
+                    deliver(commit);
+                } catch (RuntimeException e) {
+                    log.error("Delivering a durable commit of card {} failed", commit.getCard().getCardId(), e);
+                }
+                // published first, so a writer that was acknowledged finds its commit among the durable ones
+                if (commit.getCard() != null) {
+                    durableOffset = commit.getEndOffset();
+                }
+                commit.getDurable().complete(null);
+            }
+            batch.clear();
+            onDurable.run();
+        }
+    }
+
+    /**
+     * Fails the batch, everything enqueued after it and every later commit.
+     */
+    private void fence(IllegalStateException cause, List<Pending> batch) {
+        synchronized (pending) {
+            failure = cause;
+            batch.addAll(pending);
+            pending.clear();
+        }
+        batch.forEach(commit -> commit.getDurable().completeExceptionally(cause));
+        batch.clear();
+    }
+
+    private void deliver(Pending commit) {
+        if (commit.getCard() == null) {
+            return;
+        }
+        for (CommitListener listener : listeners) {
+            listener.onCommit(commit.getCard());
+        }
+        events.emitAll(commit.getChanges());
+    }
+
+    /**
+     * Waits for a batch to be due and moves it over; returns {@code false} once closed and drained.
+     */
+    private boolean takeBatch(List<Pending> batch) {
+        synchronized (pending) {
+            try {
+                while (running && pending.isEmpty()) {
+                    pending.wait();
+                }
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                long deadline = pending.element().getEnqueuedNanos() + maxWaitNanos;
+                long remaining;
+                while (running && pending.size() < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(pending, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+
+            for (int i = 0; i < maxBatchSize && !pending.isEmpty(); i++) {
+                batch.add(pending.remove());
+            }
+            return true;
+        }
+    }
+
+    @Value
+    private static class Pending {
+        CardSnapshot card;
+        List<Event> changes;
+        long endOffset;
+        long enqueuedNanos;
+        CompletableFuture<Void> durable;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One {@link CardSnapshot} object per card in a {@link ConcurrentHashMap}.
+ */
+class HeapCardStates implements CardStates {
+
+    /**
+     * Rough heap footprint of one card: the map node, its {@link UUID} key and the {@link CardSnapshot} value.
+     */
+    private static final long CARD_ENTRY_BYTES = 128;
+
+    private final Map<UUID, CardSnapshot> cards = new ConcurrentHashMap<>();
+
+    @Override
+    public CardSnapshot get(UUID cardId) {
+        return cards.get(cardId);
+    }
+
+    @Override
+    public void put(CardSnapshot card) {
+        cards.put(card.getCardId(), card);
+    }
+
+    @Override
+    public int size() {
+        return cards.size();
+    }
+
+    @Override
+    public void clear() {
+        cards.clear();
+    }
+
+    @Override
+    public long estimatedMemoryBytes() {
+        return cards.size() * CARD_ENTRY_BYTES;
+    }
+
+    @Override
+    public Iterator<CardSnapshot> iterator() {
+        return cards.values().iterator();
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.Hold;
+import com.example.demo.domain.events.HoldCapturedEvent;
+import com.example.demo.domain.events.HoldExpiredEvent;
+import com.example.demo.domain.events.HoldReleasedEvent;
+import com.example.demo.domain.events.LimitHeldEvent;
+import com.example.demo.events.Event;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The open holds of the cards of one shard, kept up to date from the events as they are committed. Written by one
+ * thread at a time, the shard's committing writer, and read by any thread without locking: the holds of a card are
+ * an immutable map that every change replaces.
+ * <p>
+ * The book also remembers where in the log every hold was placed, so that a snapshot can record the offset of the
+ * oldest hold that is still open, from where a replay finds every hold that a restart has to bring back, and which
+ * open hold was placed under which idempotency key, so that a repeated hold can be answered with the first one.
+ */
+class HoldBook {
+
+    /**
+     * Rough heap footprint of one open hold: the entries in the maps, its boxed id, the {@link Hold} and its
+     * placement.
+     */
+    private static final long HOLD_BYTES = 200;
+
+    private final Map<UUID, Map<Long, Hold>> holds = new ConcurrentHashMap<>();
+    private final Map<Long, Hold> byIdempotencyKey = new ConcurrentHashMap<>();
+    // only touched by the writer, the key every open hold that was placed under one has in byIdempotencyKey
+    private final Map<Hold, Long> idempotencyKeys = new HashMap<>();
+    // only touched by the writer, in the order the holds were placed
+    private final Queue<Placement> placements = new ArrayDeque<>();
+    private volatile int size;
+
+    /**
+     * Opens or closes a hold if the event does either, the event being at the offset of the log and committed under
+     * the idempotency key, {@code 0} for none.
+     */
+    void apply(Event event, long offset, long idempotencyKey) {
+        if (event instanceof LimitHeldEvent) {
+            LimitHeldEvent held = (LimitHeldEvent) event;
+            Hold hold = new Hold(held.getCardId(), held.getHoldId(), held.getAmount(), held.getExpiresAt());
+            if (change(hold.getCardId(), hold.getHoldId(), hold)) {
+                placements.add(new Placement(offset, hold.getCardId(), hold.getHoldId()));
+                if (idempotencyKey != 0) {
+                    idempotencyKeys.put(hold, idempotencyKey);
+                    byIdempotencyKey.put(idempotencyKey, hold);
+                }
+            }
+        } else if (event instanceof HoldCapturedEvent) {
+            change(event.getCardId(), ((HoldCapturedEvent) event).getHoldId(), null);
+        } else if (event instanceof HoldReleasedEvent) {
+            change(event.getCardId(), ((HoldReleasedEvent) event).getHoldId(), null);
+        } else if (event instanceof HoldExpiredEvent) {
+            change(event.getCardId(), ((HoldExpiredEvent) event).getHoldId(), null);
+        }
+    }
+
+    /**
+     * Returns the open hold, or {@code null} if the card has no such hold or it is closed already.
+     */
+    Hold get(UUID cardId, long holdId) {
+        Map<Long, Hold> cardHolds = holds.get(cardId);
+        return cardHolds == null ? null : cardHolds.get(holdId);
+    }
+
+    /**
+     * Returns the open hold placed under the idempotency key, or {@code null} if there is none or it is closed
+     * already.
+     */
+    Hold placedUnder(long idempotencyKey) {
+        return byIdempotencyKey.get(idempotencyKey);
+    }
+
+    /**
+     * Offset of the log where the oldest open hold was placed, or {@code ifNone} without any. Only called by the
+     * writer.
+     */
+    long oldestOffset(long ifNone) {
+        for (Placement oldest = placements.peek(); oldest != null; oldest = placements.peek()) {
+            if (get(oldest.cardId, oldest.holdId) != null) {
+                return oldest.offset;
+            }
+            placements.remove();
+        }
+        return ifNone;
+    }
+
+    void forEach(Consumer<Hold> consumer) {
+        holds.values().forEach(cardHolds -> cardHolds.values().forEach(consumer));
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        holds.clear();
+        byIdempotencyKey.clear();
+        idempotencyKeys.clear();
+        placements.clear();
+        size = 0;
+    }
+
+    long estimatedMemoryBytes() {
+        return size * HOLD_BYTES;
+    }
+
+    /**
+     * Puts the hold under its id, or removes whatever is there for {@code null}, and returns whether that changed
+     * anything.
+     */
+    private boolean change(UUID cardId, long holdId, Hold hold) {
+        Map<Long, Hold> current = holds.getOrDefault(cardId, Map.of());
+        if (hold == null ? !current.containsKey(holdId) : current.containsKey(holdId)) {
+            return false;
+        }
+
+        Map<Long, Hold> changed = new HashMap<>(current);
+        if (hold == null) {
+            Long idempotencyKey = idempotencyKeys.remove(changed.remove(holdId));
+            if (idempotencyKey != null) {
+                byIdempotencyKey.remove(idempotencyKey);
+            }
+            size = size - 1;
+        } else {
+            changed.put(holdId, hold);
+            size = size + 1;
+        }
+        if (changed.isEmpty()) {
+            holds.remove(cardId);
+        } else {
+            holds.put(cardId, Map.copyOf(changed));
+        }
+        return true;
+    }
+
+    private static final class Placement {
+
+        final long offset;
+        final UUID cardId;
+        final long holdId;
+
+        Placement(long offset, UUID cardId, long holdId) {
+            this.offset = offset;
+            this.cardId = cardId;
+            this.holdId = holdId;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.demo.persistence;
+
+import java.util.UUID;
+
+/**
+ * The outcomes of the commands a shard has seen under an idempotency key, kept for {@code ttlMillis} and for at
+ * most {@code capacity} keys.
+ * <p>
+ * A key is the 64 bit hash of the card id and the key the client sent, see {@link #keyOf}, and maps to an
+ * {@code int} outcome in a primitive open addressing table. Keys are also queued in the order they were recorded,
+ * which is the order they expire in as they all live equally long, so every call first drops the expired and, when
+ * full, the oldest keys from the head of that queue. Nothing ticks in the background and an entry costs about 40
+ * bytes. Both arrays start small and double up to what the capacity needs.
+ */
+class IdempotencyCache {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int capacity;
+    private final long ttlMillis;
+
+    private long[] keys = new long[INITIAL_CAPACITY * 2];
+    private int[] outcomes = new int[INITIAL_CAPACITY * 2];
+    private int size;
+
+    private long[] queuedKeys = new long[INITIAL_CAPACITY];
+    private long[] queuedTimestamps = new long[INITIAL_CAPACITY];
+    private int head;
+
+    IdempotencyCache(int capacity, long ttlMillis) {
+        this.capacity = Math.max(capacity, 1);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Hashes the idempotency key a client sent for a card. Never returns {@code 0}, which the event log stores for
+     * commits without a key.
+     */
+    static long keyOf(UUID cardId, String idempotencyKey) {
+        long hash = 0xCBF29CE484222325L ^ cardId.getMostSignificantBits() * 0x9E3779B97F4A7C15L;
+        hash ^= cardId.getLeastSignificantBits();
+        for (int i = 0; i < idempotencyKey.length(); i++) {
+            hash = (hash ^ idempotencyKey.charAt(i)) * 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Returns the outcome recorded for the key, or {@code -1} if there is none or it has expired.
+     */
+    synchronized int get(long key, long now) {
+        expire(now);
+        int slot = find(key);
+        return keys[slot] == key ? outcomes[slot] : -1;
+    }
+
+    /**
+     * Records the outcome of the key as of the epoch millis {@code timestamp}. A key that is already known keeps
+     * its place in the queue.
+     */
+    synchronized void put(long key, int outcome, long timestamp, long now) {
+        expire(now);
+        if (timestamp + ttlMillis <= now) {
+            return;
+        }
+
+        int slot = find(key);
+        if (keys[slot] == key) {
+            outcomes[slot] = outcome;
+            return;
+        }
+
+        if (size == capacity) {
+            remove(queuedKeys[head]);
+            head = (head + 1) % queuedKeys.length;
+            size--;
+        }
+        if (size == queuedKeys.length) {
+            growQueue();
+        }
+        if ((size + 1) * 2 > keys.length) {
+            growTable();
+        }
+
+        int tail = (head + size) % queuedKeys.length;
+        queuedKeys[tail] = key;
+        queuedTimestamps[tail] = timestamp;
+        slot = find(key);
+        keys[slot] = key;
+        outcomes[slot] = outcome;
+        size++;
+    }
+
+    long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        keys = new long[INITIAL_CAPACITY * 2];
+        outcomes = new int[INITIAL_CAPACITY * 2];
+        queuedKeys = new long[INITIAL_CAPACITY];
+        queuedTimestamps = new long[INITIAL_CAPACITY];
+        head = 0;
+        size = 0;
+    }
+
+    synchronized long estimatedMemoryBytes() {
+        return (long) keys.length * (Long.BYTES + Integer.BYTES) + (long) queuedKeys.length * 2 * Long.BYTES;
+    }
+
+    private void expire(long now) {
+        while (size > 0 && queuedTimestamps[head] + ttlMillis <= now) {
+            remove(queuedKeys[head]);
+            head = (head + 1) % queuedKeys.length;
+            size--;
+        }
+    }
+
+    /**
+     * Returns the slot of the key, or the free slot where it belongs.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = indexOf(key, mask); ; slot = (slot + 1) & mask) {
+            if (keys[slot] == 0 || keys[slot] == key) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Removes the key from the table and shifts the keys probed past it back, so no probe ever stops short.
+     */
+    private void remove(long key) {
+        int mask = keys.length - 1;
+        int free = find(key);
+        if (keys[free] != key) {
+            return;
+        }
+
+        for (int slot = (free + 1) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+            int home = indexOf(keys[slot], mask);
+            boolean reachable = free <= slot ? free < home && home <= slot : free < home || home <= slot;
+            if (!reachable) {
+                keys[free] = keys[slot];
+                outcomes[free] = outcomes[slot];
+                free = slot;
+            }
+        }
+        keys[free] = 0;
+    }
+
+    private void growQueue() {
+        int length = queuedKeys.length;
+        long[] grownKeys = new long[length * 2];
+        long[] grownTimestamps = new long[length * 2];
+        for (int i = 0; i < size; i++) {
+            grownKeys[i] = queuedKeys[(head + i) % length];
+            grownTimestamps[i] = queuedTimestamps[(head + i) % length];
+        }
+        queuedKeys = grownKeys;
+        queuedTimestamps = grownTimestamps;
+        head = 0;
+    }
+
+    private void growTable() {
+        long[] oldKeys = keys;
+        int[] oldOutcomes = outcomes;
+        keys = new long[oldKeys.length * 2];
+        outcomes = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                outcomes[slot] = oldOutcomes[i];
+            }
+        }
+    }
+
+    private static int indexOf(long key, int mask) {
+        return (int) (key ^ key >>> 32) & mask;
+    }
+}
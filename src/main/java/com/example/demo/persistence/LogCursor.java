@@ -0,0 +1,83 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.exceptions.InvalidCursorException;
+
+import java.util.Arrays;
+
+/**
+ * A position in the committed events of every shard: the log offset of the next record to read from each of them.
+ * Written as the offsets joined by dots in shard order, such as {@code 0.400.1200.0}, which is what a consumer
+ * keeps to resume exactly where it stopped. Advanced in place by a single reader.
+ */
+public final class LogCursor {
+
+    private final long[] offsets;
+
+    LogCursor(long[] offsets) {
+        this.offsets = offsets;
+    }
+
+    /**
+     * Parses a cursor of a store with the given number of shards.
+     *
+     * @throws InvalidCursorException if it has another number of offsets or any of them is no offset
+     */
+    public static LogCursor parse(String cursor, int shards) {
+        String[] parts = cursor.split("\\.", -1);
+        if (parts.length != shards) {
+            throw new InvalidCursorException();
+        }
+        long[] offsets = new long[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                offsets[i] = Long.parseLong(parts[i]);
+                if (offsets[i] < 0) {
+                    throw new InvalidCursorException();
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new InvalidCursorException();
+        }
+        return new LogCursor(offsets);
+    }
+
+    public int shards() {
+        return offsets.length;
+    }
+
+    public long offset(int shard) {
+        return offsets[shard];
+    }
+
+    public void advance(int shard, long offset) {
+        offsets[shard] = offset;
+    }
+
+    /**
+     * Appends the cursor in its written form without going through a string.
+     */
+    public StringBuilder appendTo(StringBuilder target) {
+        for (int i = 0; i < offsets.length; i++) {
+            if (i > 0) {
+                target.append('.');
+            }
+            target.append(offsets[i]);
+        }
+        return target;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof LogCursor && Arrays.equals(offsets, ((LogCursor) other).offsets);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(offsets);
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
+}
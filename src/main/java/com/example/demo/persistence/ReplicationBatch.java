@@ -0,0 +1,44 @@
+package com.example.demo.persistence;
+
+import com.example.demo.events.Event;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the committed events a leader ships to its followers: the events back to back as
+ * {@link EventCodec} records of the current schema, so every event carries its sequence, the timestamp of its commit
+ * and the idempotency key it was committed under. Events of one card are in commit order, and the batch ends where
+ * the stream ends.
+ */
+final class ReplicationBatch {
+
+    private ReplicationBatch() {
+    }
+
+    static void write(Event event, long sequence, long timestamp, long idempotencyKey, ByteBuffer record,
+                      ByteArrayOutputStream out) {
+        record.clear();
+        EventCodec.encode(event, sequence, timestamp, idempotencyKey, record);
+        out.write(record.array(), 0, record.position());
+    }
+
+    /**
+     * Hands the consumer every event of the batch, reading the stream up to its end.
+     *
+     * @throws EOFException if the stream ends within an event
+     */
+    static void read(InputStream in, EventCodec.RecordConsumer consumer) throws IOException {
+        byte[] record = new byte[EventCodec.SIZE];
+        int read;
+        while ((read = in.readNBytes(record, 0, record.length)) > 0) {
+            if (read < record.length) {
+                throw new EOFException("Replication batch ends within an event");
+            }
+            EventCodec.decode(ByteBuffer.wrap(record), consumer);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+import lombok.Value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Comparator.reverseOrder;
+
+/**
+ * Point-in-time copies of every card, each named after the log offset it was taken at.
+ * <p>
+ * A snapshot file is {@code [magic:int][format:int][logOffset:long][holdsOffset:long]}, followed by one
+ * {@code [cardId:16][version:long][limit:long][usedLimit:long][heldLimit:long]} record per card and a
+ * {@code [count:int][crc32:int]} trailer. Every card record carries its version, so events after the log offset
+ * that a record already includes are recognised by their sequence and skipped on replay. The holds offset is where
+ * the oldest hold that was still open lies in the log, from where the open holds are replayed. A file of any other
+ * format is passed over like a torn one, the same way the log reads only records of the current schema.
+ * <p>
+ * With a {@link CardHistory} its checkpoints are saved alongside, named after the same log offset, as
+ * {@code [magic:int][logOffset:long]} followed by what {@link CardHistory#write} writes and a {@code [crc32:int]}
+ * trailer.
+ */
+class SnapshotStore {
+
+    private static final String SUFFIX = ".snapshot";
+    private static final String HISTORY_SUFFIX = ".history";
+    private static final int MAGIC = 0x43415244;
+    private static final int HISTORY_MAGIC = 0x48495354;
+    private static final int FORMAT = 2;
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int TRAILER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final int RECORD_SIZE = 16 + 4 * Long.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RETAINED_SNAPSHOTS = 2;
+
+    private final Path directory;
+
+    SnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Writes the cards to a new snapshot taken at the log offset and returns its path.
+     */
+    synchronized Path write(long logOffset, long holdsOffset, Iterable<CardSnapshot> cards) {
+        Path target = snapshotPath(logOffset);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            CRC32 checksum = new CRC32();
+            int count = 0;
+
+            buffer.putInt(MAGIC).putInt(FORMAT).putLong(logOffset).putLong(holdsOffset);
+            for (CardSnapshot card : cards) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    flush(buffer, checksum, channel);
+                }
+                buffer.putLong(card.getCardId().getMostSignificantBits());
+                buffer.putLong(card.getCardId().getLeastSignificantBits());
+                buffer.putLong(card.getVersion());
+                buffer.putLong(card.getLimit());
+                buffer.putLong(card.getUsedLimit());
+                buffer.putLong(card.getHeldLimit());
+                count++;
+            }
+            flush(buffer, checksum, channel);
+
+            buffer.putInt(count).putInt((int) checksum.getValue()).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try {
+            Files.move(temporary, target, ATOMIC_MOVE);
+
+            List<Long> offsets = snapshotOffsets();
+            List<Long> retained = offsets.subList(0, Math.min(RETAINED_SNAPSHOTS, offsets.size()));
+            for (long stale : offsets.subList(retained.size(), offsets.size())) {
+                Files.deleteIfExists(snapshotPath(stale));
+            }
+            // the checkpoints of a snapshot that a crash kept from being written go as well
+            for (long stale : offsets(HISTORY_SUFFIX)) {
+                if (!retained.contains(stale)) {
+                    Files.deleteIfExists(historyPath(stale));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return target;
+    }
+
+    /**
+     * Writes the checkpoints of the history for the snapshot about to be taken at the log offset. The records they
+     * point to have to be made durable before that snapshot is written.
+     */
+    synchronized void writeHistory(long logOffset, CardHistory history) {
+        Path target = historyPath(logOffset);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(HISTORY_MAGIC);
+            out.writeLong(logOffset);
+            history.write(out);
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try {
+            Files.move(temporary, target, ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the checkpoints saved with the snapshot taken at the log offset into the history, and returns whether
+     * there were any that are complete and intact. The history is left empty otherwise.
+     */
+    synchronized boolean readHistory(long logOffset, CardHistory history) {
+        Path path = historyPath(logOffset);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != HISTORY_MAGIC || in.readLong() != logOffset) {
+                return false;
+            }
+            history.read(in);
+            int checksum = (int) checked.getChecksum().getValue();
+            if (in.readInt() == checksum) {
+                return true;
+            }
+        } catch (EOFException e) {
+            // torn, same as a wrong checksum
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        history.clear();
+        return false;
+    }
+
+    /**
+     * Loads the newest snapshot that is complete and intact, falling back to older ones otherwise.
+     */
+    synchronized Optional<Snapshot> loadLatest() {
+        for (long offset : snapshotOffsets()) {
+            Optional<Snapshot> snapshot = load(snapshotPath(offset));
+            if (snapshot.isPresent()) {
+                return snapshot;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Opens the newest snapshot that is complete and intact for reading cards one by one, falling back to older ones
+     * otherwise.
+     */
+    synchronized Optional<SnapshotFile> openLatest() {
+        for (long offset : snapshotOffsets()) {
+            Path path = snapshotPath(offset);
+            if (isIntact(path)) {
+                return Optional.of(open(path));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Opens a snapshot returned by {@link #write} without checking it again.
+     */
+    static SnapshotFile open(Path path) {
+        try {
+            FileChannel channel = FileChannel.open(path, READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            long logOffset = header.getLong(Integer.BYTES + Integer.BYTES);
+            long holdsOffset = header.getLong(Integer.BYTES + Integer.BYTES + Long.BYTES);
+            int count = (int) ((channel.size() - HEADER_SIZE - TRAILER_SIZE) / RECORD_SIZE);
+            return new SnapshotFile(channel, logOffset, holdsOffset, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void deleteAll() {
+        try {
+            for (long offset : snapshotOffsets()) {
+                Files.deleteIfExists(snapshotPath(offset));
+            }
+            for (long offset : offsets(HISTORY_SUFFIX)) {
+                Files.deleteIfExists(historyPath(offset));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Optional<Snapshot> load(Path path) {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            if (channel.size() < HEADER_SIZE + TRAILER_SIZE) {
+                return Optional.empty();
+            }
+            ByteBuffer buffer = channel.map(READ_ONLY, 0, channel.size());
+            int trailerStart = buffer.limit() - TRAILER_SIZE;
+
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer.duplicate().limit(trailerStart));
+            int count = buffer.getInt(trailerStart);
+            if ((int) checksum.getValue() != buffer.getInt(trailerStart + Integer.BYTES)) {
+                return Optional.empty();
+            }
+
+            if (buffer.getInt() != MAGIC) {
+                return Optional.empty();
+            }
+            if (buffer.getInt() != FORMAT) {
+                return Optional.empty();
+            }
+            long logOffset = buffer.getLong();
+            long holdsOffset = buffer.getLong();
+
+            Map<UUID, CardSnapshot> cards = new HashMap<>(count * 4 / 3 + 1);
+            while (buffer.position() < trailerStart) {
+                CardSnapshot card = decode(buffer);
+                cards.put(card.getCardId(), card);
+            }
+
+            return Optional.of(new Snapshot(logOffset, holdsOffset, cards));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Checks the header and the checksum of the snapshot without loading it.
+     */
+    private static boolean isIntact(Path path) {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                return false;
+            }
+            long trailerStart = size - TRAILER_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            CRC32 checksum = new CRC32();
+            for (long position = 0; position < trailerStart; position += buffer.limit()) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, trailerStart - position));
+                readFully(channel, buffer, position);
+                checksum.update(buffer);
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(channel, trailer, trailerStart);
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES);
+            readFully(channel, header, 0);
+            return (int) checksum.getValue() == trailer.getInt(Integer.BYTES)
+                && header.getInt(0) == MAGIC
+                && header.getInt(Integer.BYTES) == FORMAT;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Fills the buffer from the position on and flips it.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Snapshot ends at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+
+    private static CardSnapshot decode(ByteBuffer record) {
+        UUID cardId = new UUID(record.getLong(), record.getLong());
+        long version = record.getLong();
+        long limit = record.getLong();
+        long usedLimit = record.getLong();
+        long heldLimit = record.getLong();
+        return new CardSnapshot(cardId, limit, usedLimit, heldLimit, version);
+    }
+
+    private static void flush(ByteBuffer buffer, CRC32 checksum, FileChannel channel) throws IOException {
+        buffer.flip();
+        checksum.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Offsets of all snapshots on disk, newest first.
+     */
+    private List<Long> snapshotOffsets() {
+        return offsets(SUFFIX);
+    }
+
+    private List<Long> offsets(String suffix) {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                .filter(name -> name.endsWith(suffix))
+                .map(name -> Long.parseLong(name.substring(0, name.length() - suffix.length())))
+                .sorted(reverseOrder())
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path snapshotPath(long logOffset) {
+        return directory.resolve(String.format("%020d%s", logOffset, SUFFIX));
+    }
+
+    private Path historyPath(long logOffset) {
+        return directory.resolve(String.format("%020d%s", logOffset, HISTORY_SUFFIX));
+    }
+
+    @Value
+    static class Snapshot {
+        long logOffset;
+        long holdsOffset;
+        Map<UUID, CardSnapshot> cards;
+    }
+
+    /**
+     * Where in the log the replay after a snapshot starts: at {@code logOffset} for the cards and at
+     * {@code holdsOffset} for the open holds.
+     */
+    @Value
+    static class Offsets {
+
+        static final Offsets NONE = new Offsets(0, 0);
+
+        long logOffset;
+        long holdsOffset;
+    }
+
+    /**
+     * An open snapshot whose cards are read by their position in it. Shared by any number of readers, each of which
+     * {@link #retain retains} it while reading; the channel is closed once the last of them and the owner have
+     * {@link #release released} it.
+     */
+    static final class SnapshotFile {
+
+        private final FileChannel channel;
+        private final long logOffset;
+        private final long holdsOffset;
+        private final int count;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private SnapshotFile(FileChannel channel, long logOffset, long holdsOffset, int count) {
+            this.channel = channel;
+            this.logOffset = logOffset;
+            this.holdsOffset = holdsOffset;
+            this.count = count;
+        }
+
+        Offsets getOffsets() {
+            return new Offsets(logOffset, holdsOffset);
+        }
+
+        /**
+         * Number of cards in the snapshot, which are at the positions {@code 0} to {@code count - 1}.
+         */
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns whether the snapshot is still open, in which case it stays so until {@link #release()}.
+         */
+        boolean retain() {
+            for (int current = references.get(); current > 0; current = references.get()) {
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * Returns the card at the position, or {@code null} past the last one.
+         */
+        CardSnapshot read(int position) {
+            if (position >= count) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            try {
+                readFully(channel, record, HEADER_SIZE + (long) position * RECORD_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return decode(record);
+        }
+
+        /**
+         * Reads the cards from the position on into the array, as many as fit, and returns how many were read.
+         */
+        int read(int fromPosition, CardSnapshot[] cards) {
+            int read = Math.min(cards.length, count - fromPosition);
+            if (read <= 0) {
+                return 0;
+            }
+            ByteBuffer records = ByteBuffer.allocate(read * RECORD_SIZE);
+            try {
+                readFully(channel, records, HEADER_SIZE + (long) fromPosition * RECORD_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (int i = 0; i < read; i++) {
+                cards[i] = decode(records);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.demo.persistence;
+
+public enum StoreLayout {
+    /**
+     * One immutable object per card in a hash map, about 128 bytes per card.
+     */
+    HEAP,
+    /**
+     * Primitive slots in one flat {@code long[]} table per shard, about 75 bytes per card and no objects at all
+     * for the garbage collector to trace.
+     */
+    FLAT,
+    /**
+     * Only the {@code card.store.cache-size} most recently used cards, plus those changed since the latest snapshot,
+     * are held; any other card is read from the snapshot when it is asked for. Every card still costs about 53 bytes
+     * of index, and startup reads only that index from the snapshot.
+     */
+    CACHED
+}
@@ -0,0 +1,19 @@
+package com.example.demo.utils;
+
+import java.util.UUID;
+
+/**
+ * Spreads card ids over a fixed number of stripes. Mailboxes and event store shards share it, so with equal counts
+ * every card is written by the same mailbox thread and into the same shard.
+ */
+public final class Stripes {
+
+    private Stripes() {
+    }
+
+    public static int indexOf(UUID cardId, int stripes) {
+        int hash = cardId.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % stripes;
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.demo.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: schedules any number of deadlines in constant time each and hands them back once they
+ * are due, without a task or a heap entry per deadline.
+ * <p>
+ * Time moves in ticks of {@code tickMillis}. There are four wheels of 64 slots; a slot of the first wheel spans one
+ * tick and a slot of every further wheel spans the whole wheel below it, so together they cover 64<sup>4</sup>
+ * ticks. An item goes to the lowest wheel whose span reaches its deadline, and whenever the wheel below completes
+ * a turn, the next slot of a higher wheel is emptied and its items are placed again, closer to where they fire.
+ * Items further away than the wheels reach wait in the last slot of the top wheel and are placed again from there.
+ * <p>
+ * Items never come back before their deadline, and at most one tick after it if time is advanced every tick.
+ */
+public class TimingWheel<T> {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long SPAN = 1L << (LEVELS * SLOT_BITS);
+
+    private final long tickMillis;
+    private final Node<T>[][] wheels;
+    private Node<T> overdue;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.wheels = new Node[LEVELS][SLOTS];
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    /**
+     * Schedules the item for the epoch millis. An item whose deadline has passed comes back with the next advance.
+     */
+    public synchronized void schedule(long deadlineMillis, T item) {
+        long deadlineTick = deadlineMillis / tickMillis + (deadlineMillis % tickMillis == 0 ? 0 : 1);
+        place(new Node<>(deadlineTick, item));
+        size++;
+    }
+
+    /**
+     * Moves time on to the epoch millis and returns the items that are due by then, in no particular order.
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> due = new ArrayList<>();
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    cascade(level, slotOf(currentTick, level));
+                }
+            }
+            int slot = slotOf(currentTick, 0);
+            collect(wheels[0][slot], due);
+            wheels[0][slot] = null;
+        }
+        // scheduled late, or placed again by a cascade right at their deadline
+        collect(overdue, due);
+        overdue = null;
+        size -= due.size();
+        return due;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void place(Node<T> node) {
+        long delta = node.deadlineTick - currentTick;
+        if (delta <= 0) {
+            node.next = overdue;
+            overdue = node;
+            return;
+        }
+
+        long tick = delta < SPAN ? node.deadlineTick : currentTick + SPAN - 1;
+        int level = 0;
+        while (level < LEVELS - 1 && tick - currentTick >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+        int slot = slotOf(tick, level);
+        node.next = wheels[level][slot];
+        wheels[level][slot] = node;
+    }
+
+    private void cascade(int level, int slot) {
+        Node<T> node = wheels[level][slot];
+        wheels[level][slot] = null;
+        while (node != null) {
+            Node<T> next = node.next;
+            place(node);
+            node = next;
+        }
+    }
+
+    private static <T> void collect(Node<T> node, List<T> due) {
+        for (; node != null; node = node.next) {
+            due.add(node.item);
+        }
+    }
+
+    private static int slotOf(long tick, int level) {
+        return (int) (tick >>> (level * SLOT_BITS)) & SLOT_MASK;
+    }
+
+    private static final class Node<T> {
+
+        final long deadlineTick;
+        final T item;
+        Node<T> next;
+
+        Node(long deadlineTick, T item) {
+            this.deadlineTick = deadlineTick;
+            this.item = item;
+        }
+    }
+}
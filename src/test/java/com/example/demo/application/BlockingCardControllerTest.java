@@ -0,0 +1,7 @@
+package com.example.demo.application;
+
+import org.springframework.test.context.TestPropertySource;
+
+@TestPropertySource(properties = "card.web.request-handling=BLOCKING")
+public class BlockingCardControllerTest extends CardControllerTest {
+}
@@ -1,26 +1,56 @@
 package com.example.demo.application;
 
+import com.example.demo.application.requests.BatchCommandRequest;
 import com.example.demo.application.requests.ChangeLimitRequest;
+import com.example.demo.application.requests.HoldLimitRequest;
+import com.example.demo.application.requests.ImportCardRequest;
 import com.example.demo.application.requests.PayLimitRequest;
 import com.example.demo.application.requests.UseLimitRequest;
+import com.example.demo.application.responses.CardResponse;
+import com.example.demo.persistence.EventStore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 
 import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.example.demo.persistence.EventStore.eventStore;
-import static com.example.demo.utils.MathContext.subtract;
+import static com.example.demo.application.requests.BatchCommandRequest.Type.CHANGE;
+import static com.example.demo.application.requests.BatchCommandRequest.Type.PAY;
+import static com.example.demo.application.requests.BatchCommandRequest.Type.USE;
 import static java.math.BigDecimal.TEN;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -34,6 +64,15 @@ public class CardControllerTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private EventStore eventStore;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @LocalServerPort
+    private int port;
+
     @BeforeEach
     public void beforeEach() {
         eventStore.clear();
@@ -45,7 +84,7 @@ public class CardControllerTest {
     @Test
     public void shouldCreateCard() throws Exception {
         // when
-        var response = mockMvc.perform(post("/v1/cards"));
+        var response = perform(post("/v1/cards"));
 
         // then
         response.andExpect(status().isOk())
@@ -53,7 +92,7 @@ public class CardControllerTest {
             .andExpect(jsonPath("$.availableLimit").value("0"));
 
         // and
-        assertThat(eventStore).hasSize(1);
+        assertThat(eventStore.size()).isEqualTo(1);
     }
 
     @Test
@@ -65,7 +104,7 @@ public class CardControllerTest {
         BigDecimal newLimit = TEN;
 
         // when
-        var changeLimitResponse = mockMvc.perform(
+        var changeLimitResponse = perform(
             post("/v1/cards/" + cardId + "/limits/change").
                 contentType(APPLICATION_JSON).
                 content(objectMapper.writeValueAsString(new ChangeLimitRequest(newLimit)))
@@ -75,7 +114,7 @@ public class CardControllerTest {
         changeLimitResponse.andExpect(status().isOk());
 
         // and
-        assertThat(eventStore.get(cardId).availableLimit()).isEqualTo(newLimit);
+        assertThat(eventStore.get(cardId).availableLimit().toBigDecimal()).isEqualByComparingTo(newLimit);
     }
 
     @Test
@@ -88,7 +127,7 @@ public class CardControllerTest {
         changeLimit(limit, cardId);
 
         // when
-        var useLimitResponse = mockMvc.perform(
+        var useLimitResponse = perform(
             post("/v1/cards/" + cardId + "/limits/use").
                 contentType(APPLICATION_JSON).
                 content(objectMapper.writeValueAsString(new UseLimitRequest(useLimit)))
@@ -98,7 +137,82 @@ public class CardControllerTest {
         useLimitResponse.andExpect(status().isOk());
 
         // and
-        assertThat(eventStore.get(cardId).availableLimit()).isEqualTo(subtract(limit, useLimit));
+        assertThat(eventStore.get(cardId).availableLimit().toBigDecimal()).isEqualByComparingTo(limit.subtract(useLimit));
+    }
+
+    @Test
+    public void shouldApplyRetriedCommandOnlyOnce() throws Exception {
+        // given
+        createCard();
+        var cardId = readCardId();
+        changeLimit(limit, cardId);
+        var use = post("/v1/cards/" + cardId + "/limits/use").
+            header("Idempotency-Key", "gateway-retry-1").
+            contentType(APPLICATION_JSON).
+            content(objectMapper.writeValueAsString(new UseLimitRequest(useLimit)));
+        perform(use).andExpect(status().isOk());
+
+        // when
+        var retriedResponse = perform(use);
+
+        // then
+        retriedResponse.andExpect(status().isOk());
+
+        // and
+        assertThat(eventStore.get(cardId).availableLimit().toBigDecimal()).isEqualByComparingTo(limit.subtract(useLimit));
+        assertThat(eventStore.get(cardId).getVersion()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldHoldLimitUntilCapturedOrReleased() throws Exception {
+        // given
+        createCard();
+        var cardId = readCardId();
+        changeLimit(limit, cardId);
+
+        // when
+        var captured = perform(post("/v1/cards/" + cardId + "/holds").
+            contentType(APPLICATION_JSON).
+            content(objectMapper.writeValueAsString(new HoldLimitRequest(useLimit, 60L))));
+        var released = perform(post("/v1/cards/" + cardId + "/holds").
+            contentType(APPLICATION_JSON).
+            content(objectMapper.writeValueAsString(new HoldLimitRequest(BigDecimal.ONE))));
+
+        // then
+        captured.andExpect(status().isOk())
+            .andExpect(jsonPath("$.cardId").value(cardId.toString()))
+            .andExpect(jsonPath("$.holdId").value(3))
+            .andExpect(jsonPath("$.amount").value("5"));
+        released.andExpect(status().isOk())
+            .andExpect(jsonPath("$.holdId").value(4));
+        assertThat(eventStore.get(cardId).availableLimit().toBigDecimal()).isEqualByComparingTo("4");
+
+        // and
+        perform(post("/v1/cards/" + cardId + "/holds/3/capture")).andExpect(status().isOk());
+        perform(post("/v1/cards/" + cardId + "/holds/4/release")).andExpect(status().isOk());
+        perform(post("/v1/cards/" + cardId + "/holds/4/capture")).andExpect(status().isNotFound());
+        assertThat(eventStore.get(cardId).availableLimit().toBigDecimal()).isEqualByComparingTo(limit.subtract(useLimit));
+    }
+
+    @Test
+    public void shouldServeTotalsOfAllCards() throws Exception {
+        // given
+        createCard();
+        var cardId = readCardId();
+        changeLimit(limit, cardId);
+        useLimit(new BigDecimal("9.50"), cardId);
+        createCard();
+
+        // when
+        var response = perform(get("/v1/stats"));
+
+        // then
+        response.andExpect(status().isOk())
+            .andExpect(jsonPath("$.cards").value(2))
+            .andExpect(jsonPath("$.grantedLimit").value("10"))
+            .andExpect(jsonPath("$.usedLimit").value("9.5"))
+            .andExpect(jsonPath("$.heldLimit").value("0"))
+            .andExpect(jsonPath("$.cardsNearExhaustion").value(1));
     }
 
     @Test
@@ -112,7 +226,7 @@ public class CardControllerTest {
         useLimit(useLimit, cardId);
 
         // when
-        var payLimitResponse = mockMvc.perform(
+        var payLimitResponse = perform(
             post("/v1/cards/" + cardId + "/limits/pay").
                 contentType(APPLICATION_JSON).
                 content(objectMapper.writeValueAsString(new PayLimitRequest(useLimit)))
@@ -122,19 +236,283 @@ public class CardControllerTest {
         payLimitResponse.andExpect(status().isOk());
 
         // and
-        assertThat(eventStore.get(cardId).availableLimit()).isEqualTo(limit);
+        assertThat(eventStore.get(cardId).availableLimit().toBigDecimal()).isEqualByComparingTo(limit);
+    }
+
+    @Test
+    public void shouldRejectCommandForStaleVersion() throws Exception {
+        // given
+        createCard();
+
+        UUID cardId = readCardId();
+
+        changeLimit(limit, cardId);
+
+        // when
+        var useLimitResponse = perform(
+            post("/v1/cards/" + cardId + "/limits/use").
+                contentType(APPLICATION_JSON).
+                content(objectMapper.writeValueAsString(new UseLimitRequest(useLimit, 1L)))
+        );
+
+        // then
+        useLimitResponse.andExpect(status().isConflict());
+
+        // and
+        assertThat(eventStore.get(cardId).availableLimit().toBigDecimal()).isEqualByComparingTo(limit);
+    }
+
+    @Test
+    public void shouldDeclineUseOverTheAvailableLimit() throws Exception {
+        // given
+        createCard();
+
+        UUID cardId = readCardId();
+
+        changeLimit(limit, cardId);
+
+        // when
+        var useLimitResponse = perform(
+            post("/v1/cards/" + cardId + "/limits/use").
+                contentType(APPLICATION_JSON).
+                content(objectMapper.writeValueAsString(new UseLimitRequest(limit.add(useLimit))))
+        );
+        var holdResponse = perform(
+            post("/v1/cards/" + cardId + "/holds").
+                contentType(APPLICATION_JSON).
+                content(objectMapper.writeValueAsString(new HoldLimitRequest(useLimit.negate())))
+        );
+
+        // then
+        useLimitResponse.andExpect(status().isUnprocessableEntity());
+        holdResponse.andExpect(status().isUnprocessableEntity());
+
+        // and
+        assertThat(eventStore.get(cardId).availableLimit().toBigDecimal()).isEqualByComparingTo(limit);
+    }
+
+    @Test
+    public void shouldApplyBatchPerCardInOrder() throws Exception {
+        // given
+        createCard();
+        createCard();
+
+        var cardIds = List.copyOf(eventStore.cardIds());
+        var first = cardIds.get(0);
+        var second = cardIds.get(1);
+
+        var commands = List.of(
+            new BatchCommandRequest(first, CHANGE, limit, null),
+            new BatchCommandRequest(second, USE, useLimit, null),
+            new BatchCommandRequest(first, USE, useLimit, null),
+            new BatchCommandRequest(first, PAY, useLimit, null),
+            new BatchCommandRequest(first, USE, TEN, 3L));
+
+        // when
+        var batchResponse = perform(
+            post("/v1/cards/batch").
+                contentType(APPLICATION_JSON).
+                content(objectMapper.writeValueAsString(commands))
+        );
+
+        // then
+        batchResponse.andExpect(status().isOk())
+            .andExpect(jsonPath("$.length()").value(5))
+            .andExpect(jsonPath("$[0].accepted").value(true))
+            .andExpect(jsonPath("$[1].accepted").value(false))
+            .andExpect(jsonPath("$[1].rejection").value("LimitExceededException"))
+            .andExpect(jsonPath("$[2].accepted").value(true))
+            .andExpect(jsonPath("$[3].accepted").value(true))
+            .andExpect(jsonPath("$[4].accepted").value(false))
+            .andExpect(jsonPath("$[4].rejection").value("StaleCardVersionException"));
+
+        // and
+        assertThat(eventStore.get(first).availableLimit().toBigDecimal()).isEqualByComparingTo(limit);
+        assertThat(eventStore.get(first).getVersion()).isEqualTo(4);
+        assertThat(eventStore.get(second).getVersion()).isEqualTo(1);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"{\"type\":\"USE\",\"amount\":1}", "{\"cardId\":\"%s\",\"amount\":1}",
+        "{\"cardId\":\"%s\",\"type\":\"USE\"}", "null"})
+    public void shouldRejectBatchWithIncompleteCommand(String incomplete) throws Exception {
+        // given
+        createCard();
+        var cardId = eventStore.cardIds().iterator().next();
+        var complete = "{\"cardId\":\"" + cardId + "\",\"type\":\"CHANGE\",\"amount\":10}";
+
+        // when
+        var batchResponse = perform(
+            post("/v1/cards/batch").
+                contentType(APPLICATION_JSON).
+                content("[" + complete + "," + String.format(incomplete, cardId) + "]")
+        );
+
+        // then
+        batchResponse.andExpect(status().isBadRequest());
+        assertThat(eventStore.get(cardId).getVersion()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRejectBatchWithHoldCommands() throws Exception {
+        // given
+        createCard();
+        var cardId = eventStore.cardIds().iterator().next();
+        var commands = "[{\"cardId\":\"" + cardId + "\",\"type\":\"HOLD\",\"amount\":10}]";
+
+        // when
+        var batchResponse = perform(
+            post("/v1/cards/batch").
+                contentType(APPLICATION_JSON).
+                content(commands)
+        );
+
+        // then
+        batchResponse.andExpect(status().isBadRequest());
+        assertThat(eventStore.get(cardId).getVersion()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldStreamResultOfEveryImportedLine() throws Exception {
+        // given
+        createCard();
+        var existing = readCardId();
+        var imported = UUID.randomUUID();
+        var body = String.join("\n",
+            objectMapper.writeValueAsString(new ImportCardRequest(imported, limit)),
+            "",
+            "{not json",
+            objectMapper.writeValueAsString(new ImportCardRequest(existing, limit)),
+            objectMapper.writeValueAsString(new ImportCardRequest(UUID.randomUUID(), null)));
+
+        // when
+        var response = perform(
+            post("/v1/cards/import").
+                contentType(APPLICATION_NDJSON).
+                content(body)
+        );
+
+        // then
+        response.andExpect(status().isOk());
+        var lines = response.andReturn().getResponse().getContentAsString().lines()
+            .map(this::readTree)
+            .collect(Collectors.toList());
+        assertThat(lines).extracting(line -> line.get("line").asLong()).containsExactly(1L, 3L, 4L, 5L);
+        assertThat(lines).extracting(line -> line.get("created").asBoolean())
+            .containsExactly(true, false, false, false);
+        assertThat(lines.get(0).get("cardId").asText()).isEqualTo(imported.toString());
+        assertThat(lines.get(1).get("rejection").asText()).isEqualTo("InvalidLine");
+        assertThat(lines.get(2).get("rejection").asText()).isEqualTo("CardAlreadyExistsException");
+        assertThat(lines.get(3).get("rejection").asText()).isEqualTo("InvalidLine");
+
+        // and
+        assertThat(eventStore.get(imported).availableLimit().toBigDecimal()).isEqualByComparingTo(limit);
+        assertThat(eventStore.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldStreamCommittedEventsAndResumeAfterLastEventId() throws Exception {
+        // given
+        createCard();
+        var cardId = readCardId();
+        changeLimit(limit, cardId);
+        createCard();
+
+        // when
+        var events = readEvents("/v1/cards/events?cursor=start&cardId=" + cardId, null, 2);
+        var resumed = readEvents("/v1/cards/events?cursor=start&cardId=" + cardId, events.get(0).get("id"), 1);
+
+        // then
+        assertThat(events).extracting(event -> event.get("event"))
+            .containsExactly("LimitChangedEvent", "LimitChangedEvent");
+        assertThat(events.get(0).get("data")).contains("\"cardId\":\"" + cardId + "\"", "\"amount\":\"0\"");
+        assertThat(events.get(1).get("data")).contains("\"sequence\":2", "\"amount\":\"10\"");
+        assertThat(resumed).extracting(event -> event.get("id")).containsExactly(events.get(1).get("id"));
+    }
+
+    @Test
+    public void shouldRejectCursorThatPointsNowhere() throws Exception {
+        // when
+        var response = perform(get("/v1/cards/events").param("cursor", "7"));
+
+        // then
+        response.andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void shouldReadCardAsCommitted() throws Exception {
+        // given
+        createCard();
+        var cardId = readCardId();
+        changeLimit(limit, cardId);
+        useLimit(new BigDecimal("2.50"), cardId);
+        var reads = registry.get("card.commands").tag("command", "read").timer().count();
+
+        // when
+        var response = perform(get("/v1/cards/{cardId}", cardId));
+
+        // then
+        var expected = objectMapper.writeValueAsString(CardResponse.from(eventStore.get(cardId)));
+        response.andExpect(status().isOk())
+            .andExpect(content().contentTypeCompatibleWith(APPLICATION_JSON))
+            .andExpect(content().json(expected, true))
+            .andExpect(jsonPath("$.availableLimit").value("7.5"))
+            .andExpect(jsonPath("$.version").value(3));
+        assertThat(registry.get("card.commands").tag("command", "read").timer().count()).isEqualTo(reads + 1);
+    }
+
+    @Test
+    public void shouldReadCardAsOfPastInstant() throws Exception {
+        // given
+        createCard();
+        var cardId = readCardId();
+        changeLimit(limit, cardId);
+        var asOf = Instant.now();
+        Thread.sleep(5);
+        useLimit(new BigDecimal("2.50"), cardId);
+
+        // when
+        var response = perform(get("/v1/cards/{cardId}", cardId).param("asOf", asOf.toString()));
+
+        // then
+        response.andExpect(status().isOk())
+            .andExpect(jsonPath("$.availableLimit").value("10"))
+            .andExpect(jsonPath("$.version").value(2));
+    }
+
+    @Test
+    public void shouldNotFindCardBeforeItWasCreated() throws Exception {
+        // given
+        var asOf = Instant.now().minusSeconds(60);
+        createCard();
+        var cardId = readCardId();
+
+        // when
+        var response = perform(get("/v1/cards/{cardId}", cardId).param("asOf", asOf.toString()));
+
+        // then
+        response.andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void shouldNotFindUnknownCard() throws Exception {
+        // when
+        var response = perform(get("/v1/cards/{cardId}", UUID.randomUUID()));
+
+        // then
+        response.andExpect(status().isNotFound());
     }
 
     private void createCard() throws Exception {
-        mockMvc.perform(post("/v1/cards"));
+        perform(post("/v1/cards"));
     }
 
     private UUID readCardId() {
-        return eventStore.keySet().stream().findAny().orElseThrow();
+        return eventStore.cardIds().stream().findAny().orElseThrow();
     }
 
     private void changeLimit(BigDecimal limit, UUID cardId) throws Exception {
-        mockMvc.perform(
+        perform(
             post("/v1/cards/" + cardId + "/limits/change").
                 contentType(APPLICATION_JSON).
                 content(objectMapper.writeValueAsString(new ChangeLimitRequest(limit)))
@@ -142,10 +520,59 @@ public class CardControllerTest {
     }
 
     private void useLimit(BigDecimal limit, UUID cardId) throws Exception {
-        mockMvc.perform(
+        perform(
             post("/v1/cards/" + cardId + "/limits/use").
                 contentType(APPLICATION_JSON).
                 content(objectMapper.writeValueAsString(new UseLimitRequest(limit)))
         );
     }
+
+    /**
+     * Reads the first events of the stream, each as its fields, and hangs up.
+     */
+    private List<Map<String, String>> readEvents(String path, String lastEventId, int count) throws Exception {
+        var request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path));
+        if (lastEventId != null) {
+            request.header(CardController.LAST_EVENT_ID, lastEventId);
+        }
+        var response = HttpClient.newHttpClient().send(request.build(), HttpResponse.BodyHandlers.ofLines());
+        assertThat(response.headers().firstValue("Content-Type")).hasValueSatisfying(type ->
+            assertThat(type).startsWith("text/event-stream"));
+
+        return CompletableFuture.supplyAsync(() -> {
+            try (var lines = response.body()) {
+                var events = new ArrayList<Map<String, String>>();
+                var event = new HashMap<String, String>();
+                for (var iterator = lines.iterator(); events.size() < count; ) {
+                    var line = iterator.next();
+                    if (line.isEmpty()) {
+                        if (event.containsKey("event")) {
+                            events.add(event);
+                        }
+                        event = new HashMap<>();
+                    } else if (!line.startsWith(":")) {
+                        event.put(line.substring(0, line.indexOf(':')), line.substring(line.indexOf(':') + 2));
+                    }
+                }
+                return events;
+            }
+        }).get(10, TimeUnit.SECONDS);
+    }
+
+    private JsonNode readTree(String json) {
+        try {
+            return objectMapper.readTree(json);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Performs the request and, if the controller answered asynchronously, the dispatch that writes the response.
+     */
+    private ResultActions perform(RequestBuilder request) throws Exception {
+        var actions = mockMvc.perform(request);
+        var result = actions.andReturn();
+        return result.getRequest().isAsyncStarted() ? mockMvc.perform(asyncDispatch(result)) : actions;
+    }
 }
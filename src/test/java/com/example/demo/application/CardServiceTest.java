@@ -0,0 +1,384 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.Money;
+import com.example.demo.domain.exceptions.CardAlreadyExistsException;
+import com.example.demo.domain.exceptions.HoldNotFoundException;
+import com.example.demo.domain.exceptions.LimitExceededException;
+import com.example.demo.domain.exceptions.NegativeLimitException;
+import com.example.demo.domain.exceptions.StaleCardVersionException;
+import com.example.demo.domain.exceptions.VelocityLimitExceededException;
+import com.example.demo.events.Events;
+import com.example.demo.persistence.EventStore;
+import com.example.demo.persistence.EventStoreProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.example.demo.application.ConcurrencyMode.MAILBOX;
+import static com.example.demo.application.ConcurrencyMode.OPTIMISTIC;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.Mockito.mock;
+
+public class CardServiceTest {
+
+    private static final Money LIMIT = Money.of("50");
+    private static final Money ONE = Money.of("1");
+    private static final Money TEN = Money.of("10");
+
+    @TempDir
+    Path directory;
+
+    private EventStore eventStore;
+    private CardCommandExecutor executor;
+    private SimpleMeterRegistry registry;
+    private final List<CardService> cardServices = new ArrayList<>();
+
+    @BeforeEach
+    void beforeEach() {
+        var properties = new EventStoreProperties();
+        properties.getEventLog().setDirectory(directory);
+        properties.getEventLog().setShards(4);
+        properties.getEventLog().setSegmentSize(1024 * 1024);
+        properties.getStore().setCacheSize(1000);
+        properties.getIdempotency().setMaxKeys(1000);
+        properties.getIdempotency().setTtlSeconds(3600);
+        properties.getSnapshot().setIntervalEvents(Long.MAX_VALUE);
+        eventStore = new EventStore(mock(Events.class), properties);
+        executor = new CardCommandExecutor(4, 10_000);
+        registry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        cardServices.forEach(CardService::shutdown);
+        executor.shutdown();
+        eventStore.close();
+    }
+
+    @Test
+    void shouldNotOverspendUnderConcurrentUseOnMailboxes() throws Exception {
+        // given
+        var cardService = cardService(MAILBOX);
+        var cardId = cardWithLimit(cardService);
+
+        // when
+        long accepted = useConcurrently(cardService, cardId, 200);
+
+        // then
+        assertThat(accepted).isEqualTo(50);
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(Money.ZERO);
+        assertThat(catchThrowable(() -> cardService.useLimit(cardId, ONE)))
+            .isExactlyInstanceOf(LimitExceededException.class);
+    }
+
+    @ParameterizedTest
+    @EnumSource(ConcurrencyMode.class)
+    void shouldKeepEveryAcceptedUseUnderConcurrency(ConcurrencyMode mode) throws Exception {
+        // given
+        var cardService = cardService(mode);
+        var cardId = cardWithLimit(cardService);
+
+        // when
+        long accepted = useConcurrently(cardService, cardId, 40);
+
+        // then
+        assertThat(accepted).isPositive();
+        assertThat(cardService.readCard(cardId).availableLimit())
+            .isEqualTo(LIMIT.minus(Money.ofMinorUnits(accepted * 100)));
+        assertThat(cardService.readCard(cardId).getVersion()).isEqualTo(2 + accepted);
+    }
+
+    @Test
+    void shouldDeclineCommandForUnexpectedVersion() {
+        // given
+        var cardService = cardService(OPTIMISTIC);
+        var cardId = cardWithLimit(cardService);
+        long version = cardService.readCard(cardId).getVersion();
+
+        cardService.useLimit(cardId, ONE, version);
+
+        // when
+        var thrown = catchThrowable(() -> cardService.useLimit(cardId, TEN, version));
+
+        // then
+        assertThat(thrown).isExactlyInstanceOf(StaleCardVersionException.class);
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(Money.of("49"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(ConcurrencyMode.class)
+    void shouldApplyConcurrentDuplicatesOnlyOnce(ConcurrencyMode mode) throws Exception {
+        // given
+        var cardService = cardService(mode);
+        var cardId = cardWithLimit(cardService);
+        var threads = Executors.newFixedThreadPool(8);
+        var start = new CountDownLatch(1);
+        var results = new ArrayList<Future<?>>();
+
+        // when
+        for (int i = 0; i < 20; i++) {
+            results.add(threads.submit(() -> {
+                start.await();
+                return cardService.useLimitAsync(cardId, ONE, null, "retried-use").join();
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        threads.shutdown();
+
+        // then
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(Money.of("49"));
+        assertThat(cardService.readCard(cardId).getVersion()).isEqualTo(3);
+        assertThat(registry.get("card.commands.duplicates").tag("command", "use").counter().count()).isEqualTo(19);
+    }
+
+    @Test
+    void shouldAnswerDuplicateWithOutcomeOfFirstCommand() {
+        // given
+        var cardService = cardService(MAILBOX);
+        var cardId = cardWithLimit(cardService);
+        var tooMuch = LIMIT.plus(ONE);
+        var first = catchThrowable(() -> cardService.useLimitAsync(cardId, tooMuch, null, "first").join());
+        cardService.changeLimit(cardId, LIMIT.plus(LIMIT));
+
+        // when
+        var retried = catchThrowable(() -> cardService.useLimitAsync(cardId, tooMuch, null, "first").join());
+
+        // then
+        assertThat(first).hasCauseExactlyInstanceOf(LimitExceededException.class);
+        assertThat(retried).hasCauseExactlyInstanceOf(LimitExceededException.class);
+        assertThat(cardService.readCard(cardId).getVersion()).isEqualTo(3);
+
+        cardService.useLimitAsync(cardId, tooMuch, null, "second").join();
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(LIMIT.minus(ONE));
+    }
+
+    @Test
+    void shouldRunRetryOfCommandThatLostToAConcurrentWriterAgain() {
+        // given
+        var cardService = cardService(MAILBOX);
+        var cardId = cardWithLimit(cardService);
+        var first = catchThrowable(() -> cardService.useLimitAsync(cardId, ONE, 1L, "first").join());
+
+        // when
+        cardService.useLimitAsync(cardId, ONE, 2L, "first").join();
+
+        // then
+        assertThat(first).hasCauseExactlyInstanceOf(StaleCardVersionException.class);
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(LIMIT.minus(ONE));
+    }
+
+    @Test
+    void shouldAnswerRepeatedHoldWithTheHoldOfTheFirstOne() {
+        // given
+        var cardService = cardService(MAILBOX);
+        var cardId = cardWithLimit(cardService);
+        var first = cardService.holdLimitAsync(cardId, TEN, null, "hold").join();
+
+        // when
+        var retried = cardService.holdLimitAsync(cardId, TEN, null, "hold").join();
+        cardService.captureHold(cardId, first.getHoldId());
+        var retriedAfterCapture = catchThrowable(() -> cardService.holdLimitAsync(cardId, TEN, null, "hold").join());
+
+        // then
+        assertThat(retried).isEqualTo(first);
+        assertThat(retriedAfterCapture).hasCauseExactlyInstanceOf(HoldNotFoundException.class);
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(LIMIT.minus(TEN));
+        assertThat(registry.get("card.commands.duplicates").tag("command", "hold").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldExpireHoldThatWasNeitherCapturedNorReleased() throws Exception {
+        // given
+        var cardService = cardService(MAILBOX);
+        var cardId = cardWithLimit(cardService);
+        var captured = cardService.holdLimit(cardId, TEN);
+        cardService.captureHold(cardId, captured.getHoldId());
+
+        // when
+        var expiring = cardService.holdLimitAsync(cardId, TEN, 0L).join();
+        for (int i = 0; i < 500 && eventStore.openHold(cardId, expiring.getHoldId()) != null; i++) {
+            Thread.sleep(10);
+        }
+
+        // then
+        assertThat(eventStore.openHold(cardId, expiring.getHoldId())).isNull();
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(LIMIT.minus(TEN));
+        assertThat(cardService.readCard(cardId).getVersion()).isEqualTo(6);
+        var thrown = catchThrowable(() -> cardService.releaseHold(cardId, expiring.getHoldId()));
+        assertThat(thrown).isExactlyInstanceOf(HoldNotFoundException.class);
+    }
+
+    @ParameterizedTest
+    @EnumSource(ConcurrencyMode.class)
+    void shouldDeclineUseOverVelocityLimitWithoutCountingDeclinedUses(ConcurrencyMode mode) {
+        // given
+        var cardService = cardService(mode, new VelocityLimits(60, 3, new BigDecimal("60")));
+        var cardId = cardWithLimit(cardService);
+        var overLimit = Money.of("45");
+        cardService.useLimit(cardId, TEN);
+        var declined = catchThrowable(() -> cardService.useLimit(cardId, overLimit));
+
+        // when
+        cardService.useLimit(cardId, TEN);
+        var tooMuch = catchThrowable(() -> cardService.useLimit(cardId, overLimit));
+        cardService.useLimit(cardId, ONE);
+        var tooOften = catchThrowable(() -> cardService.useLimit(cardId, ONE));
+
+        // then
+        assertThat(declined).isExactlyInstanceOf(LimitExceededException.class);
+        assertThat(tooMuch).isExactlyInstanceOf(VelocityLimitExceededException.class);
+        assertThat(tooOften).isExactlyInstanceOf(VelocityLimitExceededException.class);
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(Money.of("29"));
+        assertThat(registry.get("card.commands.rejected")
+            .tags("command", "use", "exception", "VelocityLimitExceededException").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldCountHoldsAndBatchedUsesAgainstVelocityLimit() {
+        // given
+        var cardService = cardService(MAILBOX, new VelocityLimits(60, 4, BigDecimal.ZERO));
+        var cardId = cardWithLimit(cardService);
+        cardService.holdLimit(cardId, ONE);
+
+        // when
+        var results = cardService.executeBatch(List.of(
+            new CardCommand(cardId, CardCommand.Type.USE, ONE, null),
+            new CardCommand(cardId, CardCommand.Type.USE, LIMIT, null),
+            new CardCommand(cardId, CardCommand.Type.USE, ONE, null),
+            new CardCommand(cardId, CardCommand.Type.USE, ONE, null)));
+        // the declined use gives its place back
+        cardService.holdLimit(cardId, ONE);
+        var hold = catchThrowable(() -> cardService.holdLimit(cardId, ONE));
+
+        // then
+        assertThat(results).extracting(CommandResult::isAccepted).containsExactly(true, false, true, false);
+        assertThat(results.get(1).getFailure()).isExactlyInstanceOf(LimitExceededException.class);
+        assertThat(results.get(3).getFailure()).isExactlyInstanceOf(VelocityLimitExceededException.class);
+        assertThat(hold).isExactlyInstanceOf(VelocityLimitExceededException.class);
+        assertThat(cardService.readCard(cardId).availableLimit()).isEqualTo(Money.of("46"));
+    }
+
+    @Test
+    void shouldGiveVelocityBackWhenTheMailboxTurnsTheUseAway() throws Exception {
+        // given
+        var velocityLimits = new VelocityLimits(60, 1, BigDecimal.ZERO);
+        var cardService = cardService(MAILBOX, velocityLimits);
+        var cardId = cardWithLimit(cardService);
+        executor.shutdown();
+
+        // when
+        var rejected = catchThrowable(() -> cardService.useLimit(cardId, ONE));
+        executor = new CardCommandExecutor(4, 10_000);
+        var retried = cardService(MAILBOX, velocityLimits);
+        retried.useLimit(cardId, ONE);
+
+        // then
+        assertThat(rejected).isInstanceOf(RejectedExecutionException.class);
+        assertThat(retried.readCard(cardId).availableLimit()).isEqualTo(Money.of("49"));
+    }
+
+    @Test
+    void shouldImportCardsAndDeclineTakenIds() {
+        // given
+        var cardService = cardService(MAILBOX);
+        var existing = cardWithLimit(cardService);
+        var imported = UUID.randomUUID();
+        var cards = List.of(
+            new ImportedCard(imported, TEN),
+            new ImportedCard(existing, ONE),
+            new ImportedCard(imported, ONE),
+            new ImportedCard(UUID.randomUUID(), ONE.negate()));
+
+        // when
+        var results = cardService.importCardsAsync(cards).join();
+
+        // then
+        assertThat(results).extracting(CommandResult::getCardId)
+            .containsExactly(imported, existing, imported, cards.get(3).getCardId());
+        assertThat(results.get(0).isAccepted()).isTrue();
+        assertThat(results.get(1).getFailure()).isExactlyInstanceOf(CardAlreadyExistsException.class);
+        assertThat(results.get(2).getFailure()).isExactlyInstanceOf(CardAlreadyExistsException.class);
+        assertThat(results.get(3).getFailure()).isExactlyInstanceOf(NegativeLimitException.class);
+        assertThat(cardService.readCard(imported).availableLimit()).isEqualTo(TEN);
+        assertThat(cardService.readCard(existing).availableLimit()).isEqualTo(LIMIT);
+        assertThat(eventStore.size()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldRecordLatencyAndOutcomeOfCommands() {
+        // given
+        var cardService = cardService(MAILBOX);
+        var cardId = cardWithLimit(cardService);
+
+        // when
+        cardService.useLimit(cardId, TEN);
+        catchThrowable(() -> cardService.useLimit(cardId, LIMIT));
+
+        // then
+        assertThat(registry.get("card.commands").tag("command", "use").timer().count()).isEqualTo(2);
+        assertThat(registry.get("card.commands.accepted").tag("command", "use").counter().count()).isEqualTo(1);
+        assertThat(registry.get("card.commands.rejected")
+            .tags("command", "use", "exception", "LimitExceededException").counter().count()).isEqualTo(1);
+        assertThat(registry.get("card.store.cards").gauge().value()).isEqualTo(1);
+        assertThat(registry.get("card.store.events").gauge().value()).isEqualTo(3);
+    }
+
+    private CardService cardService(ConcurrencyMode mode) {
+        return cardService(mode, new VelocityLimits(60, 0, BigDecimal.ZERO));
+    }
+
+    private CardService cardService(ConcurrencyMode mode, VelocityLimits velocityLimits) {
+        var cardService = new CardService(eventStore, executor, new CardMetrics(registry, eventStore), velocityLimits,
+            mode, 5, 3600, Optional.of(new HoldExpiry(10)));
+        cardServices.add(cardService);
+        return cardService;
+    }
+
+    private static UUID cardWithLimit(CardService cardService) {
+        var cardId = cardService.createCard().getId();
+        cardService.changeLimit(cardId, LIMIT);
+        return cardId;
+    }
+
+    private static long useConcurrently(CardService cardService, UUID cardId, int attempts) throws Exception {
+        var threads = Executors.newFixedThreadPool(8);
+        var start = new CountDownLatch(1);
+        var results = new ArrayList<Future<Boolean>>();
+
+        for (int i = 0; i < attempts; i++) {
+            results.add(threads.submit((Callable<Boolean>) () -> {
+                start.await();
+                return catchThrowable(() -> cardService.useLimit(cardId, ONE)) == null;
+            }));
+        }
+        start.countDown();
+
+        long accepted = 0;
+        for (Future<Boolean> result : results) {
+            accepted += result.get() ? 1 : 0;
+        }
+        threads.shutdown();
+
+        return accepted;
+    }
+}
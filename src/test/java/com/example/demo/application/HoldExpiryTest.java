@@ -0,0 +1,39 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.Hold;
+import com.example.demo.domain.Money;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HoldExpiryTest {
+
+    @Test
+    void shouldRetryAHoldNextTickWhenExpiringItThrows() throws Exception {
+        // given
+        var attempts = new AtomicInteger();
+        var expired = new CompletableFuture<Hold>();
+        var holdExpiry = new HoldExpiry(10);
+        var hold = new Hold(UUID.randomUUID(), 1, Money.of("10"), System.currentTimeMillis());
+
+        // when
+        holdExpiry.start(due -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new RejectedExecutionException("mailbox full");
+            }
+            expired.complete(due);
+        });
+        holdExpiry.schedule(hold);
+
+        // then
+        assertThat(expired.get(5, TimeUnit.SECONDS)).isEqualTo(hold);
+        assertThat(attempts).hasValue(2);
+        holdExpiry.shutdown();
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.demo.application;
+
+import com.example.demo.DemoApplication;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs a leader and a follower side by side on localhost, each with a web server and an event log of its own.
+ */
+public class ReplicationFollowerTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+    private static final String TOKEN = "replication-secret";
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    public void afterEach() {
+        // followers first, so they do not retry against a leader that is gone
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            nodes.get(i).close();
+        }
+    }
+
+    @Test
+    void shouldServeCardsOfTheLeaderAndCatchUpAfterARestart() throws Exception {
+        // given
+        var leader = start("leader", null);
+        var follower = start("follower", url(leader));
+        var cardId = createCard(leader);
+        post(leader, "/v1/cards/" + cardId + "/limits/change", "{\"limitChange\":10}");
+        post(leader, "/v1/cards/" + cardId + "/limits/use", "{\"useLimit\":3}");
+
+        // when
+        var replicated = awaitCard(follower, cardId, "7");
+        follower.close();
+        post(leader, "/v1/cards/" + cardId + "/limits/use", "{\"useLimit\":2}");
+        var restarted = start("follower", url(leader));
+
+        // then
+        assertThat(replicated.get("version").asLong()).isEqualTo(3);
+        var onLeader = objectMapper.readTree(get(leader, "/v1/cards/" + cardId).body());
+        assertThat(awaitCard(restarted, cardId, "5")).isEqualTo(onLeader);
+        assertThat(post(restarted, "/v1/cards/" + cardId + "/limits/use", "{\"useLimit\":1}").statusCode())
+            .isEqualTo(503);
+        var followers = objectMapper.readTree(get(leader, "/v1/replication/followers", TOKEN).body());
+        assertThat(followers.get("follower").get("lagBytes").asLong()).isZero();
+    }
+
+    @Test
+    void shouldServeOnlyConfiguredFollowersThatSendTheToken() throws Exception {
+        // given
+        var leader = start("leader", null);
+
+        // when
+        var withoutToken = get(leader, "/v1/replication/events?follower=follower&cursor=start");
+        var wrongToken = get(leader, "/v1/replication/events?follower=follower&cursor=start", "guess");
+        var unknown = get(leader, "/v1/replication/events?follower=stranger&cursor=start", TOKEN);
+        var known = get(leader, "/v1/replication/events?follower=follower&cursor=start", TOKEN);
+
+        // then
+        assertThat(withoutToken.statusCode()).isEqualTo(401);
+        assertThat(wrongToken.statusCode()).isEqualTo(401);
+        assertThat(unknown.statusCode()).isEqualTo(403);
+        assertThat(known.statusCode()).isEqualTo(200);
+        var followers = objectMapper.readTree(get(leader, "/v1/replication/followers", TOKEN).body());
+        assertThat(followers.has("stranger")).isFalse();
+    }
+
+    private ConfigurableApplicationContext start(String name, String leaderUrl) {
+        // arguments rather than properties, which would not override those of the test resources
+        var arguments = new ArrayList<>(List.of(
+            "--server.port=0",
+            "--card.event-log.directory=" + directory.resolve(name),
+            "--card.replication.wait-millis=100",
+            "--card.replication.retry-millis=100",
+            "--card.replication.token=" + TOKEN));
+        if (leaderUrl != null) {
+            arguments.add("--card.replication.leader-url=" + leaderUrl);
+        } else {
+            arguments.add("--card.replication.followers=follower");
+        }
+        var node = new SpringApplicationBuilder(DemoApplication.class).run(arguments.toArray(new String[0]));
+        nodes.add(node);
+        return node;
+    }
+
+    private UUID createCard(ConfigurableApplicationContext node) throws Exception {
+        var response = post(node, "/v1/cards", "");
+        return UUID.fromString(objectMapper.readTree(response.body()).get("cardId").asText());
+    }
+
+    /**
+     * Reads the card from the node until it shows the available limit, which replication makes it do eventually.
+     */
+    private JsonNode awaitCard(ConfigurableApplicationContext node, UUID cardId, String availableLimit)
+        throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            var response = get(node, "/v1/cards/" + cardId);
+            if (response.statusCode() == 200) {
+                var card = objectMapper.readTree(response.body());
+                var available = new BigDecimal(card.get("availableLimit").asText());
+                if (available.compareTo(new BigDecimal(availableLimit)) == 0 || System.currentTimeMillis() > deadline) {
+                    return card;
+                }
+            } else if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Card " + cardId + " never reached the follower");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private HttpResponse<String> get(ConfigurableApplicationContext node, String path) throws Exception {
+        var request = HttpRequest.newBuilder(URI.create(url(node) + path)).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> get(ConfigurableApplicationContext node, String path, String token)
+        throws Exception {
+        var request = HttpRequest.newBuilder(URI.create(url(node) + path))
+            .header(ReplicationTokenFilter.REPLICATION_TOKEN, token)
+            .GET()
+            .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> post(ConfigurableApplicationContext node, String path, String body)
+        throws Exception {
+        var request = HttpRequest.newBuilder(URI.create(url(node) + path))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static String url(ConfigurableApplicationContext node) {
+        return "http://localhost:" + node.getEnvironment().getProperty("local.server.port");
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.demo.application;
+
+import com.example.demo.domain.Money;
+import com.example.demo.domain.exceptions.VelocityLimitExceededException;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class VelocityLimitsTest {
+
+    private static final Money ONE = Money.of("1");
+    // at the start of a bucket, which are a tenth of the window long
+    private static final long START = 1_200_000;
+
+    private final UUID cardId = UUID.randomUUID();
+
+    @Test
+    void shouldLetUsesLeaveTheWindowBucketByBucket() {
+        // given
+        var limits = new VelocityLimits(60, 2, BigDecimal.ZERO);
+        limits.acquire(cardId, ONE, START);
+        limits.acquire(cardId, ONE, START + 30_000);
+
+        // when
+        var withinWindow = catchThrowable(() -> limits.acquire(cardId, ONE, START + 59_999));
+        limits.acquire(cardId, ONE, START + 60_000);
+
+        // then
+        assertThat(withinWindow).isExactlyInstanceOf(VelocityLimitExceededException.class);
+        var stillFull = catchThrowable(() -> limits.acquire(cardId, ONE, START + 89_999));
+        assertThat(stillFull).isExactlyInstanceOf(VelocityLimitExceededException.class);
+        limits.acquire(cardId, ONE, START + 90_000);
+    }
+
+    @Test
+    void shouldGiveBackReleasedUseAndDropIdleCards() {
+        // given
+        var limits = new VelocityLimits(60, 1, BigDecimal.ZERO);
+        long acquiredIn = limits.acquire(cardId, ONE, START);
+
+        // when
+        limits.release(cardId, ONE, acquiredIn);
+        limits.acquire(cardId, ONE, START + 1);
+
+        // then
+        limits.acquire(UUID.randomUUID(), ONE, START + 120_000);
+        assertThat(limits.trackedCards()).isEqualTo(1);
+    }
+}
@@ -1,6 +1,8 @@
 package com.example.demo.domain;
 
+import com.example.demo.domain.events.HoldReleasedEvent;
 import com.example.demo.domain.events.LimitChangedEvent;
+import com.example.demo.domain.events.LimitHeldEvent;
 import com.example.demo.domain.events.LimitPartPaidEvent;
 import com.example.demo.domain.events.LimitPartUsedEvent;
 import com.example.demo.domain.exceptions.LimitExceededException;
@@ -9,19 +11,17 @@ import com.example.demo.domain.exceptions.NegativeLimitPartException;
 import com.example.demo.domain.exceptions.TooHighLimitPaymentException;
 import org.junit.jupiter.api.Test;
 
-import java.math.BigDecimal;
 import java.util.UUID;
 
-import static com.example.demo.utils.MathContext.add;
-import static com.example.demo.utils.MathContext.subtract;
-import static java.math.BigDecimal.ONE;
-import static java.math.BigDecimal.TEN;
-import static java.math.BigDecimal.ZERO;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.catchThrowable;
 
 public class CardTest {
 
+    private static final Money ZERO = Money.ZERO;
+    private static final Money ONE = Money.of("1");
+    private static final Money TEN = Money.of("10");
+
     private final UUID cardId = UUID.randomUUID();
 
     @Test
@@ -30,7 +30,7 @@ public class CardTest {
         var limit = TEN;
         var card = new Card(cardId);
 
-        assertThat(card.availableLimit()).isZero();
+        assertThat(card.availableLimit()).isEqualTo(ZERO);
 
         // when
         card.changeLimit(limit);
@@ -102,7 +102,7 @@ public class CardTest {
         card.useLimit(limitPart);
 
         // then
-        assertThat(card.availableLimit()).isEqualTo(subtract(newLimit, limitPart));
+        assertThat(card.availableLimit()).isEqualTo(newLimit.minus(limitPart));
     }
 
     @Test
@@ -118,7 +118,7 @@ public class CardTest {
         card.useLimit(limitPart);
 
         // then
-        assertThat(card.availableLimit()).isEqualTo(subtract(limit, limitPart));
+        assertThat(card.availableLimit()).isEqualTo(limit.minus(limitPart));
     }
 
     @Test
@@ -153,12 +153,10 @@ public class CardTest {
         assertThat(thrown).isExactlyInstanceOf(LimitExceededException.class);
     }
 
-    private static final BigDecimal TWO = new BigDecimal("2");
-
     @Test
     void shouldHandleMultipleLimitParts() {
         var limitPart = ONE;
-        var limit = add(limitPart, limitPart);
+        var limit = limitPart.plus(limitPart);
 
         var card = new Card(cardId);
         card.handle(new LimitChangedEvent(cardId, limit));
@@ -205,7 +203,7 @@ public class CardTest {
         card.handle(new LimitPartUsedEvent(cardId, limitPart));
 
         // then
-        assertThat(card.availableLimit()).isEqualTo(subtract(limit, limitPart));
+        assertThat(card.availableLimit()).isEqualTo(limit.minus(limitPart));
     }
 
     @Test
@@ -224,6 +222,20 @@ public class CardTest {
         assertThat(card.availableLimit()).isEqualTo(limit);
     }
 
+    @Test
+    void shouldKeepExactMinorUnits() {
+        // given
+        var card = new Card(cardId);
+        card.changeLimit(Money.of("1000"));
+
+        // when
+        card.useLimit(Money.of("123.45"));
+        card.useLimit(ONE);
+
+        // then
+        assertThat(card.availableLimit()).isEqualTo(Money.of("875.55"));
+    }
+
     @Test
     void shouldDeclinePaymentExceedingUsedLimit() {
         // given
@@ -271,4 +283,56 @@ public class CardTest {
         // then
         assertThat(card.availableLimit()).isEqualTo(limit);
     }
+
+    @Test
+    void shouldHoldLimitUntilCaptured() {
+        // given
+        var card = new Card(cardId);
+        card.handle(new LimitChangedEvent(cardId, TEN));
+
+        // when
+        long holdId = card.holdLimit(ONE, 1000);
+
+        // then
+        assertThat(holdId).isEqualTo(2);
+        assertThat(card.getStateChanges()).containsExactly(new LimitHeldEvent(cardId, holdId, ONE, 1000));
+        assertThat(card.availableLimit()).isEqualTo(Money.of("9"));
+
+        card.captureHold(new Hold(cardId, holdId, ONE, 1000));
+        assertThat(card.availableLimit()).isEqualTo(Money.of("9"));
+        assertThat(card.snapshot().getUsedLimit()).isEqualTo(ONE.getMinorUnits());
+        assertThat(card.snapshot().getHeldLimit()).isZero();
+    }
+
+    @Test
+    void shouldGiveHeldLimitBackOnRelease() {
+        // given
+        var card = new Card(cardId);
+        card.handle(new LimitChangedEvent(cardId, TEN));
+        card.handle(new LimitHeldEvent(cardId, 2, ONE, 1000));
+
+        // when
+        card.handle(new HoldReleasedEvent(cardId, 2, ONE));
+
+        // then
+        assertThat(card.availableLimit()).isEqualTo(TEN);
+        assertThat(card.getVersion()).isEqualTo(3);
+    }
+
+    @Test
+    void shouldDeclineUseOfHeldLimit() {
+        // given
+        var card = new Card(cardId);
+        card.handle(new LimitChangedEvent(cardId, TEN));
+        card.handle(new LimitHeldEvent(cardId, 2, Money.of("9.50"), 1000));
+
+        // when
+        var thrown = catchThrowable(() -> card.useLimit(ONE));
+        var thrownOnHold = catchThrowable(() -> card.holdLimit(ONE, 1000));
+
+        // then
+        assertThat(thrown).isExactlyInstanceOf(LimitExceededException.class);
+        assertThat(thrownOnHold).isExactlyInstanceOf(LimitExceededException.class);
+        assertThat(card.availableLimit()).isEqualTo(Money.of("0.50"));
+    }
 }
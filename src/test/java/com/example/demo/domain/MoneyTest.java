@@ -0,0 +1,54 @@
+package com.example.demo.domain;
+
+import com.example.demo.domain.exceptions.InvalidAmountException;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class MoneyTest {
+
+    @Test
+    void shouldAddWithoutRounding() {
+        // when
+        var sum = Money.of("123.45").plus(Money.of("1"));
+
+        // then
+        assertThat(sum.getMinorUnits()).isEqualTo(12445);
+        assertThat(sum.toPlainString()).isEqualTo("124.45");
+    }
+
+    @Test
+    void shouldPrintWithoutTrailingZeros() {
+        assertThat(Money.ZERO.toPlainString()).isEqualTo("0");
+        assertThat(Money.of("10.00").toPlainString()).isEqualTo("10");
+        assertThat(Money.of("0.50").toPlainString()).isEqualTo("0.5");
+        assertThat(Money.of("-0.05").toPlainString()).isEqualTo("-0.05");
+        assertThat(Money.of("-12.30").toPlainString()).isEqualTo("-12.3");
+        assertThat(Money.ofMinorUnits(Long.MIN_VALUE).toPlainString())
+            .isEqualTo(Money.ofMinorUnits(Long.MIN_VALUE).toBigDecimal().toPlainString());
+    }
+
+    @Test
+    void shouldDeclineAmountWithTooManyFractionDigits() {
+        // when
+        var thrown = catchThrowable(() -> Money.of(new BigDecimal("0.001")));
+
+        // then
+        assertThat(thrown).isExactlyInstanceOf(InvalidAmountException.class);
+    }
+
+    @Test
+    void shouldDeclineOverflow() {
+        // given
+        var max = Money.ofMinorUnits(Long.MAX_VALUE);
+
+        // when
+        var thrown = catchThrowable(() -> max.plus(Money.of("0.01")));
+
+        // then
+        assertThat(thrown).isExactlyInstanceOf(InvalidAmountException.class);
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.demo.events;
+
+import com.example.demo.domain.Money;
+import com.example.demo.domain.events.LimitPartUsedEvent;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static com.example.demo.events.BackpressurePolicy.BLOCK;
+import static com.example.demo.events.BackpressurePolicy.DROP;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EventsPublisherTest {
+
+    private static final int EVENTS_PER_CARD = 5_000;
+
+    private final List<Event> delivered = new CopyOnWriteArrayList<>();
+
+    @Test
+    void shouldDeliverEveryEventInPerCardOrder() throws Exception {
+        // given
+        var publisher = publisher(BLOCK);
+        var cardIds = IntStream.range(0, 4).mapToObj(i -> UUID.randomUUID()).collect(Collectors.toList());
+
+        // when
+        publisher.start();
+        var producers = new ArrayList<Thread>();
+        for (UUID cardId : cardIds) {
+            var producer = new Thread(() -> {
+                for (int i = 1; i <= EVENTS_PER_CARD; i++) {
+                    publisher.emit(new LimitPartUsedEvent(cardId, Money.ofMinorUnits(i)));
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        publisher.stop();
+
+        // then
+        assertThat(delivered).hasSize(cardIds.size() * EVENTS_PER_CARD);
+
+        Map<UUID, List<Long>> amountsByCard = new ConcurrentHashMap<>();
+        delivered.forEach(event -> amountsByCard.computeIfAbsent(event.getCardId(), id -> new ArrayList<>())
+            .add(((LimitPartUsedEvent) event).getLimitPartValue().getMinorUnits()));
+        amountsByCard.values().forEach(amounts -> assertThat(amounts).isSorted());
+    }
+
+    @Test
+    void shouldWakeTheIdleDispatcherForEveryEventEmittedLater() throws Exception {
+        // given
+        var publisher = publisher(BLOCK);
+        var cardId = UUID.randomUUID();
+        publisher.start();
+
+        // when
+        for (int i = 1; i <= 3; i++) {
+            Thread.sleep(20);
+            publisher.emit(new LimitPartUsedEvent(cardId, Money.ofMinorUnits(i)));
+            for (int wait = 0; wait < 500 && delivered.size() < i; wait++) {
+                Thread.sleep(2);
+            }
+        }
+
+        // then
+        assertThat(delivered).hasSize(3);
+        publisher.stop();
+    }
+
+    @Test
+    void shouldDropEventsWhenRingIsFullAndPolicyAllowsIt() {
+        // given
+        var publisher = publisher(DROP);
+        var cardId = UUID.randomUUID();
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            publisher.emit(new LimitPartUsedEvent(cardId, Money.ofMinorUnits(i)));
+        }
+        publisher.start();
+        publisher.stop();
+
+        // then
+        assertThat(delivered).hasSize(8);
+        assertThat(publisher.getDroppedEvents()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldKeepDispatchingWhenPublishingAnEventFails() {
+        // given
+        var applicationEvents = mock(ApplicationEventPublisher.class);
+        doThrow(new IllegalStateException("listener failed")).when(applicationEvents).publishEvent(any(Object.class));
+        var publisher = publisher(BLOCK, applicationEvents, 60_000);
+        var cardId = UUID.randomUUID();
+
+        // when
+        publisher.start();
+        for (int i = 0; i < 7; i++) {
+            publisher.emit(new LimitPartUsedEvent(cardId, Money.ofMinorUnits(i)));
+        }
+        publisher.stop();
+
+        // then
+        assertThat(delivered).hasSize(7);
+    }
+
+    @Test
+    void shouldStopBlockingAndDropEventsOnceTheTimeoutPasses() {
+        // given
+        var publisher = publisher(BLOCK, mock(ApplicationEventPublisher.class), 10);
+        var cardId = UUID.randomUUID();
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            publisher.emit(new LimitPartUsedEvent(cardId, Money.ofMinorUnits(i)));
+        }
+
+        // then
+        assertThat(publisher.getDroppedEvents()).isEqualTo(2);
+        publisher.start();
+        publisher.stop();
+        assertThat(delivered).hasSize(8);
+    }
+
+    private EventsPublisher publisher(BackpressurePolicy backpressure) {
+        return publisher(backpressure, mock(ApplicationEventPublisher.class), 60_000);
+    }
+
+    @SuppressWarnings("unchecked")
+    private EventsPublisher publisher(BackpressurePolicy backpressure, ApplicationEventPublisher applicationEvents,
+                                      long blockTimeoutMillis) {
+        ObjectProvider<EventsListener> listeners = mock(ObjectProvider.class);
+        when(listeners.orderedStream()).thenAnswer(invocation -> Stream.of((EventsListener) delivered::addAll));
+
+        return new EventsPublisher(applicationEvents, listeners, 8, 3, backpressure, blockTimeoutMillis);
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.Money;
+import com.example.demo.domain.events.LimitChangedEvent;
+import com.example.demo.domain.events.LimitPartPaidEvent;
+import com.example.demo.domain.events.LimitPartUsedEvent;
+import com.example.demo.events.Event;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class EventLogTest {
+
+    private static final Money ONE = Money.of("1");
+    private static final Money TEN = Money.of("10");
+
+    private final UUID cardId = UUID.randomUUID();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void shouldReplayAppendedEventsAfterReopen() {
+        // given
+        var events = List.<Event>of(
+            new LimitChangedEvent(cardId, TEN),
+            new LimitPartUsedEvent(cardId, ONE),
+            new LimitPartPaidEvent(cardId, ONE));
+
+        try (var log = new EventLog(directory, 1024)) {
+            log.append(events, 1);
+        }
+
+        // when
+        var replayed = replay(new EventLog(directory, 1024));
+
+        // then
+        assertThat(replayed).containsExactlyElementsOf(events);
+    }
+
+    @Test
+    void shouldRollSegmentsInOrder() throws IOException {
+        // given
+        var events = new ArrayList<Event>();
+        for (int i = 0; i < 100; i++) {
+            events.add(new LimitChangedEvent(cardId, TEN.plus(Money.ofMinorUnits(i))));
+        }
+
+        // when
+        try (var log = new EventLog(directory, 256)) {
+            for (Event event : events) {
+                log.append(List.of(event), 1);
+            }
+        }
+
+        // then
+        try (var files = Files.list(directory)) {
+            assertThat(files.count()).isGreaterThan(1);
+        }
+        assertThat(replay(new EventLog(directory, 256))).containsExactlyElementsOf(events);
+    }
+
+    @Test
+    void shouldReadSingleRecordsAtTheirOffsetAcrossSegments() {
+        // given
+        var events = new ArrayList<Event>();
+        for (int i = 0; i < 100; i++) {
+            events.add(new LimitChangedEvent(cardId, TEN.plus(Money.ofMinorUnits(i))));
+        }
+        var offsets = new ArrayList<Long>();
+        try (var log = new EventLog(directory, 256)) {
+            for (Event event : events) {
+                offsets.add(log.append(List.of(event), 1) - EventLog.RECORD_SIZE);
+            }
+        }
+
+        // when
+        var read = new ArrayList<Event>();
+        try (var log = new EventLog(directory, 256)) {
+            for (int i = offsets.size() - 1; i >= 0; i--) {
+                log.read(offsets.get(i), (event, sequence, timestamp, idempotencyKey) -> read.add(0, event));
+            }
+        }
+
+        // then
+        assertThat(read).containsExactlyElementsOf(events);
+    }
+
+    @Test
+    void shouldReadSpansWhileAppendingAndAfterAnInterruptedRead() throws Exception {
+        // given
+        var events = new ArrayList<Event>();
+        for (int i = 0; i < 100; i++) {
+            events.add(new LimitChangedEvent(cardId, TEN.plus(Money.ofMinorUnits(i))));
+        }
+        try (var log = new EventLog(directory, 256)) {
+            long end = 0;
+            var read = new ArrayList<Event>();
+
+            // when
+            for (Event event : events) {
+                end = log.append(List.of(event), 1);
+                long from = end - EventLog.RECORD_SIZE;
+                while (from < end) {
+                    from = log.read(from, end, (offset, nextOffset, e, sequence, timestamp, key) -> read.add(e));
+                }
+            }
+            var interrupted = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    log.read(0, EventLog.RECORD_SIZE, (offset, nextOffset, e, sequence, timestamp, key) -> {
+                    });
+                } catch (UncheckedIOException e) {
+                    // closes the channel it was reading from
+                }
+            });
+            interrupted.start();
+            interrupted.join();
+            var last = new ArrayList<Event>();
+            log.read(end - EventLog.RECORD_SIZE, (event, sequence, timestamp, key) -> last.add(event));
+            log.read(0, EventLog.RECORD_SIZE, (offset, nextOffset, e, sequence, timestamp, key) -> last.add(e));
+
+            // then
+            assertThat(read).containsExactlyElementsOf(events);
+            assertThat(last).containsExactly(events.get(events.size() - 1), events.get(0));
+        }
+    }
+
+    @Test
+    void shouldDropTornRecordAtTheEndOfTheLog() throws IOException {
+        // given
+        var event = new LimitChangedEvent(cardId, TEN);
+        long endOffset;
+        try (var log = new EventLog(directory, 1024)) {
+            endOffset = log.append(List.of(event, new LimitPartUsedEvent(cardId, ONE)), 1);
+        }
+
+        try (var channel = FileChannel.open(directory.resolve(String.format("%020d.log", 0)), WRITE)) {
+            channel.truncate(endOffset - 3);
+        }
+
+        // when
+        var log = new EventLog(directory, 1024);
+        var recoveredEndOffset = log.endOffset();
+        var replayed = replay(log);
+
+        // then
+        assertThat(replayed).containsExactly(event);
+        assertThat(recoveredEndOffset).isLessThan(endOffset - 3);
+    }
+
+    @Test
+    void shouldReplaySequenceAndTimestamp() {
+        // given
+        long before = System.currentTimeMillis();
+        try (var log = new EventLog(directory, 1024)) {
+            log.append(List.of(new LimitChangedEvent(cardId, TEN), new LimitPartUsedEvent(cardId, ONE)), 7);
+        }
+
+        // when
+        var sequences = new ArrayList<Long>();
+        var timestamps = new ArrayList<Long>();
+        try (var log = new EventLog(directory, 1024)) {
+            log.replay(0, (event, sequence, timestamp, idempotencyKey) -> {
+                sequences.add(sequence);
+                timestamps.add(timestamp);
+            });
+        }
+
+        // then
+        assertThat(sequences).containsExactly(7L, 8L);
+        assertThat(timestamps)
+            .allSatisfy(timestamp -> assertThat(timestamp).isBetween(before, System.currentTimeMillis()));
+    }
+
+    @Test
+    void shouldRejectRecordsOfAnotherSchemaOrSize() throws IOException {
+        // given
+        var record = ByteBuffer.allocate(1 + 1 + 16 + Long.BYTES + Long.BYTES + Long.BYTES)
+            .put((byte) 2)
+            .put((byte) 1)
+            .putLong(cardId.getMostSignificantBits())
+            .putLong(cardId.getLeastSignificantBits())
+            .putLong(TEN.getMinorUnits())
+            .putLong(1)
+            .putLong(1234)
+            .flip();
+        var checksum = new CRC32();
+        checksum.update(record.duplicate());
+
+        try (var channel = FileChannel.open(directory.resolve(String.format("%020d.log", 0)), CREATE, WRITE)) {
+            channel.write(ByteBuffer.allocate(8).putInt(record.remaining()).putInt((int) checksum.getValue()).flip());
+            channel.write(record);
+        }
+
+        // when
+        var failure = catchThrowable(() -> replay(new EventLog(directory, 1024)));
+
+        // then
+        assertThat(failure).isExactlyInstanceOf(IllegalStateException.class);
+    }
+
+    private static List<Event> replay(EventLog log) {
+        var replayed = new ArrayList<Event>();
+        try (log) {
+            log.replay(0, (event, sequence, timestamp, idempotencyKey) -> replayed.add(event));
+        }
+        return replayed;
+    }
+}
@@ -0,0 +1,587 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.Card;
+import com.example.demo.domain.Hold;
+import com.example.demo.domain.Money;
+import com.example.demo.domain.events.LimitChangedEvent;
+import com.example.demo.domain.exceptions.InvalidCursorException;
+import com.example.demo.domain.exceptions.StaleCardVersionException;
+import com.example.demo.events.Event;
+import com.example.demo.events.Events;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+public class EventStoreTest {
+
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+    private static final int CACHE_SIZE = 1000;
+
+    private static final Money ONE = Money.of("1");
+    private static final Money TEN = Money.of("10");
+
+    private final UUID cardId = UUID.randomUUID();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void shouldRebuildCardsFromSnapshotAndLogTail() throws Exception {
+        // given
+        var store = open(1);
+        var card = new Card(cardId);
+        card.changeLimit(TEN);
+        card.useLimit(ONE);
+        store.save(card);
+
+        store.snapshot();
+
+        card.useLimit(ONE);
+        store.save(card);
+        store.close();
+
+        // when
+        var reopened = open(1);
+
+        // then
+        var rebuilt = reopened.get(cardId);
+        assertThat(rebuilt.availableLimit()).isEqualTo(Money.of("8"));
+        assertThat(rebuilt.getVersion()).isEqualTo(3);
+        assertThat(reopened.eventCount()).isEqualTo(3);
+        reopened.close();
+    }
+
+    @Test
+    void shouldSkipLogEventsAlreadyFoldedIntoSnapshot() throws Exception {
+        // given
+        var store = open(1);
+        var card = new Card(cardId);
+        card.changeLimit(TEN);
+        store.save(card);
+        store.close();
+
+        // when
+        var reopened = open(1);
+        var rebuilt = reopened.get(cardId);
+        rebuilt.useLimit(ONE);
+        reopened.save(rebuilt);
+        reopened.close();
+
+        // then
+        try (var files = Files.walk(directory)) {
+            assertThat(files.filter(path -> path.toString().endsWith(".snapshot")).count()).isEqualTo(2);
+        }
+        var again = open(1);
+        assertThat(again.get(cardId).availableLimit()).isEqualTo(Money.of("9"));
+        assertThat(again.get(cardId).getStateChanges()).isEmpty();
+        again.close();
+    }
+
+    @Test
+    void shouldRecoverCardsOfEveryShard() throws Exception {
+        // given
+        var store = open(4);
+        var cardIds = new ArrayList<UUID>();
+        for (int i = 0; i < 64; i++) {
+            var card = new Card(UUID.randomUUID());
+            card.changeLimit(TEN);
+            store.save(card);
+            cardIds.add(card.getId());
+        }
+        store.close();
+
+        // when
+        var reopened = open(4);
+
+        // then
+        assertThat(reopened.size()).isEqualTo(64);
+        assertThat(reopened.cardIds()).containsExactlyInAnyOrderElementsOf(cardIds);
+        try (var shards = Files.list(directory)) {
+            assertThat(shards.filter(Files::isDirectory).count()).isEqualTo(4);
+        }
+        reopened.close();
+    }
+
+    @Test
+    void shouldCommitManyCardsTogetherAndDeclineOnlyTheConflictingOne() throws Exception {
+        // given
+        var store = open(4);
+        var existing = new Card(cardId);
+        existing.changeLimit(TEN);
+        store.save(existing);
+
+        var cards = new ArrayList<Card>();
+        for (int i = 0; i < 32; i++) {
+            var card = new Card(i == 16 ? cardId : UUID.randomUUID());
+            card.changeLimit(ONE);
+            cards.add(card);
+        }
+
+        // when
+        var durable = store.commitAll(cards);
+
+        // then
+        assertThat(durable).hasSize(32);
+        assertThat(catchThrowable(durable.get(16)::join)).hasCauseInstanceOf(StaleCardVersionException.class);
+        for (int i = 0; i < 32; i++) {
+            if (i != 16) {
+                durable.get(i).join();
+                assertThat(cards.get(i).getStateChanges()).isEmpty();
+            }
+        }
+        assertThat(store.size()).isEqualTo(32);
+        assertThat(store.get(cardId).availableLimit()).isEqualTo(TEN);
+        store.close();
+
+        // and
+        var reopened = open(4);
+        assertThat(reopened.size()).isEqualTo(32);
+        assertThat(reopened.get(cards.get(0).getId()).availableLimit()).isEqualTo(ONE);
+        assertThat(reopened.get(cardId).availableLimit()).isEqualTo(TEN);
+        reopened.close();
+    }
+
+    @Test
+    void shouldReadCommittedEventsOfEveryShardFromCursor() throws Exception {
+        // given
+        var store = open(4);
+        var start = store.startCursor();
+        for (int i = 0; i < 16; i++) {
+            var card = new Card(UUID.randomUUID());
+            card.changeLimit(TEN);
+            card.useLimit(ONE);
+            store.save(card);
+        }
+
+        // when
+        var events = new ArrayList<Event>();
+        var cursor = store.startCursor();
+        while (readAll(store, cursor, events)) {
+            // until every shard is read to its durable end
+        }
+
+        // then
+        assertThat(events).hasSize(32);
+        assertThat(cursor).isEqualTo(store.endCursor());
+        assertThat(store.parseCursor(cursor.toString())).isEqualTo(cursor);
+        assertThat(store.parseCursor(start.toString())).isEqualTo(start);
+        assertThat(catchThrowable(() -> store.parseCursor("1.0.0.0"))).isInstanceOf(InvalidCursorException.class);
+        assertThat(catchThrowable(() -> store.parseCursor("0.0"))).isInstanceOf(InvalidCursorException.class);
+
+        // and
+        var card = new Card(cardId);
+        card.changeLimit(TEN);
+        store.save(card);
+        var resumed = new ArrayList<Event>();
+        store.awaitCommitted(cursor, 1000);
+        while (readAll(store, cursor, resumed)) {
+            // only the event committed after the cursor
+        }
+        assertThat(resumed).containsExactly(new LimitChangedEvent(cardId, TEN));
+        store.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(StoreLayout.class)
+    void shouldKeepCardsInEitherLayout(StoreLayout layout) throws Exception {
+        // given
+        var store = open(2, layout);
+        var cards = new ArrayList<Card>();
+        for (int i = 0; i < 5000; i++) {
+            var card = new Card(UUID.randomUUID());
+            card.changeLimit(TEN);
+            store.save(card);
+            cards.add(card);
+        }
+        for (int i = 0; i < cards.size(); i += 2) {
+            cards.get(i).useLimit(ONE);
+            store.save(cards.get(i));
+        }
+
+        store.snapshot();
+        cards.get(1).useLimit(ONE);
+        store.save(cards.get(1));
+        store.close();
+
+        // when
+        var reopened = open(2, layout);
+
+        // then
+        assertThat(reopened.size()).isEqualTo(5000);
+        assertThat(reopened.eventCount()).isEqualTo(7501);
+        assertThat(reopened.get(cards.get(0).getId()).availableLimit()).isEqualTo(Money.of("9"));
+        assertThat(reopened.get(cards.get(1).getId()).availableLimit()).isEqualTo(Money.of("9"));
+        assertThat(reopened.get(cards.get(3).getId()).availableLimit()).isEqualTo(TEN);
+        assertThat(reopened.get(cards.get(3).getId()).getVersion()).isEqualTo(1);
+        assertThat(reopened.get(UUID.randomUUID())).isNull();
+        assertThat(reopened.estimatedMemoryBytes()).isPositive();
+        reopened.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(StoreLayout.class)
+    void shouldRecoverHoldsStillOpenAtSnapshot(StoreLayout layout) throws Exception {
+        // given
+        var store = open(1, layout);
+        var card = new Card(cardId);
+        card.changeLimit(TEN);
+        long open = card.holdLimit(ONE, 1000);
+        long captured = card.holdLimit(ONE, 2000);
+        store.save(card);
+
+        card.captureHold(store.openHold(cardId, captured));
+        store.save(card);
+        store.snapshot();
+
+        long placedLater = card.holdLimit(ONE, 3000);
+        store.save(card);
+        store.close();
+
+        // when
+        var reopened = open(1, layout);
+
+        // then
+        var holds = new ArrayList<Hold>();
+        reopened.forEachOpenHold(holds::add);
+        assertThat(holds).containsExactlyInAnyOrder(
+            new Hold(cardId, open, ONE, 1000),
+            new Hold(cardId, placedLater, ONE, 3000));
+        assertThat(reopened.openHold(cardId, captured)).isNull();
+        assertThat(reopened.get(cardId).availableLimit()).isEqualTo(Money.of("7"));
+        reopened.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(StoreLayout.class)
+    void shouldKeepExposureInStepWithCommitsAndRecovery(StoreLayout layout) throws Exception {
+        // given
+        var store = open(2, layout);
+        var cards = new ArrayList<Card>();
+        for (int i = 0; i < 100; i++) {
+            var card = new Card(UUID.randomUUID());
+            card.changeLimit(TEN);
+            cards.add(card);
+        }
+        store.commitAll(cards).forEach(CompletableFuture::join);
+        cards.get(0).useLimit(Money.of("9.50"));
+        cards.get(1).holdLimit(Money.of("9"), 1000);
+        cards.get(2).useLimit(ONE);
+        cards.subList(0, 3).forEach(store::save);
+        store.snapshot();
+        cards.get(2).changeLimit(ONE);
+        store.save(cards.get(2));
+
+        // when
+        var committed = store.exposure();
+        store.close();
+        var reopened = open(2, layout);
+
+        // then
+        var expected = new ExposureStats(100, Money.of("991").getMinorUnits(), Money.of("10.50").getMinorUnits(),
+            Money.of("9").getMinorUnits(), 3);
+        assertThat(committed).isEqualTo(expected);
+        assertThat(reopened.exposure()).isEqualTo(expected);
+        reopened.clear();
+        assertThat(reopened.exposure()).isEqualTo(new ExposureStats(0, 0, 0, 0, 0));
+        reopened.close();
+    }
+
+    @Test
+    void shouldReadEvictedCardsBackFromSnapshot() throws Exception {
+        // given
+        var store = open(1, StoreLayout.CACHED);
+        var cards = new ArrayList<Card>();
+        for (int i = 0; i < 3 * CACHE_SIZE; i++) {
+            var card = new Card(UUID.randomUUID());
+            card.changeLimit(TEN);
+            store.save(card);
+            cards.add(card);
+        }
+        store.snapshot();
+        var changed = store.get(cards.get(0).getId());
+        changed.useLimit(ONE);
+        store.save(changed);
+        var created = new Card(cardId);
+        created.changeLimit(ONE);
+        store.save(created);
+
+        // when
+        for (Card card : cards) {
+            store.get(card.getId());
+        }
+        var hot = store.get(cards.get(cards.size() - 1).getId());
+
+        // then
+        assertThat(store.get(cards.get(0).getId()).availableLimit()).isEqualTo(Money.of("9"));
+        assertThat(store.get(cards.get(1).getId()).availableLimit()).isEqualTo(TEN);
+        assertThat(store.get(cardId).availableLimit()).isEqualTo(ONE);
+        assertThat(hot.availableLimit()).isEqualTo(TEN);
+        assertThat(store.size()).isEqualTo(3 * CACHE_SIZE + 1);
+        assertThat(store.cardIds()).hasSize(3 * CACHE_SIZE + 1);
+        assertThat(store.cacheStats().getHits()).isPositive();
+        assertThat(store.cacheStats().getMisses()).isGreaterThanOrEqualTo(2 * CACHE_SIZE);
+        assertThat(store.cacheStats().getEvictions()).isGreaterThanOrEqualTo(CACHE_SIZE);
+
+        store.snapshot();
+        store.close();
+        var reopened = open(1, StoreLayout.CACHED);
+        assertThat(reopened.size()).isEqualTo(3 * CACHE_SIZE + 1);
+        assertThat(reopened.eventCount()).isEqualTo(3 * CACHE_SIZE + 2);
+        assertThat(reopened.get(cards.get(0).getId()).availableLimit()).isEqualTo(Money.of("9"));
+        assertThat(reopened.get(cardId).getVersion()).isEqualTo(1);
+        assertThat(reopened.cacheStats().getMisses()).isEqualTo(2);
+        reopened.close();
+    }
+
+    @Test
+    void shouldRejectHistoryWithTheCachedLayout() {
+        // when
+        var failure = catchThrowable(() -> open(1, StoreLayout.CACHED, true));
+
+        // then
+        assertThat(failure).isExactlyInstanceOf(IllegalStateException.class);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void shouldRebuildCardAsOfPastInstants(boolean history) throws Exception {
+        // given
+        var store = open(1, StoreLayout.HEAP, history);
+        var beforeCreation = Instant.now();
+        Thread.sleep(2);
+
+        var card = new Card(cardId);
+        var instants = new ArrayList<Instant>();
+        for (int i = 1; i <= 3 * CardHistory.CHECKPOINT_INTERVAL; i++) {
+            card.changeLimit(Money.of(Integer.toString(i)));
+            store.save(card);
+            instants.add(Instant.now());
+            Thread.sleep(2);
+        }
+        store.close();
+
+        // when
+        var reopened = open(1, StoreLayout.HEAP, history);
+
+        // then
+        assertThat(reopened.getAsOf(cardId, beforeCreation)).isNull();
+        for (int version = 1; version <= instants.size(); version++) {
+            var asOf = reopened.getAsOf(cardId, instants.get(version - 1));
+            assertThat(asOf.getVersion()).isEqualTo(version);
+            assertThat(asOf.availableLimit()).isEqualTo(Money.of(Integer.toString(version)));
+        }
+        assertThat(reopened.getAsOf(UUID.randomUUID(), Instant.now())).isNull();
+        reopened.close();
+    }
+
+    @Test
+    void shouldRebuildCardAsOfInstantsBetweenThinnedCheckpointsAfterARestart() throws Exception {
+        // given
+        var store = open(1, StoreLayout.HEAP, true);
+        var card = new Card(cardId);
+        var other = new Card(UUID.randomUUID());
+        var instants = new ArrayList<Instant>();
+        var versions = new ArrayList<Long>();
+        int events = (CardHistory.MAX_CHECKPOINTS + 4) * CardHistory.CHECKPOINT_INTERVAL;
+        for (int i = 1; i <= events; i++) {
+            card.changeLimit(Money.of(Integer.toString(i)));
+            store.save(card);
+            other.changeLimit(Money.of(Integer.toString(i)));
+            store.save(other);
+            if (i % 16 == 0) {
+                instants.add(Instant.now());
+                versions.add(card.getVersion());
+                Thread.sleep(2);
+            }
+            if (i == events / 2) {
+                store.snapshot();
+            }
+        }
+        store.close();
+
+        // when
+        var reopened = open(1, StoreLayout.HEAP, true);
+
+        // then
+        for (int i = 0; i < instants.size(); i++) {
+            var asOf = reopened.getAsOf(cardId, instants.get(i));
+            assertThat(asOf.getVersion()).isEqualTo(versions.get(i));
+            assertThat(asOf.availableLimit()).isEqualTo(Money.of(Long.toString(versions.get(i))));
+        }
+        reopened.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void shouldRebuildIdempotencyKeysFromTheLog(boolean history) throws Exception {
+        // given
+        var store = open(2, StoreLayout.HEAP, history);
+        var card = new Card(cardId);
+        card.changeLimit(TEN);
+        store.commit(card, "change").join();
+        store.snapshot();
+        card.useLimit(ONE);
+        store.commit(card, "use").join();
+        store.recordOutcome(cardId, "declined", 3);
+        store.close();
+
+        // when
+        var reopened = open(2, StoreLayout.HEAP, history);
+
+        // then
+        assertThat(reopened.outcomeOf(cardId, "change")).hasValue(EventStore.ACCEPTED);
+        assertThat(reopened.outcomeOf(cardId, "use")).hasValue(EventStore.ACCEPTED);
+        assertThat(reopened.outcomeOf(cardId, "declined")).isEmpty();
+        assertThat(reopened.outcomeOf(UUID.randomUUID(), "use")).isEmpty();
+        reopened.close();
+    }
+
+    @Test
+    void shouldRefuseToReopenWithAnotherShardCount() throws Exception {
+        // given
+        open(4).close();
+
+        // when
+        var thrown = catchThrowable(() -> open(2));
+
+        // then
+        assertThat(thrown).isExactlyInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldReopenWithTheShardCountOfTheLogUnlessAnotherIsConfigured() throws Exception {
+        // given
+        open(3).close();
+
+        // when
+        var reopened = open(0);
+
+        // then
+        assertThat(reopened.startCursor().shards()).isEqualTo(3);
+        reopened.close();
+    }
+
+    @Test
+    void shouldHandCommitOutOnlyOnceDurable() throws Exception {
+        // given
+        var events = mock(Events.class);
+        var properties = properties(directory, 1, StoreLayout.HEAP, true);
+        properties.getEventLog().getGroupCommit().setMaxWaitMicros(200_000);
+        var store = new EventStore(events, properties);
+        var card = new Card(cardId);
+        card.changeLimit(TEN);
+
+        // when
+        var durable = store.commit(card);
+
+        // then
+        assertThat(store.get(cardId).getVersion()).isEqualTo(1);
+        verifyNoInteractions(events);
+
+        durable.join();
+        verify(events).emitAll(List.of(new LimitChangedEvent(cardId, TEN)));
+        store.close();
+    }
+
+    @Test
+    void shouldReplicateCommittedEventsInBatchesThatApplyOnlyOnce() throws Exception {
+        // given
+        var leader = open(directory.resolve("leader"), 4);
+        var follower = open(directory.resolve("follower"), 2);
+        var cardIds = new ArrayList<UUID>();
+        for (int i = 0; i < 8; i++) {
+            var card = new Card(UUID.randomUUID());
+            card.changeLimit(TEN);
+            leader.commit(card, "change").join();
+            card.useLimit(ONE);
+            leader.commit(card, "use").join();
+            cardIds.add(card.getId());
+        }
+
+        // when
+        var cursor = leader.startCursor();
+        var batches = new ArrayList<byte[]>();
+        for (var batch = leader.readReplicationBatch(cursor, 5); batch.length > 0;
+             batch = leader.readReplicationBatch(cursor, 5)) {
+            batches.add(batch);
+        }
+        for (var batch : batches) {
+            follower.applyReplicationBatch(new ByteArrayInputStream(batch)).join();
+        }
+        follower.applyReplicationBatch(new ByteArrayInputStream(batches.get(batches.size() - 1))).join();
+
+        // then
+        assertThat(batches).hasSize(4);
+        assertThat(cursor).isEqualTo(leader.endCursor());
+        assertThat(follower.eventCount()).isEqualTo(16);
+        for (var replicatedId : cardIds) {
+            var replicated = follower.get(replicatedId);
+            assertThat(replicated.availableLimit()).isEqualTo(Money.of("9"));
+            assertThat(replicated.getVersion()).isEqualTo(2);
+            assertThat(follower.outcomeOf(replicatedId, "change")).hasValue(EventStore.ACCEPTED);
+            assertThat(follower.outcomeOf(replicatedId, "use")).hasValue(EventStore.ACCEPTED);
+        }
+        leader.close();
+        follower.close();
+    }
+
+    private static boolean readAll(EventStore store, LogCursor cursor, List<Event> events) {
+        boolean read = false;
+        for (int shard = 0; shard < cursor.shards(); shard++) {
+            read |= store.readCommitted(cursor, shard, (s, offset, nextOffset, event, sequence, timestamp) ->
+                events.add(event));
+        }
+        return read;
+    }
+
+    private EventStore open(int shards) {
+        return open(shards, StoreLayout.HEAP);
+    }
+
+    private EventStore open(int shards, StoreLayout layout) {
+        return open(shards, layout, layout != StoreLayout.CACHED);
+    }
+
+    private EventStore open(int shards, StoreLayout layout, boolean history) {
+        return open(directory, shards, layout, history);
+    }
+
+    private EventStore open(Path at, int shards) {
+        return open(at, shards, StoreLayout.HEAP, true);
+    }
+
+    private EventStore open(Path at, int shards, StoreLayout layout, boolean history) {
+        return new EventStore(mock(Events.class), properties(at, shards, layout, history));
+    }
+
+    static EventStoreProperties properties(Path at, int shards, StoreLayout layout, boolean history) {
+        var properties = new EventStoreProperties();
+        properties.getEventLog().setDirectory(at);
+        properties.getEventLog().setShards(shards);
+        properties.getEventLog().setSegmentSize(SEGMENT_SIZE);
+        properties.getStore().setLayout(layout);
+        properties.getStore().setCacheSize(CACHE_SIZE);
+        properties.getHistory().setEnabled(history);
+        properties.getIdempotency().setMaxKeys(1000);
+        properties.getIdempotency().setTtlSeconds(3600);
+        properties.getSnapshot().setIntervalEvents(Long.MAX_VALUE);
+        return properties;
+    }
+}
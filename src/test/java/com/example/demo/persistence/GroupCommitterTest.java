@@ -0,0 +1,93 @@
+package com.example.demo.persistence;
+
+import com.example.demo.domain.CardSnapshot;
+import com.example.demo.events.Events;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class GroupCommitterTest {
+
+    private final CardSnapshot card = new CardSnapshot(UUID.randomUUID(), 1000, 0, 0, 1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void shouldFenceTheShardOnceASyncFails() {
+        // given
+        var eventLog = new EventLog(directory, 1024 * 1024) {
+            @Override
+            long sync() {
+                throw new UncheckedIOException(new IOException("disk gone"));
+            }
+        };
+        var committer = new GroupCommitter("test-committer", eventLog, mock(Events.class), List.of(), 16, 0, () -> {
+        });
+
+        // when
+        var failed = committer.enqueue(card, List.of(), EventLog.RECORD_SIZE);
+        failed.exceptionally(failure -> null).join();
+        var later = committer.enqueue(card, List.of(), 2 * EventLog.RECORD_SIZE);
+
+        // then
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(later).isCompletedExceptionally();
+        assertThat(committer.failure()).hasRootCauseMessage("disk gone");
+        assertThat(committer.durableOffset()).isZero();
+        committer.close();
+        eventLog.close();
+    }
+
+    @Test
+    void shouldSyncAtMostMaxBatchSizeCommitsAtOnce() throws Exception {
+        // given
+        var firstSync = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var syncs = new AtomicInteger();
+        var eventLog = new EventLog(directory, 1024 * 1024) {
+            @Override
+            long sync() {
+                if (syncs.incrementAndGet() == 1) {
+                    firstSync.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.sync();
+            }
+        };
+        var committer = new GroupCommitter("test-committer", eventLog, mock(Events.class), List.of(), 4, 0, () -> {
+        });
+
+        // when
+        var durable = new ArrayList<CompletableFuture<Void>>();
+        durable.add(committer.enqueue(card, List.of(), EventLog.RECORD_SIZE));
+        firstSync.await();
+        for (int i = 2; i <= 10; i++) {
+            durable.add(committer.enqueue(card, List.of(), (long) i * EventLog.RECORD_SIZE));
+        }
+        release.countDown();
+        CompletableFuture.allOf(durable.toArray(new CompletableFuture[0])).join();
+
+        // then
+        assertThat(syncs).hasValue(4);
+        assertThat(committer.durableOffset()).isEqualTo(10L * EventLog.RECORD_SIZE);
+        committer.close();
+        eventLog.close();
+    }
+}
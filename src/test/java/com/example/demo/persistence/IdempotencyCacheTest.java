@@ -0,0 +1,78 @@
+package com.example.demo.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IdempotencyCacheTest {
+
+    private static final long TTL = 1000;
+
+    @Test
+    void shouldForgetKeysOnceTheyExpire() {
+        // given
+        var cache = new IdempotencyCache(10, TTL);
+        cache.put(1, 0, 100, 100);
+        cache.put(2, 3, 500, 500);
+
+        // when
+        int first = cache.get(1, 1099);
+        int expired = cache.get(1, 1100);
+
+        // then
+        assertThat(first).isEqualTo(0);
+        assertThat(expired).isEqualTo(-1);
+        assertThat(cache.get(2, 1100)).isEqualTo(3);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldEvictOldestKeysBeyondCapacity() {
+        // given
+        var cache = new IdempotencyCache(1000, Long.MAX_VALUE / 2);
+        var expected = new LinkedHashMap<Long, Integer>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                return size() > 1000;
+            }
+        };
+        var random = new Random(42);
+
+        // when
+        for (int i = 0; i < 50_000; i++) {
+            // a narrow key range, so keys collide in the table and get removed from the middle of probe chains
+            long key = 1 + random.nextInt(5000);
+            int outcome = random.nextInt(8);
+            if (!expected.containsKey(key)) {
+                cache.put(key, outcome, 0, 0);
+                expected.put(key, outcome);
+            }
+        }
+
+        // then
+        assertThat(cache.size()).isEqualTo(expected.size());
+        for (long key = 1; key <= 5000; key++) {
+            assertThat(cache.get(key, 0)).isEqualTo(expected.getOrDefault(key, -1));
+        }
+    }
+
+    @Test
+    void shouldScopeKeysToTheirCard() {
+        // given
+        var first = UUID.randomUUID();
+        var second = UUID.randomUUID();
+
+        // when
+        long key = IdempotencyCache.keyOf(first, "retry-1");
+
+        // then
+        assertThat(key).isEqualTo(IdempotencyCache.keyOf(first, "retry-1"));
+        assertThat(key).isNotEqualTo(IdempotencyCache.keyOf(second, "retry-1"));
+        assertThat(key).isNotEqualTo(IdempotencyCache.keyOf(first, "retry-2"));
+    }
+}
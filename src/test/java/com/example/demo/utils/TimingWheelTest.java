@@ -0,0 +1,75 @@
+package com.example.demo.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+    private static final long START = 1_000_000;
+
+    @Test
+    void shouldHandItemsBackOnlyOnceDue() {
+        // given
+        var wheel = new TimingWheel<String>(TICK, START);
+        wheel.schedule(START + 5, "soon");
+        wheel.schedule(START + 10, "next tick");
+        wheel.schedule(START + 25, "later");
+
+        // when
+        var first = wheel.advance(START + 9);
+        var second = wheel.advance(START + 10);
+        var third = wheel.advance(START + 30);
+
+        // then
+        assertThat(first).isEmpty();
+        assertThat(second).containsExactlyInAnyOrder("soon", "next tick");
+        assertThat(third).containsExactly("later");
+        assertThat(wheel.size()).isZero();
+    }
+
+    @Test
+    void shouldCascadeDeadlinesOfEveryWheel() {
+        // given
+        var wheel = new TimingWheel<Long>(TICK, START);
+        var deadlines = List.of(START + 630, START + 641, START + 40_950, START + 2_621_440, START + 167_772_150,
+            START + 200_000_000);
+        deadlines.forEach(deadline -> wheel.schedule(deadline, deadline));
+
+        // when
+        var fired = new ArrayList<Long>();
+        var untimely = new ArrayList<Long>();
+        long step = 1_000 * TICK;
+        for (long now = START; now <= START + 200_000_000; now += step) {
+            long advancedTo = now;
+            wheel.advance(now).forEach(deadline -> {
+                fired.add(deadline);
+                if (deadline > advancedTo || deadline <= advancedTo - step) {
+                    untimely.add(deadline);
+                }
+            });
+        }
+
+        // then
+        assertThat(fired).containsExactlyInAnyOrderElementsOf(deadlines);
+        assertThat(untimely).isEmpty();
+    }
+
+    @Test
+    void shouldHandOverdueItemsBackRightAway() {
+        // given
+        var wheel = new TimingWheel<String>(TICK, START);
+        wheel.advance(START + 100);
+
+        // when
+        wheel.schedule(START + 50, "overdue");
+
+        // then
+        assertThat(wheel.size()).isEqualTo(1);
+        assertThat(wheel.advance(START + 100)).containsExactly("overdue");
+    }
+}